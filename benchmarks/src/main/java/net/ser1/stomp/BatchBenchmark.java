@@ -0,0 +1,77 @@
+package net.ser1.stomp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares sending tiny messages one frame each with sending them as
+ * batch frames, through an intra-VM client to a subscribing listener.
+ * Scores are per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchBenchmark {
+    static final int MESSAGES = 100;
+
+    @Param({"16"})
+    public int bodySize;
+
+    private Server _server;
+    private Stomp _producer;
+    private Stomp _consumer;
+    private List<String> _bodies;
+
+    @Setup
+    public void setup(final Blackhole bh) {
+        _server = new Server();
+        _producer = _server.getClient();
+        _consumer = _server.getClient();
+        _consumer.subscribe(Frames.DESTINATION, new Listener() {
+            public void message(Map<String, String> headers, String body) {
+                bh.consume(body);
+            }
+        });
+        _bodies = new ArrayList<String>(MESSAGES);
+        for (int i = 0; i < MESSAGES; i++) _bodies.add(Frames.body(bodySize));
+    }
+
+    @TearDown
+    public void tearDown() {
+        _producer.disconnect();
+        _consumer.disconnect();
+        _server.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void oneFrameEach() {
+        for (int i = 0; i < MESSAGES; i++) _producer.send(Frames.DESTINATION, _bodies.get(i));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void batched() {
+        _producer.sendBatch(Frames.DESTINATION, _bodies);
+    }
+}
@@ -0,0 +1,37 @@
+package net.ser1.stomp;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of the benchmark jar.  Accepts the usual JMH command line,
+ * but unless told otherwise writes the results as JSON so that runs on
+ * different commits can be compared mechanically.
+ * <p/>
+ * Example:
+ * <pre>
+ *   java -jar target/benchmarks.jar                    # everything
+ *   java -jar target/benchmarks.jar Codec -p bodySize=4096
+ *   java -jar target/benchmarks.jar -rff before.json
+ * </pre>
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+        if (!cmd.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (!cmd.getResult().hasValue()) {
+            String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+            options.result("jmh-result-" + stamp + ".json");
+        }
+        new Runner(options.build()).run();
+    }
+}
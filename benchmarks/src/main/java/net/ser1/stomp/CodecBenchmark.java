@@ -0,0 +1,85 @@
+package net.ser1.stomp;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the cost of turning a frame into bytes (Transmitter) and bytes
+ * back into a frame (Receiver), across body sizes and header counts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"0", "256", "4096", "65536"})
+    public int bodySize;
+
+    @Param({"1", "4", "16"})
+    public int headerCount;
+
+    private Map<String, String> _headers;
+    private String _body;
+    private Frames.NullOutputStream _out;
+    private Receiver _receiver;
+    private Sink _sink;
+
+    @Setup
+    public void setup() throws IOException {
+        _headers = Frames.headers(headerCount);
+        _body = Frames.body(bodySize);
+        _out = new Frames.NullOutputStream();
+        _sink = new Sink();
+        byte[] frame = Frames.encode(Command.send, _headers, _body);
+        _receiver = new Receiver(_sink, new Frames.RepeatingInputStream(frame));
+    }
+
+    @Benchmark
+    public void encode() throws IOException {
+        Transmitter.transmit(Command.message, _headers, _body, _out);
+    }
+
+    @Benchmark
+    public void decode(Blackhole bh) throws IOException {
+        _receiver.receiveFrame();
+        bh.consume(_sink.headers);
+        bh.consume(_sink.body);
+    }
+
+    /**
+     * Keeps the last decoded frame reachable so that decoding can not be
+     * optimised away.
+     */
+    static final class Sink implements MessageReceiver {
+        Map<String, String> headers;
+        String body;
+
+        public void receive(Command command, Map<String, String> header, String b) {
+            headers = header;
+            body = b;
+        }
+
+        public void disconnect() {
+        }
+
+        public boolean isClosed() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package net.ser1.stomp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Helpers shared by the benchmarks for building representative frames.
+ */
+final class Frames {
+    static final String DESTINATION = "/bench/destination";
+
+    private Frames() {
+    }
+
+    /**
+     * Builds a header map containing a destination plus enough filler
+     * headers to reach the requested count.
+     */
+    static Map<String, String> headers(int count) {
+        Map<String, String> h = new LinkedHashMap<String, String>();
+        h.put("destination", DESTINATION);
+        for (int i = 1; i < count; i++) {
+            h.put("x-header-" + i, "value-" + i);
+        }
+        return h;
+    }
+
+    /**
+     * Builds an ASCII body of the given length.
+     */
+    static String body(int size) {
+        StringBuilder b = new StringBuilder(size);
+        for (int i = 0; i < size; i++) {
+            b.append((char) ('a' + (i % 26)));
+        }
+        return b.toString();
+    }
+
+    /**
+     * Encodes a frame exactly as it would appear on the wire.
+     */
+    static byte[] encode(Command c, Map<String, String> h, String b) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Transmitter.transmit(c, h, b, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * An endless stream that replays the same frame forever, so that a
+     * Receiver can be driven one frame at a time without ever hitting EOF.
+     */
+    static final class RepeatingInputStream extends InputStream {
+        private final byte[] _frame;
+        private int _pos;
+
+        RepeatingInputStream(byte[] frame) {
+            _frame = frame;
+        }
+
+        public int read() {
+            int b = _frame[_pos] & 0xff;
+            if (++_pos == _frame.length) _pos = 0;
+            return b;
+        }
+
+        public int read(byte[] buf, int off, int len) {
+            int n = Math.min(len, _frame.length - _pos);
+            System.arraycopy(_frame, _pos, buf, off, n);
+            _pos += n;
+            if (_pos == _frame.length) _pos = 0;
+            return n;
+        }
+
+        public int available() {
+            return _frame.length - _pos;
+        }
+    }
+
+    /**
+     * An OutputStream that discards everything written to it.
+     */
+    static final class NullOutputStream extends java.io.OutputStream {
+        public void write(int b) {
+        }
+
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
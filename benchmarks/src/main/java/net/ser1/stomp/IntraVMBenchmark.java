@@ -0,0 +1,66 @@
+package net.ser1.stomp;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the latency from IntraVMClient.send() to the subscribing
+ * Listener being invoked.  Intra-VM delivery is synchronous, so one
+ * operation covers the complete publish-to-listener path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IntraVMBenchmark {
+    @Param({"16", "1024"})
+    public int bodySize;
+
+    private Server _server;
+    private Stomp _producer;
+    private Stomp _consumer;
+    private String _body;
+    private volatile String _last;
+
+    @Setup
+    public void setup() {
+        _server = new Server();
+        _producer = _server.getClient();
+        _consumer = _server.getClient();
+        _consumer.subscribe(Frames.DESTINATION, new Listener() {
+            public void message(Map<String, String> headers, String body) {
+                _last = body;
+            }
+        });
+        _body = Frames.body(bodySize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        _producer.disconnect();
+        _consumer.disconnect();
+        _server.stop();
+    }
+
+    @Benchmark
+    public String publishToListener() {
+        _last = null;
+        _producer.send(Frames.DESTINATION, _body);
+        return _last;
+    }
+}
@@ -0,0 +1,129 @@
+package net.ser1.stomp;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Drives a real Server over loopback sockets.  Each of the producer
+ * connections publishes to a destination that a single consumer connection
+ * subscribes to; an operation completes when the consumer has seen every
+ * message of the operation.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class LoopbackBenchmark {
+    /**
+     * Messages each producer sends per throughput operation.
+     */
+    static final int BURST = 100;
+    private static final long TIMEOUT_SECONDS = 30;
+
+    @Param({"1", "4", "16"})
+    public int connections;
+
+    @Param({"256"})
+    public int bodySize;
+
+    private Server _server;
+    private Client[] _producers;
+    private Client _consumer;
+    private String _body;
+    private final Semaphore _delivered = new Semaphore(0);
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        int port = freePort();
+        _server = new Server(port);
+        // The listener thread binds asynchronously
+        Thread.sleep(200);
+        _body = Frames.body(bodySize);
+        _consumer = new Client("localhost", port, "bench", "bench");
+        _consumer.subscribe(Frames.DESTINATION, new Listener() {
+            public void message(Map<String, String> headers, String body) {
+                _delivered.release();
+            }
+        });
+        // Frames from one connection are handled in order, so once the
+        // consumer sees its own message the subscription is in place.
+        _consumer.send(Frames.DESTINATION, _body);
+        await(1);
+        _producers = new Client[connections];
+        for (int i = 0; i < connections; i++) {
+            _producers[i] = new Client("localhost", port, "bench", "bench");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (int i = 0; i < _producers.length; i++) {
+            _producers[i].disconnect();
+        }
+        _consumer.disconnect();
+        _server.stop();
+    }
+
+    /**
+     * Messages per second per producer connection; multiply by the number
+     * of connections for the aggregate rate through the server.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OperationsPerInvocation(BURST)
+    public void throughput() throws InterruptedException {
+        for (int n = 0; n < BURST; n++) {
+            for (int i = 0; i < _producers.length; i++) {
+                _producers[i].send(Frames.DESTINATION, _body);
+            }
+        }
+        await(BURST * _producers.length);
+    }
+
+    /**
+     * Time for one message from every producer to reach the consumer.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void latency() throws InterruptedException {
+        for (int i = 0; i < _producers.length; i++) {
+            _producers[i].send(Frames.DESTINATION, _body);
+        }
+        await(_producers.length);
+    }
+
+    private void await(int messages) throws InterruptedException {
+        if (!_delivered.tryAcquire(messages, TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Consumer did not receive " + messages + " messages");
+        }
+    }
+
+    static int freePort() throws IOException {
+        ServerSocket s = new ServerSocket(0);
+        try {
+            return s.getLocalPort();
+        } finally {
+            s.close();
+        }
+    }
+}
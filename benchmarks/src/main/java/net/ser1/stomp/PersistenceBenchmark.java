@@ -0,0 +1,94 @@
+package net.ser1.stomp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures persistent sends that wait for their receipt, under each
+ * durability mode.  Every producer stores a message and waits until the
+ * FileQueue says it is durable, as a client sending with a receipt does.
+ * Throughput shows how group commit shares each fsync among producers;
+ * sample time shows what each producer waits.
+ * <p/>
+ * Run with -t to change the number of producers, and with
+ * -jvmArgs -Dgozirra.data=DIR to measure a particular disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class PersistenceBenchmark {
+    @Param({"message", "group", "async"})
+    public String durability;
+
+    @Param({"1000"})
+    public long window;
+
+    @Param({"256"})
+    public int bodySize;
+
+    private File _directory;
+    private FileQueue _queue;
+    private String _body;
+
+    @Setup
+    public void setup() throws IOException {
+        File parent = new File(System.getProperty("gozirra.data", System.getProperty("java.io.tmpdir")));
+        parent.mkdirs();
+        _directory = Files.createTempDirectory(parent.toPath(), "gozirra-bench").toFile();
+        _queue = new FileQueue(_directory);
+        _queue.setDurability(durability.equals("message") ? FileQueue.PER_MESSAGE
+                : durability.equals("async") ? FileQueue.ASYNC : FileQueue.GROUP);
+        _queue.setCommitWindow(window);
+        _body = Frames.body(bodySize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        _queue.close();
+        delete(_directory);
+    }
+
+    @Benchmark
+    public void sendWithReceipt() throws Exception {
+        Map<String, String> h = Frames.headers(4);
+        h.put("destination", "/bench/persistent");
+        _queue.append("/bench/persistent", h, _body);
+        final CountDownLatch receipt = new CountDownLatch(1);
+        _queue.sync("/bench/persistent", new Queue.SyncListener() {
+            public void synced(IOException failure) {
+                receipt.countDown();
+            }
+        });
+        receipt.await();
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) delete(children[i]);
+        }
+        f.delete();
+    }
+}
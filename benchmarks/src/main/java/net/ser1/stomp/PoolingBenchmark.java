@@ -0,0 +1,126 @@
+package net.ser1.stomp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Shows the garbage produced by the server hot path with and without
+ * FramePool recycling: decode a SEND, route it, and encode a MESSAGE for
+ * each subscriber.  Run with the GC profiler and compare
+ * gc.alloc.rate.norm (bytes allocated per frame) between the two methods:
+ * <pre>
+ *   java -jar target/benchmarks.jar Pooling -prof gc
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PoolingBenchmark {
+    @Param({"256", "4096"})
+    public int bodySize;
+
+    @Param({"4"})
+    public int subscribers;
+
+    private Server _server;
+    private Receiver _receiver;
+
+    @Setup
+    public void setup() throws IOException {
+        _server = new Server();
+        final OutputStream out = new Frames.NullOutputStream();
+        for (int i = 0; i < subscribers; i++) {
+            Map<String, String> h = new HashMap<String, String>();
+            h.put("destination", Frames.DESTINATION);
+            _server.receive(Command.subscribe, h, null, new Connection(out));
+        }
+        final Connection producer = new Connection(out);
+        MessageReceiver inbound = new MessageReceiver() {
+            public void receive(Command c, Map<String, String> h, String b) {
+                _server.receive(c, h, b, producer);
+            }
+
+            public void disconnect() {
+            }
+
+            public boolean isClosed() {
+                return false;
+            }
+        };
+        byte[] frame = Frames.encode(Command.send, Frames.headers(4), Frames.body(bodySize));
+        _receiver = new Receiver(inbound, new Frames.RepeatingInputStream(frame));
+        _receiver.setRecycle(true);
+    }
+
+    @TearDown
+    public void tearDown() {
+        _server.stop();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dgozirra.pool=true")
+    public boolean pooled() throws IOException {
+        return _receiver.receiveFrame();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dgozirra.pool=false")
+    public boolean unpooled() throws IOException {
+        return _receiver.receiveFrame();
+    }
+
+    /**
+     * Stands in for a network connection: encodes everything it is given
+     * and throws the bytes away.
+     */
+    static final class Connection implements Listener, Authenticatable {
+        private final OutputStream _out;
+
+        Connection(OutputStream out) {
+            _out = out;
+        }
+
+        public void message(Map<String, String> headers, String body) {
+            try {
+                Transmitter.transmit(Command.message, headers, body, _out);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public void error(Map<String, String> headers, String b) {
+        }
+
+        public Object token() {
+            return "";
+        }
+
+        public void receive(Command command, Map<String, String> header, String body) {
+        }
+
+        public void disconnect() {
+        }
+
+        public boolean isClosed() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package net.ser1.stomp;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures Server.receive() routing a SEND to a destination with a varying
+ * number of subscribers.  Subscribers are in-memory sinks, so the numbers
+ * reflect routing and fan-out cost only, with no socket I/O.  When a
+ * selector is given, every subscriber uses it, and the message matches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoutingBenchmark {
+    @Param({"0", "1", "10", "100"})
+    public int subscribers;
+
+    @Param({"256"})
+    public int bodySize;
+
+    @Param({"", "region = 'EU' AND size > 1000"})
+    public String selector;
+
+    private Server _server;
+    private Subscriber _producer;
+    private Map<String, String> _headers;
+    private String _body;
+
+    @Setup
+    public void setup(Blackhole bh) {
+        _server = new Server();
+        _producer = new Subscriber(bh);
+        for (int i = 0; i < subscribers; i++) {
+            Map<String, String> h = new HashMap<String, String>();
+            h.put("destination", Frames.DESTINATION);
+            if (selector.length() > 0) h.put("selector", selector);
+            _server.receive(Command.subscribe, h, null, new Subscriber(bh));
+        }
+        _headers = Frames.headers(4);
+        _headers.put("region", "EU");
+        _headers.put("size", "1500");
+        _body = Frames.body(bodySize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        _server.stop();
+    }
+
+    @Benchmark
+    public void route() {
+        _server.receive(Command.send, _headers, _body, _producer);
+    }
+
+    /**
+     * A network-less subscriber that feeds everything it is given to a
+     * Blackhole.
+     */
+    static final class Subscriber implements Listener, Authenticatable {
+        private final Blackhole _bh;
+
+        Subscriber(Blackhole bh) {
+            _bh = bh;
+        }
+
+        public void message(Map<String, String> headers, String body) {
+            _bh.consume(body);
+        }
+
+        public void error(Map<String, String> headers, String b) {
+            _bh.consume(b);
+        }
+
+        public Object token() {
+            return "";
+        }
+
+        public void receive(Command command, Map<String, String> header, String body) {
+            _bh.consume(command);
+        }
+
+        public void disconnect() {
+        }
+
+        public boolean isClosed() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package net.ser1.stomp;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * Measures routing throughput with several producers sending to separate
+ * destinations, as the number of routing threads grows.  shards=0 routes
+ * on the producers' own threads.  Each subscriber burns a fixed amount of
+ * CPU per message, standing in for encoding and writing to a socket.
+ * <p/>
+ * Run with -t to change the number of producers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class ShardingBenchmark {
+    @Param({"0", "1", "2", "4"})
+    public int shards;
+
+    @Param({"16"})
+    public int destinations;
+
+    @Param({"4"})
+    public int subscribers;
+
+    @Param({"200"})
+    public int work;
+
+    private Server _server;
+
+    @Setup
+    public void setup(Blackhole bh) {
+        _server = new Server();
+        _server.setRoutingThreads(shards);
+        for (int d = 0; d < destinations; d++) {
+            for (int i = 0; i < subscribers; i++) {
+                Map<String, String> h = new HashMap<String, String>();
+                h.put("destination", "/bench/" + d);
+                _server.receive(Command.subscribe, h, null, new Worker(bh, work));
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        _server.stop();
+    }
+
+    /**
+     * One producer.  Producer n sends to destinations n, n + threads,
+     * n + 2 * threads, and so on, so no two producers share a destination.
+     */
+    @State(Scope.Thread)
+    public static class Producer {
+        RoutingBenchmark.Subscriber client;
+        Map<String, String>[] headers;
+        String body;
+        int next;
+
+        @Setup
+        @SuppressWarnings("unchecked")
+        public void setup(ShardingBenchmark b, ThreadParams t, Blackhole bh) {
+            client = new RoutingBenchmark.Subscriber(bh);
+            int count = Math.max(1, b.destinations / t.getThreadCount());
+            headers = new Map[count];
+            for (int i = 0; i < count; i++) {
+                headers[i] = Frames.headers(4);
+                int d = (t.getThreadIndex() + i * t.getThreadCount()) % b.destinations;
+                headers[i].put("destination", "/bench/" + d);
+            }
+            body = Frames.body(256);
+        }
+    }
+
+    @Benchmark
+    public void route(Producer p) {
+        Map<String, String> h = p.headers[p.next++ % p.headers.length];
+        _server.receive(Command.send, h, p.body, p.client);
+    }
+
+    /**
+     * A subscriber that burns a fixed amount of CPU per message.
+     */
+    static final class Worker implements Listener, Authenticatable {
+        private final Blackhole _bh;
+        private final int _work;
+
+        Worker(Blackhole bh, int work) {
+            _bh = bh;
+            _work = work;
+        }
+
+        public void message(Map<String, String> headers, String body) {
+            Blackhole.consumeCPU(_work);
+        }
+
+        public void error(Map<String, String> headers, String b) {
+            _bh.consume(b);
+        }
+
+        public Object token() {
+            return "";
+        }
+
+        public void receive(Command command, Map<String, String> header, String body) {
+            _bh.consume(command);
+        }
+
+        public void disconnect() {
+        }
+
+        public boolean isClosed() {
+            return false;
+        }
+    }
+}
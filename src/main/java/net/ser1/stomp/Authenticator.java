@@ -2,6 +2,12 @@ package net.ser1.stomp;
 
 import javax.security.auth.login.LoginException;
 
+/**
+ * Decides who may connect, and where they may send and subscribe.  Each
+ * connection remembers the answers for a while (see
+ * Server.setAuthorizationCache); when permissions change, call
+ * Server.invalidateAuthorizations.
+ */
 public interface Authenticator {
     /**
      * Validates a user.
@@ -0,0 +1,109 @@
+package net.ser1.stomp;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers a connection's recent authorization decisions, so that the
+ * Authenticator is asked once per destination and verb rather than once
+ * per frame.
+ * <p/>
+ * At most <code>size</code> decisions are kept, the least recently used
+ * of the verb with more being dropped first, and none for longer than <code>ttl</code>
+ * milliseconds.  Refusals are remembered as well as grants.  Clearing the
+ * cache also discards any decision being made at the time, so that an
+ * answer given under the old permissions isn't kept.
+ */
+final class AuthorizationCache {
+    static final int DEFAULT_SIZE = Integer.getInteger("gozirra.auth.cache", 256).intValue();
+    static final long DEFAULT_TTL = Long.getLong("gozirra.auth.ttl", 60 * 1000L).longValue();
+
+    /**
+     * Decisions by destination, one map for each verb, so a lookup builds
+     * no key.
+     */
+    private final Map _sends;
+    private final Map _subscribes;
+    private final int _size;
+    private final long _ttl;
+    /**
+     * Counts the times the cache has been cleared.
+     */
+    private long _generation = 0;
+
+
+    private static final class Decision {
+        final boolean granted;
+        final long expires;
+
+        Decision(boolean granted, long expires) {
+            this.granted = granted;
+            this.expires = expires;
+        }
+    }
+
+
+    AuthorizationCache(int size, long ttl) {
+        if (size < 1) throw new IllegalArgumentException("Size must be at least 1");
+        _size = size;
+        _ttl = ttl;
+        _sends = new LinkedHashMap(16, 0.75f, true);
+        _subscribes = new LinkedHashMap(16, 0.75f, true);
+    }
+
+
+    /**
+     * Returns a remembered decision, or null if there is none.
+     */
+    synchronized Boolean get(boolean send, String destination) {
+        Map decisions = send ? _sends : _subscribes;
+        Decision d = (Decision) decisions.get(destination);
+        if (d == null) return null;
+        if (d.expires <= System.currentTimeMillis()) {
+            decisions.remove(destination);
+            return null;
+        }
+        return Boolean.valueOf(d.granted);
+    }
+
+
+    /**
+     * Returns a token to pass to put(), taken before asking the
+     * Authenticator.
+     */
+    synchronized long generation() {
+        return _generation;
+    }
+
+
+    /**
+     * Remembers a decision, unless the cache was cleared since
+     * <code>generation</code>.
+     */
+    synchronized void put(boolean send, String destination, boolean granted, long generation) {
+        if (generation != _generation) return;
+        Map decisions = send ? _sends : _subscribes;
+        decisions.put(destination, new Decision(granted, System.currentTimeMillis() + _ttl));
+        if (size() > _size) {
+            // Drop the least recently used of the verb holding more, never
+            // the decision just made
+            Map other = send ? _subscribes : _sends;
+            Iterator i = (other.size() >= decisions.size() ? other : decisions).values().iterator();
+            i.next();
+            i.remove();
+        }
+    }
+
+
+    synchronized void clear() {
+        _sends.clear();
+        _subscribes.clear();
+        _generation++;
+    }
+
+
+    synchronized int size() {
+        return _sends.size() + _subscribes.size();
+    }
+}
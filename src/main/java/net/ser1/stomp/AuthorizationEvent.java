@@ -0,0 +1,31 @@
+package net.ser1.stomp;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JFR event: a call into the Server's Authenticator.
+ *
+ * @see Tracing
+ */
+@Name("net.ser1.stomp.Authorization")
+@Label("Authorization")
+@Category({"Gozirra", "Frames"})
+@Description("A call into the Server's Authenticator")
+@Threshold("1 ms")
+@StackTrace(false)
+final class AuthorizationEvent extends Event {
+    @Label("Action")
+    String action;
+
+    @Label("Destination")
+    String destination;
+
+    @Label("Granted")
+    boolean granted;
+}
@@ -0,0 +1,390 @@
+package net.ser1.stomp;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The messages waiting for a consumer on a queue destination, oldest
+ * first.  They are held in memory until the MemoryManager pages the backlog
+ * out; then they are stored through the server's Queue, under a name of
+ * their own, and read back a page at a time as consumers drain them.
+ * <p/>
+ * Each priority level is a sub-queue of its own, and consumers get the
+ * highest priority first; see PriorityIndex.  While any of a level is on
+ * disk, new messages at that level go to disk behind it, so that the order
+ * within a level is kept.
+ * <p/>
+ * Subscribers may take messages on credit: then each is given no more
+ * messages than it has been granted, and the rest wait here.
+ * <p/>
+ * All methods are synchronized on the backlog.
+ */
+final class Backlog implements MemoryManager.Pageable {
+    /**
+     * Messages read back from disk at a time.
+     */
+    static final int PAGE = 256;
+    private static final String CURSOR = "backlog";
+
+    private final String _destination;
+    private final Queue _store;
+    private final MemoryManager _memory;
+    private final Level[] _levels = new Level[PriorityIndex.LEVELS];
+    private final PriorityIndex _index;
+    private volatile long _bytes = 0;
+    private volatile long _last_used = System.currentTimeMillis();
+    private int _next_consumer = 0;
+    /**
+     * The ring groups are assigned by, and the subscribers it was built
+     * from.
+     */
+    private ConsistentHash _ring;
+    private Shard.Subscribers _ring_members;
+    /**
+     * The messages each subscriber on credit may still be given.  Others
+     * are absent.
+     */
+    private final Map _credits = new IdentityHashMap();
+    private boolean _draining = false;
+
+
+    private static final class Entry {
+        final Message message;
+        final long size;
+
+        Entry(Message message) {
+            this.message = message;
+            size = size(message.headers(), message.body());
+        }
+    }
+
+
+    /**
+     * The messages of one priority, in memory followed by those on disk.
+     */
+    private static final class Level {
+        final LinkedList messages = new LinkedList();
+        final String paged_name;
+        /**
+         * The offsets, in the store, of the messages on disk; from == to
+         * when there are none.  -1 until the first page out.
+         */
+        long paged_from = -1;
+        long paged_to = -1;
+
+        Level(String paged_name) {
+            this.paged_name = paged_name;
+        }
+
+        boolean paged() {
+            return paged_from < paged_to;
+        }
+
+        boolean isEmpty() {
+            return messages.isEmpty() && !paged();
+        }
+    }
+
+
+    Backlog(String destination, Queue store, MemoryManager memory, int starvation_guard) {
+        _destination = destination;
+        _store = store;
+        _memory = memory;
+        _index = new PriorityIndex(starvation_guard);
+        memory.register(this);
+    }
+
+
+    /**
+     * Estimates the memory held by a message.
+     */
+    static long size(Map headers, String body) {
+        long chars = body == null ? 0 : body.length();
+        if (headers != null) {
+            for (Iterator i = headers.entrySet().iterator(); i.hasNext();) {
+                Map.Entry e = (Map.Entry) i.next();
+                chars += ((String) e.getKey()).length() + String.valueOf(e.getValue()).length();
+            }
+        }
+        return 2 * chars + 64;
+    }
+
+
+    synchronized void setStarvationGuard(int guard) {
+        _index.setGuard(guard);
+    }
+
+
+    /**
+     * Adds a message to the end of its priority's sub-queue.  The headers
+     * are copied.
+     */
+    synchronized void add(Map headers, String body) throws IOException {
+        _last_used = System.currentTimeMillis();
+        int priority = PriorityIndex.priority(headers);
+        Level level = _levels[priority];
+        if (level == null) {
+            level = new Level("\u0000paged" + priority + _destination);
+            _levels[priority] = level;
+        }
+        Map copy = new HashMap(headers);
+        // Out of memory, the level goes to disk as a whole, so that what it
+        // already holds stays ahead of the new message
+        if (!level.paged() && _memory.full()) pageOut(level);
+        if (level.paged() || _memory.full()) {
+            write(level, copy, body);
+        } else {
+            Entry e = new Entry(new Message(Command.message, copy, body));
+            level.messages.add(e);
+            _bytes += e.size;
+            _memory.add(e.size);
+        }
+        _index.set(priority);
+    }
+
+
+    synchronized boolean isEmpty() {
+        return _index.isEmpty();
+    }
+
+
+    /**
+     * The number of messages waiting, in memory and on disk.
+     */
+    synchronized long size() {
+        long size = 0;
+        for (int i = 0; i < _levels.length; i++) {
+            Level level = _levels[i];
+            if (level == null) continue;
+            size += level.messages.size();
+            if (level.paged()) size += level.paged_to - level.paged_from;
+        }
+        return size;
+    }
+
+
+    /**
+     * Returns the message to be taken next without taking it, or null if
+     * there is none.
+     */
+    synchronized Message peek() throws IOException {
+        int priority = _index.next();
+        if (priority < 0) return null;
+        return ((Entry) level(priority).messages.getFirst()).message;
+    }
+
+
+    /**
+     * Takes the message with the highest priority, or returns null if there
+     * is none.
+     */
+    synchronized Message poll() throws IOException {
+        _last_used = System.currentTimeMillis();
+        int priority = _index.next();
+        if (priority < 0) return null;
+        Level level = level(priority);
+        Entry e = (Entry) level.messages.removeFirst();
+        _bytes -= e.size;
+        _memory.remove(e.size);
+        _index.taken(priority, level.isEmpty());
+        return e.message;
+    }
+
+
+    /**
+     * Returns a level that has messages, with its first page in memory.
+     */
+    private Level level(int priority) throws IOException {
+        Level level = _levels[priority];
+        if (level.messages.isEmpty()) pageIn(level);
+        return level;
+    }
+
+
+    /**
+     * Puts a subscriber on credit, with an initial grant.
+     */
+    synchronized void limit(Listener l, long credit) {
+        _credits.put(l, new long[]{credit});
+    }
+
+
+    /**
+     * Grants a subscriber on credit more messages.
+     *
+     * @return false if the subscriber isn't on credit
+     */
+    synchronized boolean grant(Listener l, long credit) {
+        long[] c = (long[]) _credits.get(l);
+        if (c == null) return false;
+        c[0] = c[0] + credit < 0 ? Long.MAX_VALUE : c[0] + credit;
+        return true;
+    }
+
+
+    /**
+     * Notes that the backlog is being drained.  A subscriber given a
+     * message may grant credit on the same thread, asking for a drain
+     * while one is in progress further up the stack; that one carries on
+     * instead.
+     *
+     * @return false if the backlog is being drained already
+     */
+    synchronized boolean startDrain() {
+        if (_draining) return false;
+        _draining = true;
+        return true;
+    }
+
+
+    synchronized void endDrain() {
+        _draining = false;
+    }
+
+
+    /**
+     * Takes a subscriber off credit, when it leaves.
+     */
+    synchronized void forget(Listener l) {
+        _credits.remove(l);
+    }
+
+
+    /**
+     * Picks the subscriber to give a message to, and takes one of its
+     * credits if it is on credit.  A message in a group goes to the
+     * subscriber the group hashes to; others go to the next subscriber in
+     * turn.  Either way, subscribers whose selectors reject the message are
+     * passed over, as are those out of credit, but for the subscriber of a
+     * group: the message waits until it has credit, to stay in order.
+     *
+     * @return the subscriber, or null if none will take the message
+     */
+    synchronized Listener consumer(Shard.Subscribers subscribers, Map headers) {
+        List all = subscribers.all;
+        String group = (String) headers.get(ConsistentHash.HEADER);
+        if (group != null && !all.isEmpty()) {
+            if (_ring_members != subscribers) {
+                _ring = new ConsistentHash(all);
+                _ring_members = subscribers;
+            }
+            int start = _ring.find(group);
+            for (int i = 0; i < _ring.size(); i++) {
+                Listener l = (Listener) _ring.owner(start + i);
+                Selector selector = subscribers.selector(l);
+                if (selector == null || selector.matches(headers)) return take(l) ? l : null;
+            }
+            return null;
+        }
+        for (int i = 0; i < all.size(); i++) {
+            Listener l = (Listener) all.get((_next_consumer + i) % all.size());
+            Selector selector = subscribers.selector(l);
+            if ((selector == null || selector.matches(headers)) && take(l)) {
+                _next_consumer = (_next_consumer + i + 1) % all.size();
+                return l;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Takes one credit from a subscriber, if it is on credit.
+     *
+     * @return false if it is out of credit
+     */
+    private boolean take(Listener l) {
+        if (_credits.isEmpty()) return true;
+        long[] c = (long[]) _credits.get(l);
+        if (c == null) return true;
+        if (c[0] == 0) return false;
+        c[0]--;
+        return true;
+    }
+
+
+    public long bytes() {
+        return _bytes;
+    }
+
+
+    public long lastUsed() {
+        return _last_used;
+    }
+
+
+    public synchronized long pageOut() {
+        long freed = 0;
+        for (int i = 0; i < _levels.length; i++) {
+            if (_levels[i] != null) freed += pageOut(_levels[i]);
+        }
+        return freed;
+    }
+
+
+    /**
+     * Writes the messages a level holds in memory to disk.  Nothing is
+     * written if part of the level is on disk already: then what is in
+     * memory is the page read back for the consumers, which must stay ahead
+     * of it.
+     */
+    private long pageOut(Level level) {
+        if (level.paged() || level.messages.isEmpty()) return 0;
+        long freed = 0;
+        try {
+            for (Iterator i = level.messages.iterator(); i.hasNext();) {
+                Entry e = (Entry) i.next();
+                write(level, new HashMap(e.message.headers()), e.message.body());
+                freed += e.size;
+            }
+        } catch (IOException e) {
+            // Everything stays in memory; skip whatever was written
+            level.paged_from = level.paged_to;
+            return 0;
+        }
+        level.messages.clear();
+        _bytes -= freed;
+        _memory.remove(freed);
+        return freed;
+    }
+
+
+    private void write(Level level, Map headers, String body) throws IOException {
+        if (level.paged_from < 0) {
+            // Whatever an earlier run left behind is discarded
+            level.paged_from = level.paged_to = _store.next(level.paged_name);
+            _store.cursor(level.paged_name, CURSOR, level.paged_from);
+        }
+        _store.append(level.paged_name, headers, body);
+        level.paged_to++;
+    }
+
+
+    private void pageIn(final Level level) throws IOException {
+        final long[] bytes = new long[1];
+        level.paged_from = _store.read(level.paged_name, level.paged_from,
+                Math.min(level.paged_to, level.paged_from + PAGE), new Listener() {
+                    public void message(Map headers, String body) {
+                        headers.remove(Queue.OFFSET);
+                        headers.remove(Queue.TIMESTAMP);
+                        Entry e = new Entry(new Message(Command.message, headers, body));
+                        level.messages.add(e);
+                        bytes[0] += e.size;
+                    }
+                });
+        _bytes += bytes[0];
+        _memory.add(bytes[0]);
+        // Lets the store discard what has been read back
+        _store.cursor(level.paged_name, CURSOR, level.paged_from);
+    }
+
+
+    public String toString() {
+        return _destination;
+    }
+}
@@ -0,0 +1,177 @@
+package net.ser1.stomp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Batch frames: one SEND or MESSAGE carrying many messages, so that the
+ * command line, the frame's own headers, the trip through the server and
+ * the authorization of tiny messages are paid once per batch.
+ * <p/>
+ * A client asks for batches by sending <code>batch:true</code> in its
+ * CONNECT headers; the server agrees by echoing it in CONNECTED.  From
+ * then on the client may send, and will be sent, frames with a
+ * <code>batch:N</code> header whose body is N messages, each written as
+ * its length, a newline, and then the message itself: its header lines,
+ * a blank line, and its body.  The length counts the characters of the
+ * message.  A message's headers are added to those of the frame, which
+ * makes a header shared by every message, such as the destination,
+ * cheapest on the frame.
+ * <p/>
+ * On connections that didn't agree to batches, a batch header is just
+ * another application header.
+ */
+final class Batch {
+    static final String HEADER = "batch";
+    private static final String RECEIPT = "receipt";
+
+    private static final ThreadLocal COLLECTOR = new ThreadLocal();
+
+    private Batch() {
+    }
+
+
+    /**
+     * True if the headers (of a CONNECT or CONNECTED) ask for batches.
+     */
+    static boolean requested(Map h) {
+        return h != null && "true".equals(h.get(HEADER));
+    }
+
+
+    /**
+     * True if a SEND or MESSAGE is a batch, on a connection that agreed to
+     * batches.
+     */
+    static boolean batched(Map h) {
+        return h != null && h.get(HEADER) != null && !requested(h);
+    }
+
+
+    /**
+     * Writes messages into the body of a batch frame.
+     */
+    static String encode(List messages) {
+        StringBuilder body = new StringBuilder();
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < messages.size(); i++) {
+            Message m = (Message) messages.get(i);
+            message.setLength(0);
+            if (m.headers() != null) {
+                for (Iterator j = m.headers().entrySet().iterator(); j.hasNext();) {
+                    Map.Entry e = (Map.Entry) j.next();
+                    message.append(e.getKey()).append(':').append(e.getValue()).append('\n');
+                }
+            }
+            message.append('\n');
+            if (m.body() != null) message.append(m.body());
+            body.append(message.length()).append('\n').append(message);
+        }
+        return body.toString();
+    }
+
+
+    /**
+     * Reads the messages out of a batch frame.  Each gets the headers of
+     * the frame, but for the batch count and receipt, followed by its own.
+     *
+     * @throws IllegalArgumentException if the body is not a batch of as
+     *                                  many messages as the frame says
+     */
+    static List decode(Command c, Map frame_headers, String body) {
+        int count;
+        try {
+            count = Integer.parseInt(((String) frame_headers.get(HEADER)).trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad batch count " + frame_headers.get(HEADER));
+        }
+        Map common = new HashMap(frame_headers);
+        common.remove(HEADER);
+        common.remove(RECEIPT);
+        List messages = new ArrayList(Math.max(0, Math.min(count, 4096)));
+        int pos = 0;
+        if (body == null) body = "";
+        for (int n = 0; n < count; n++) {
+            int newline = body.indexOf('\n', pos);
+            if (newline < 0) throw new IllegalArgumentException("Batch ends after " + n + " of " + count + " messages");
+            int end;
+            try {
+                end = newline + 1 + Integer.parseInt(body.substring(pos, newline));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad length in batch message " + n);
+            }
+            if (end > body.length() || end <= newline) throw new IllegalArgumentException("Batch message " + n + " is cut short");
+            Map h = new HashMap(common);
+            int line = newline + 1;
+            while (true) {
+                int eol = body.indexOf('\n', line);
+                if (eol < 0 || eol >= end) throw new IllegalArgumentException("Batch message " + n + " has no body");
+                if (eol == line) break;
+                int colon = body.indexOf(':', line);
+                if (colon < 0 || colon > eol) throw new IllegalArgumentException("Bad header in batch message " + n);
+                h.put(body.substring(line, colon).trim(), body.substring(colon + 1, eol).trim());
+                line = eol + 1;
+            }
+            messages.add(new Message(c, h, body.substring(line + 1, end)));
+            pos = end;
+        }
+        return messages;
+    }
+
+
+    /**
+     * Holds back, per connection, the messages delivered on this thread to
+     * connections that take batches, so that each gets one frame.
+     */
+    static final class Collector {
+        private final Map _held = new LinkedHashMap();
+
+        void add(Object connection, Map h, String b) {
+            List messages = (List) _held.get(connection);
+            if (messages == null) {
+                messages = new ArrayList();
+                _held.put(connection, messages);
+            }
+            messages.add(new Message(Command.message, new HashMap(h), b));
+        }
+
+        /**
+         * Connections, each mapped to the messages held for it, in the
+         * order they were delivered.
+         */
+        Map held() {
+            return _held;
+        }
+    }
+
+
+    /**
+     * Starts holding back deliveries on this thread.
+     */
+    static Collector collect() {
+        Collector c = new Collector();
+        COLLECTOR.set(c);
+        return c;
+    }
+
+
+    /**
+     * Stops holding back deliveries on this thread.
+     */
+    static void stopCollecting() {
+        COLLECTOR.remove();
+    }
+
+
+    /**
+     * Returns the collector for deliveries on this thread, or null if they
+     * aren't being held back.
+     */
+    static Collector collecting() {
+        return (Collector) COLLECTOR.get();
+    }
+}
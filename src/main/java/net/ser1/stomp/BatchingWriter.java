@@ -0,0 +1,109 @@
+package net.ser1.stomp;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes frames to a stream from a thread of its own, coalescing whatever
+ * has queued up since the last write into one flush.  Under load this
+ * turns many small socket writes into a few large ones, at the price of
+ * one thread hand-off per frame.
+ * <p/>
+ * Queued frames are written highest priority first; see PriorityIndex.
+ * <p/>
+ * Headers handed to write() are owned by the writer from then on; callers
+ * must not pass maps they, or the FramePool, will reuse.
+ */
+class BatchingWriter extends Thread {
+    private static final int MAX_BATCH = 256;
+
+    private final Object _lock = new Object();
+    private final ArrayDeque[] _levels = new ArrayDeque[PriorityIndex.LEVELS];
+    private final PriorityIndex _index;
+    private final OutputStream _output;
+    private final Runnable _on_failure;
+    private boolean _closed = false;
+
+
+    /**
+     * @param output     the stream to write to
+     * @param name       the name of the writer thread
+     * @param on_failure run, once, if writing fails
+     * @param guard      the starvation guard of the priority levels
+     */
+    BatchingWriter(OutputStream output, String name, Runnable on_failure, int guard) {
+        super(name);
+        setDaemon(true);
+        _output = new BufferedOutputStream(output, 64 * 1024);
+        _on_failure = on_failure;
+        _index = new PriorityIndex(guard);
+        for (int i = 0; i < _levels.length; i++) _levels[i] = new ArrayDeque();
+    }
+
+
+    /**
+     * Queues a frame for writing.
+     */
+    void write(Command c, Map<String, String> h, String b) {
+        int priority = PriorityIndex.priority(h);
+        synchronized (_lock) {
+            if (_closed) return;
+            _levels[priority].add(new Message(c, h, b));
+            _index.set(priority);
+            _lock.notify();
+        }
+    }
+
+
+    /**
+     * Stops the writer once the frames already queued have been written.
+     */
+    void close() {
+        synchronized (_lock) {
+            _closed = true;
+            _lock.notify();
+        }
+    }
+
+
+    public void run() {
+        List<Message> batch = new ArrayList<Message>(MAX_BATCH);
+        try {
+            while (true) {
+                synchronized (_lock) {
+                    while (_index.isEmpty() && !_closed) {
+                        try {
+                            _lock.wait();
+                        } catch (InterruptedException e) {
+                            // Only close() stops the writer
+                        }
+                    }
+                    if (_index.isEmpty()) break;
+                    while (batch.size() < MAX_BATCH && !_index.isEmpty()) {
+                        int priority = _index.next();
+                        batch.add((Message) _levels[priority].poll());
+                        _index.taken(priority, _levels[priority].isEmpty());
+                    }
+                }
+                for (int i = 0; i < batch.size(); i++) {
+                    Message m = batch.get(i);
+                    Transmitter.transmit(m.command(), m.headers(), m.body(), _output);
+                }
+                _output.flush();
+                batch.clear();
+            }
+        } catch (IOException e) {
+            synchronized (_lock) {
+                _closed = true;
+                for (int i = 0; i < _levels.length; i++) _levels[i].clear();
+                _index.clear();
+            }
+            _on_failure.run();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package net.ser1.stomp;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Saves, in one compact binary file, the state a server would otherwise
+ * lose or have to rebuild when it restarts: the retained messages, and the
+ * extent of every FileQueue segment together with the durable cursors.
+ * <p/>
+ * The file is written beside itself, forced to disk and then moved into
+ * place, so a crash while writing leaves the previous checkpoint.  It ends
+ * with a CRC32 of the rest, and nothing is restored from a file that
+ * doesn't match it.  It is mapped into memory to be read.  Retained messages are restored at once; the queue's state
+ * is only used as each destination's log is opened, so restarting takes
+ * the same time however large the logs are.
+ */
+final class Checkpoint {
+    private static final int MAGIC = 0x475a4350;
+    private static final int VERSION = 2;
+    /**
+     * The magic number, version and time, then the checksum at the end.
+     */
+    private static final int OVERHEAD = 4 + 4 + 8 + 8;
+
+
+    private Checkpoint() {
+    }
+
+
+    /**
+     * @param queue the queue to save the state of, or null
+     */
+    static synchronized void write(File file, LastValueCache retained, FileQueue queue) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream file_out = new FileOutputStream(tmp);
+        CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file_out), new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            retained.checkpoint(out);
+            out.writeBoolean(queue != null);
+            if (queue != null) queue.checkpoint(out);
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            // Or a power cut could leave the new name on an empty file
+            file_out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(file);
+    }
+
+
+    /**
+     * Forces a file's new name to disk, where the platform allows it.
+     */
+    private static void syncDirectory(File file) {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory == null) return;
+        try {
+            FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // Not every platform can open a directory; the rename is still
+            // atomic
+        }
+    }
+
+
+    /**
+     * Restores the state saved in a checkpoint.  A file that isn't a whole
+     * checkpoint is refused before anything is restored from it.
+     *
+     * @param queue the queue to restore the state of, or null
+     * @return false if there is no checkpoint
+     * @throws IOException if the file can't be read, or isn't a checkpoint
+     */
+    static boolean read(File file, LastValueCache retained, FileQueue queue) throws IOException {
+        if (!file.exists()) return false;
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.remaining() < OVERHEAD || in.getInt() != MAGIC) throw new IOException("Not a checkpoint: " + file);
+            if (in.getInt() != VERSION) throw new IOException("Unknown checkpoint version in " + file);
+            int end = in.limit() - 8;
+            CRC32 crc = new CRC32();
+            ByteBuffer body = in.duplicate();
+            body.position(0);
+            body.limit(end);
+            crc.update(body);
+            if (crc.getValue() != in.getLong(end)) throw new IOException("Damaged checkpoint " + file);
+            in.limit(end);
+            long time = in.getLong();
+            retained.restore(in);
+            if (in.get() != 0 && queue != null) queue.restore(in, time);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated checkpoint " + file);
+        } finally {
+            channel.close();
+        }
+        return true;
+    }
+
+
+    /**
+     * Writes a string, or null, as its length and UTF-8 bytes.
+     */
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+
+    static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -31,6 +32,11 @@ public class Client extends Stomp implements MessageReceiver {
 	private OutputStream output;
 	private InputStream input;
 	private Socket socket;
+	private ClientStats stats;
+	private boolean compressionRequested;
+	private volatile Compression compression;
+	private final Object writeLock = new Object();
+	private volatile boolean failed = false;
 	private static final String ACCEPT_VERSION = "accept-version";
 	private static final String VERSION_NUMBER = "1.1";
 	private static final String HOST = "host";
@@ -57,7 +63,36 @@ public class Client extends Stomp implements MessageReceiver {
 	 * @see Stomp
 	 */
 	public Client(String server, int port, String login, String pass) throws IOException, LoginException {
+		this(server, port, login, pass, null);
+	}
+
+	/**
+	 * Connects to a server, sending additional CONNECT headers.
+	 * <p/>
+	 * Example, asking the server to compress large bodies:
+	 * 
+	 * <pre>
+	 * Map&lt;String, String&gt; h = new HashMap&lt;String, String&gt;();
+	 * h.put(&quot;compression&quot;, &quot;deflate&quot;);
+	 * Client c = new Client(&quot;host.com&quot;, 61626, &quot;ser&quot;, &quot;ser&quot;, h);
+	 * </pre>
+	 * 
+	 * If the server agrees to compression, bodies of 1024 characters or more
+	 * are deflated in both directions; this is invisible to listeners.
+	 * 
+	 * @param server
+	 *            The IP or host name of the server
+	 * @param port
+	 *            The port the server is listening on
+	 * @param headers
+	 *            Extra CONNECT headers; may be null
+	 * @see Stomp
+	 */
+	public Client(String server, int port, String login, String pass, Map<String, String> headers)
+			throws IOException, LoginException {
 		socket = new Socket(server, port);
+		if (Statistics.ENABLED)
+			stats = new ClientStats(this);
 		input = socket.getInputStream();
 		output = socket.getOutputStream();
 
@@ -71,6 +106,9 @@ public class Client extends Stomp implements MessageReceiver {
 		header.put(LOGIN, login);
 		header.put(PASSCODE, pass);
 		header.put(HEARTBEAT, HEARTBEAT_CONFIG);
+		if (headers != null)
+			header.putAll(headers);
+		compressionRequested = Compression.requested(header);
 
 		transmit(Command.connect, header, null);
 		try {
@@ -78,8 +116,11 @@ public class Client extends Stomp implements MessageReceiver {
 			while (!isConnected() && ((error = nextError()) == null)) {
 				Thread.sleep(100);
 			}
-			if (error != null)
+			if (error != null) {
+				if (stats != null)
+					stats.unregister();
 				throw new LoginException(error);
+			}
 		} catch (InterruptedException e) {
 		}
 	}
@@ -88,10 +129,28 @@ public class Client extends Stomp implements MessageReceiver {
 		return socket.isClosed();
 	}
 
+	/**
+	 * True while the connection is usable: connected, its socket open, and
+	 * no read or write on it having failed. The reader fails the client as
+	 * soon as the server closes the connection or a read fails.
+	 */
+	public boolean isAlive() {
+		return isConnected() && !failed && !socket.isClosed();
+	}
+
+	/**
+	 * Disconnects from the server. Also called by the reader when the server
+	 * closes the connection, in which case the client fails.
+	 */
 	public void disconnect(Map<String, String> header) {
 		if (!isConnected())
 			return;
-		transmit(Command.disconnect, header, null);
+		if (Thread.currentThread() == listener) {
+			// No one left to tell
+			failed = true;
+		} else {
+			transmit(Command.disconnect, header, null);
+		}
 		listener.interrupt();
 		Thread.yield();
 		try {
@@ -107,15 +166,74 @@ public class Client extends Stomp implements MessageReceiver {
 		} catch (IOException e) {/* We ignore these. */
 		}
 		connected = false;
+		if (stats != null)
+			stats.unregister();
 	}
 
 	/**
-	 * Transmit a message to the server
+	 * Returns the statistics of this client, or null if statistics are
+	 * disabled. The same statistics are registered with the platform MBean
+	 * server while the client is connected.
+	 */
+	public ClientStatsMXBean getStatistics() {
+		return stats;
+	}
+
+	public void receive(Command command, Map<String, String> headers, String body) {
+		if (stats != null)
+			stats.received(command, body);
+		if (command == Command.connected && Batch.requested(headers))
+			batching = true;
+		if (command == Command.connected && compressionRequested && Compression.requested(headers)) {
+			compression = new Compression(Compression.DEFAULT_THRESHOLD);
+		} else if (Compression.compressed(headers)) {
+			if (compression == null) {
+				received(Command.error, null, "Compressed body without negotiating compression");
+				return;
+			}
+			try {
+				body = compression.decompress(body);
+			} catch (IllegalArgumentException e) {
+				received(Command.error, null, e.getMessage());
+				return;
+			}
+			headers.remove(Compression.ENCODING);
+		}
+		received(command, headers, body);
+	}
+
+	/**
+	 * Handles a frame once it has been decompressed. Subclasses may take
+	 * frames here rather than in receive.
+	 */
+	protected void received(Command command, Map<String, String> headers, String body) {
+		super.receive(command, headers, body);
+	}
+
+	/**
+	 * Transmit a message to the server. Frames from different threads are
+	 * written whole, one after another.
 	 */
 	public void transmit(Command command, Map<String, String> header, String body) {
+		Compression codec = compression;
+		if (codec != null && command == Command.send && codec.worthCompressing(body)) {
+			String compressed = codec.compress(body);
+			if (compressed != null) {
+				// Marked in a copy, as the caller may reuse or share its
+				// headers
+				header = header == null ? new HashMap<String, String>() : new HashMap<String, String>(header);
+				header.put(Compression.ENCODING, Compression.DEFLATE);
+				body = compressed;
+			}
+		}
+		if (stats != null)
+			stats.sent(command, body);
 		try {
-			Transmitter.transmit(command, header, body, output);
+			synchronized (writeLock) {
+				Transmitter.transmit(command, header, body, output);
+			}
 		} catch (Exception e) {
+			failed = true;
 			receive(Command.error, null, e.getMessage());
 		}
 	}
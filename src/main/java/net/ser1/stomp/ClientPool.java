@@ -0,0 +1,390 @@
+package net.ser1.stomp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.login.LoginException;
+
+/**
+ * A thread-safe client that spreads its traffic over several connections to
+ * one server, for producers on many threads.
+ * <p/>
+ * Sends go to a connection picked either by hashing the destination, which
+ * keeps each destination's messages in order, or as the connection with the
+ * fewest sends in progress. Each connection writes one frame at a time, so
+ * threads only wait on others using the same connection. Subscriptions go
+ * to the connection their destination hashes to.
+ * <p/>
+ * Every second a timer checks the connections; one that the server has
+ * closed, or on which a read or write has failed, is replaced by a new
+ * connection, which takes over its subscriptions and error listeners.
+ * Until then, sends go to the remaining connections.
+ * <p/>
+ * Transactions belong to a single connection, so the pool has none; use a
+ * Client for them.
+ * <p/>
+ * Example:
+ *
+ * <pre>
+ *   ClientPool pool = new ClientPool( "localhost", 61626, "ser", "ser", 4 );
+ *   // from any thread
+ *   pool.send( "/my/channel", "Some message" );
+ *   // ...
+ *   pool.disconnect();
+ * </pre>
+ */
+public class ClientPool {
+	/**
+	 * Sends to a destination always use the same connection, while it
+	 * lives.
+	 */
+	public static final int BY_DESTINATION = 0;
+	/**
+	 * Sends use the connection with the fewest sends in progress.
+	 */
+	public static final int LEAST_LOADED = 1;
+	public static final long DEFAULT_CHECK_INTERVAL = 1000;
+
+	private final String server;
+	private final int port;
+	private final String login;
+	private final String pass;
+	private final Map<String, String> headers;
+	private final int routing;
+	private final Connection[] connections;
+	/**
+	 * Subscriptions and error listeners, to be carried over to replacement
+	 * connections. Guarded by the pool.
+	 */
+	private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+	private final List<Listener> errorListeners = new ArrayList<Listener>();
+	private final AtomicInteger nextConnection = new AtomicInteger();
+	private final AtomicInteger replacements = new AtomicInteger();
+	private final Timer checker;
+	private volatile boolean closed = false;
+
+	private static final class Connection {
+		volatile Client client;
+		/**
+		 * Sends in progress.
+		 */
+		final AtomicInteger load = new AtomicInteger();
+
+		Connection(Client client) {
+			this.client = client;
+		}
+	}
+
+	private static final class Subscription {
+		final String destination;
+		final Listener listener;
+		final Map<String, String> headers;
+		final Connection connection;
+
+		Subscription(String destination, Listener listener, Map<String, String> headers, Connection connection) {
+			this.destination = destination;
+			this.listener = listener;
+			this.headers = headers;
+			this.connection = connection;
+		}
+	}
+
+	/**
+	 * Opens <code>size</code> connections to a server, routing sends by
+	 * destination.
+	 */
+	public ClientPool(String server, int port, String login, String pass, int size) throws IOException,
+			LoginException {
+		this(server, port, login, pass, null, size, BY_DESTINATION);
+	}
+
+	/**
+	 * Opens <code>size</code> connections to a server.
+	 *
+	 * @param headers
+	 *            Extra CONNECT headers for every connection; may be null
+	 * @param routing
+	 *            BY_DESTINATION or LEAST_LOADED
+	 */
+	public ClientPool(String server, int port, String login, String pass, Map<String, String> headers, int size,
+			int routing) throws IOException, LoginException {
+		if (size < 1)
+			throw new IllegalArgumentException("A pool needs at least one connection");
+		if (routing != BY_DESTINATION && routing != LEAST_LOADED)
+			throw new IllegalArgumentException("Unknown routing " + routing);
+		this.server = server;
+		this.port = port;
+		this.login = login;
+		this.pass = pass;
+		this.headers = headers;
+		this.routing = routing;
+		connections = new Connection[size];
+		try {
+			for (int i = 0; i < size; i++)
+				connections[i] = new Connection(connect());
+		} catch (IOException e) {
+			disconnectAll();
+			throw e;
+		} catch (LoginException e) {
+			disconnectAll();
+			throw e;
+		}
+		checker = new Timer("gozirra-pool-" + server + ":" + port, true);
+		checker.schedule(new TimerTask() {
+			public void run() {
+				check();
+			}
+		}, DEFAULT_CHECK_INTERVAL, DEFAULT_CHECK_INTERVAL);
+	}
+
+	private Client connect() throws IOException, LoginException {
+		return new Client(server, port, login, pass, headers == null ? null : new HashMap<String, String>(headers));
+	}
+
+	/**
+	 * The number of connections.
+	 */
+	public int size() {
+		return connections.length;
+	}
+
+	/**
+	 * The number of connections that are usable now.
+	 */
+	public int alive() {
+		int alive = 0;
+		for (int i = 0; i < connections.length; i++) {
+			if (connections[i].client.isAlive())
+				alive++;
+		}
+		return alive;
+	}
+
+	/**
+	 * The number of dead connections replaced so far.
+	 */
+	public int getReplacements() {
+		return replacements.get();
+	}
+
+	public void send(String dest, String mesg) {
+		send(dest, mesg, null);
+	}
+
+	/**
+	 * Sends a message.
+	 *
+	 * @throws IllegalStateException
+	 *             if no connection is alive
+	 */
+	public void send(String dest, String mesg, Map<String, String> header) {
+		Connection c = pick(dest);
+		c.load.incrementAndGet();
+		try {
+			c.client.send(dest, mesg, header);
+		} finally {
+			c.load.decrementAndGet();
+		}
+	}
+
+	public void sendW(String dest, String mesg) throws InterruptedException {
+		sendW(dest, mesg, null);
+	}
+
+	/**
+	 * Sends a message and waits for the server to receipt it. The wait counts
+	 * toward the connection's load.
+	 *
+	 * @throws IllegalStateException
+	 *             if no connection is alive
+	 */
+	public void sendW(String dest, String mesg, Map<String, String> header) throws InterruptedException {
+		Connection c = pick(dest);
+		c.load.incrementAndGet();
+		try {
+			c.client.sendW(dest, mesg, header);
+		} finally {
+			c.load.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Sends messages to one destination together; see Stomp.sendBatch.
+	 *
+	 * @throws IllegalStateException
+	 *             if no connection is alive
+	 */
+	public void sendBatch(String dest, List<String> mesgs) {
+		Connection c = pick(dest);
+		c.load.incrementAndGet();
+		try {
+			c.client.sendBatch(dest, mesgs);
+		} finally {
+			c.load.decrementAndGet();
+		}
+	}
+
+	public void subscribe(String name, Listener alistener) {
+		subscribe(name, alistener, null);
+	}
+
+	/**
+	 * Subscribes a listener on the connection the destination hashes to. If
+	 * that connection is replaced, the subscription moves to the new one.
+	 */
+	public void subscribe(String name, Listener alistener, Map<String, String> header) {
+		Connection c = connections[home(name)];
+		Subscription s = new Subscription(name, alistener, header == null ? null
+				: new HashMap<String, String>(header), c);
+		synchronized (this) {
+			subscriptions.add(s);
+			c.client.subscribe(name, alistener, copy(s.headers));
+		}
+	}
+
+	/**
+	 * Unsubscribes a single listener from a destination.
+	 */
+	public void unsubscribe(String name, Listener alistener) {
+		synchronized (this) {
+			for (Iterator<Subscription> i = subscriptions.iterator(); i.hasNext();) {
+				Subscription s = i.next();
+				if (s.destination.equals(name) && s.listener == alistener) {
+					i.remove();
+					s.connection.client.unsubscribe(name, alistener);
+					return;
+				}
+			}
+		}
+	}
+
+	public void addErrorListener(Listener alistener) {
+		synchronized (this) {
+			errorListeners.add(alistener);
+			for (int i = 0; i < connections.length; i++)
+				connections[i].client.addErrorListener(alistener);
+		}
+	}
+
+	public void delErrorListener(Listener alistener) {
+		synchronized (this) {
+			errorListeners.remove(alistener);
+			for (int i = 0; i < connections.length; i++)
+				connections[i].client.delErrorListener(alistener);
+		}
+	}
+
+	/**
+	 * Disconnects every connection and stops replacing them.
+	 */
+	public void disconnect() {
+		closed = true;
+		checker.cancel();
+		synchronized (this) {
+			disconnectAll();
+		}
+	}
+
+	private void disconnectAll() {
+		for (int i = 0; i < connections.length; i++) {
+			if (connections[i] != null)
+				quietlyDisconnect(connections[i].client);
+		}
+	}
+
+	private static void quietlyDisconnect(Client client) {
+		try {
+			client.disconnect();
+		} catch (Exception e) {/* We ignore these. */
+		}
+	}
+
+	/**
+	 * The index of the connection a destination hashes to.
+	 */
+	private int home(String dest) {
+		return (dest == null ? 0 : dest.hashCode() & 0x7fffffff) % connections.length;
+	}
+
+	/**
+	 * Picks a live connection for a send.
+	 */
+	private Connection pick(String dest) {
+		int n = connections.length;
+		if (routing == BY_DESTINATION) {
+			// A dead home connection passes its destinations to the next live one
+			int home = home(dest);
+			for (int i = 0; i < n; i++) {
+				Connection c = connections[(home + i) % n];
+				if (c.client.isAlive())
+					return c;
+			}
+		} else {
+			// Ties go round, so that an idle pool uses every connection
+			int start = (nextConnection.getAndIncrement() & 0x7fffffff) % n;
+			Connection best = null;
+			int least = Integer.MAX_VALUE;
+			for (int i = 0; i < n; i++) {
+				Connection c = connections[(start + i) % n];
+				int load = c.load.get();
+				if (load < least && c.client.isAlive()) {
+					best = c;
+					least = load;
+				}
+			}
+			if (best != null)
+				return best;
+		}
+		throw new IllegalStateException("No connection to " + server + ":" + port + " is alive");
+	}
+
+	/**
+	 * Replaces the connections that have died. Ones that can't be replaced
+	 * yet are tried again at the next check.
+	 */
+	void check() {
+		for (int i = 0; i < connections.length && !closed; i++) {
+			Connection c = connections[i];
+			if (c.client.isAlive())
+				continue;
+			Client replacement;
+			try {
+				replacement = connect();
+			} catch (Exception e) {
+				continue;
+			}
+			Client old;
+			synchronized (this) {
+				if (closed) {
+					quietlyDisconnect(replacement);
+					return;
+				}
+				old = c.client;
+				for (Iterator<Listener> j = errorListeners.iterator(); j.hasNext();)
+					replacement.addErrorListener(j.next());
+				for (Iterator<Subscription> j = subscriptions.iterator(); j.hasNext();) {
+					Subscription s = j.next();
+					if (s.connection == c)
+						replacement.subscribe(s.destination, s.listener, copy(s.headers));
+				}
+				c.client = replacement;
+				// The old connection's last errors are of no interest
+				for (Iterator<Listener> j = errorListeners.iterator(); j.hasNext();)
+					old.delErrorListener(j.next());
+			}
+			replacements.incrementAndGet();
+			quietlyDisconnect(old);
+		}
+	}
+
+	private static Map<String, String> copy(Map<String, String> header) {
+		return header == null ? null : new HashMap<String, String>(header);
+	}
+}
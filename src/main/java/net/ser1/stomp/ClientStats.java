@@ -0,0 +1,70 @@
+package net.ser1.stomp;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+/**
+ * Collects the statistics of one network Client.
+ */
+class ClientStats implements ClientStatsMXBean {
+    private final Stomp _client;
+    private final ObjectName _object_name;
+
+    final Statistics.CommandCounters sent = new Statistics.CommandCounters();
+    final Statistics.CommandCounters received = new Statistics.CommandCounters();
+    final LongAdder bytes_sent = new LongAdder();
+    final LongAdder bytes_received = new LongAdder();
+    final LongAdder errors = new LongAdder();
+
+
+    ClientStats(Stomp client) {
+        _client = client;
+        _object_name = Statistics.name("Client", Statistics.nextName("client"));
+        Statistics.register(this, _object_name);
+    }
+
+
+    void sent(Command c, String body) {
+        sent.increment(c);
+        if (body != null) bytes_sent.add(body.length());
+    }
+
+
+    void received(Command c, String body) {
+        received.increment(c);
+        if (body != null) bytes_received.add(body.length());
+        if (c == Command.error) errors.increment();
+    }
+
+
+    void unregister() {
+        Statistics.unregister(_object_name);
+    }
+
+
+    public boolean isConnected() {
+        return _client.isConnected();
+    }
+
+    public Map<String, Long> getFramesSent() {
+        return sent.snapshot();
+    }
+
+    public Map<String, Long> getFramesReceived() {
+        return received.snapshot();
+    }
+
+    public long getBytesSent() {
+        return bytes_sent.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytes_received.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+}
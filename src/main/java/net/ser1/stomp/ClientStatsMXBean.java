@@ -0,0 +1,37 @@
+package net.ser1.stomp;
+
+import java.util.Map;
+
+/**
+ * Runtime statistics of a network Client, registered as
+ * <code>net.ser1.stomp:type=Client,name="client-N"</code> for as long as
+ * the client is connected.
+ */
+public interface ClientStatsMXBean {
+    boolean isConnected();
+
+    /**
+     * Frames sent to the server, by command.
+     */
+    Map<String, Long> getFramesSent();
+
+    /**
+     * Frames received from the server, by command.
+     */
+    Map<String, Long> getFramesReceived();
+
+    /**
+     * Body bytes sent to the server.
+     */
+    long getBytesSent();
+
+    /**
+     * Body bytes received from the server.
+     */
+    long getBytesReceived();
+
+    /**
+     * ERROR frames received plus local transmission failures.
+     */
+    long getErrors();
+}
@@ -19,7 +19,8 @@ public final class Command {
     private static final String MESSAGE = "MESSAGE";
     private static final String RECEIPT = "RECEIPT";
     private static final String CONNECTED = "CONNECTED";
-    private static final String ERROR = "ERROR";   
+    private static final String ERROR = "ERROR";
+    private static final String ACK = "ACK";   
     
     private Command(String msg) {
         command = msg;
@@ -32,7 +33,8 @@ public final class Command {
         commit = new Command(COMMIT),
         abort = new Command(ABORT),
         disconnect = new Command(DISCONNECT),
-        connect = new Command(CONNECT);
+        connect = new Command(CONNECT),
+        ack = new Command(ACK);
 
     public static Command message = new Command(MESSAGE),
         receipt = new Command(RECEIPT),
@@ -53,6 +55,7 @@ public final class Command {
         else if (v.equals(CONNECTED)) return connected;
         else if (v.equals(DISCONNECT)) return disconnect;
         else if (v.equals(ERROR)) return error;
+        else if (v.equals(ACK)) return ack;
         throw new IllegalArgumentException("Unrecognised command " + v);
     }
 
@@ -0,0 +1,170 @@
+package net.ser1.stomp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-connection body compression.
+ * <p/>
+ * A client asks for compression by sending <code>compression:deflate</code>
+ * in its CONNECT headers; the server agrees by echoing it in CONNECTED.
+ * From then on either side may deflate a body that is at least as long as
+ * its threshold.  Stomp is a text protocol, so the deflated bytes are sent
+ * Base64 encoded, and the frame is marked with
+ * <code>content-encoding:deflate</code>.  Bodies that don't get smaller are
+ * sent as they are.
+ * <p/>
+ * Each connection owns one of these, and with it a Deflater and an
+ * Inflater that are reused for every frame.
+ */
+class Compression {
+    static final String NEGOTIATE = "compression";
+    static final String ENCODING = "content-encoding";
+    static final String DEFLATE = "deflate";
+    static final int DEFAULT_THRESHOLD = 1024;
+    /**
+     * Inflated bodies larger than this are refused, so a small frame can't
+     * be used to exhaust the heap.
+     */
+    static final int MAX_INFLATED = 64 * 1024 * 1024;
+
+    private final Deflater _deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater _inflater = new Inflater(true);
+    private final byte[] _chunk = new byte[8192];
+    private final int _threshold;
+
+
+    Compression(int threshold) {
+        _threshold = threshold;
+    }
+
+
+    /**
+     * True if the headers (of a CONNECT or CONNECTED) ask for compression.
+     */
+    static boolean requested(Map h) {
+        return h != null && DEFLATE.equals(h.get(NEGOTIATE));
+    }
+
+
+    /**
+     * True if a frame's body was compressed by the other side.
+     */
+    static boolean compressed(Map h) {
+        return h != null && DEFLATE.equals(h.get(ENCODING));
+    }
+
+
+    boolean worthCompressing(String body) {
+        return body != null && _threshold >= 0 && body.length() >= _threshold;
+    }
+
+
+    /**
+     * Deflates and Base64 encodes a body.
+     *
+     * @return the encoded body, or null if it isn't smaller than the body
+     */
+    synchronized String compress(String body) {
+        byte[] input;
+        try {
+            input = body.getBytes(Command.ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+        _deflater.reset();
+        _deflater.setInput(input);
+        _deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 4 + 16);
+        while (!_deflater.finished()) {
+            int n = _deflater.deflate(_chunk);
+            out.write(_chunk, 0, n);
+            // Base64 grows the output by a third
+            if (out.size() * 4 / 3 >= input.length) return null;
+        }
+        return Base64.getEncoder().encodeToString(out.toByteArray());
+    }
+
+
+    /**
+     * Reverses compress().
+     *
+     * @throws IllegalArgumentException if the body is not valid compressed
+     *                                  data
+     */
+    synchronized String decompress(String body) {
+        byte[] input = Base64.getDecoder().decode(body);
+        _inflater.reset();
+        _inflater.setInput(input);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(input.length * 4);
+        try {
+            while (!_inflater.finished()) {
+                int n = _inflater.inflate(_chunk);
+                if (n == 0 && (_inflater.needsInput() || _inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated compressed body");
+                }
+                out.write(_chunk, 0, n);
+                if (out.size() > MAX_INFLATED) {
+                    throw new IllegalArgumentException("Compressed body too large");
+                }
+            }
+            return out.toString(Command.ENCODING);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Invalid compressed body: " + e.getMessage());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+
+    /**
+     * The compressed form of one message, shared by every subscriber of a
+     * SEND so that the body is compressed at most once however many
+     * subscribers asked for compression.
+     */
+    static final class Shared {
+        private final Map _headers;
+        private final String _body;
+        private boolean _done = false;
+        private Map _compressed_headers;
+        private String _compressed_body;
+
+        Shared(Map headers, String body) {
+            _headers = headers;
+            _body = body;
+        }
+
+        /**
+         * Compresses the message with the given connection's codec the first
+         * time it is called.
+         *
+         * @return false if the body doesn't compress, in which case it
+         *         should be sent as it is
+         */
+        boolean compress(Compression codec) {
+            if (!_done) {
+                _done = true;
+                _compressed_body = codec.compress(_body);
+                if (_compressed_body != null) {
+                    _compressed_headers = new HashMap(_headers);
+                    _compressed_headers.put(ENCODING, DEFLATE);
+                }
+            }
+            return _compressed_body != null;
+        }
+
+        Map headers() {
+            return _compressed_headers;
+        }
+
+        String body() {
+            return _compressed_body;
+        }
+    }
+}
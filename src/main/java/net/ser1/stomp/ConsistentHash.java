@@ -0,0 +1,97 @@
+package net.ser1.stomp;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Assigns keys to members by consistent hashing.  Each member owns many
+ * points on a ring of longs, and a key belongs to the member owning the
+ * first point at or after the key's hash.  When a member joins or leaves,
+ * only the keys of the points it gains or loses change hands; every other
+ * key stays where it was.
+ * <p/>
+ * Queues use this to pin message groups to consumers: all messages with
+ * the same <code>group</code> header go to the same consumer, in order,
+ * for as long as it stays subscribed.
+ * <p/>
+ * Immutable; build a new one when the members change.
+ */
+final class ConsistentHash {
+    /**
+     * The header naming a message's group.
+     */
+    static final String HEADER = "group";
+    /**
+     * Points per member.  More points spread the keys more evenly.
+     */
+    private static final int POINTS = 64;
+
+    private final long[] _points;
+    private final Object[] _owners;
+
+
+    ConsistentHash(List members) {
+        int n = members.size() * POINTS;
+        long[] points = new long[n];
+        Object[] owners = new Object[n];
+        // Sorted by point, with each owner carried along
+        long[][] pairs = new long[n][];
+        for (int m = 0; m < members.size(); m++) {
+            long identity = System.identityHashCode(members.get(m));
+            for (int p = 0; p < POINTS; p++) {
+                pairs[m * POINTS + p] = new long[]{mix((identity << 32) | p), m};
+            }
+        }
+        Arrays.sort(pairs, new Comparator() {
+            public int compare(Object a, Object b) {
+                return Long.compare(((long[]) a)[0], ((long[]) b)[0]);
+            }
+        });
+        for (int i = 0; i < n; i++) {
+            points[i] = pairs[i][0];
+            owners[i] = members.get((int) pairs[i][1]);
+        }
+        _points = points;
+        _owners = owners;
+    }
+
+
+    /**
+     * The number of points on the ring.
+     */
+    int size() {
+        return _points.length;
+    }
+
+
+    /**
+     * Returns the position on the ring of the point that owns a key.
+     */
+    int find(String key) {
+        int i = Arrays.binarySearch(_points, mix(key.hashCode()));
+        if (i < 0) i = -i - 1;
+        return i == _points.length ? 0 : i;
+    }
+
+
+    /**
+     * Returns the owner of a point, counting round the ring.
+     */
+    Object owner(int position) {
+        return _owners[position % _owners.length];
+    }
+
+
+    /**
+     * Spreads the bits of a hash over a long; the finalizer of MurmurHash3.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
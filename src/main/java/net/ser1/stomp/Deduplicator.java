@@ -0,0 +1,170 @@
+package net.ser1.stomp;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers the IDs of recent messages, so that a producer resending a
+ * message whose receipt it never saw doesn't have it delivered twice.
+ * <p/>
+ * Each producer has a window of its own, so a busy producer can't push
+ * the IDs of others out.  IDs are remembered within a count window and a
+ * time window, whichever is smaller: no more than the producer's last
+ * <code>capacity</code> of them, and none older than <code>ttl</code>
+ * milliseconds.  They are kept in a ring, oldest first, with a hash set to
+ * look them up in.  A producer whose IDs have all expired is forgotten,
+ * and past <code>producers</code> of them the least recently heard from
+ * is, so memory is bounded however busy the producers are.
+ */
+final class Deduplicator {
+    /**
+     * The header carrying a producer's ID for a message.
+     */
+    static final String HEADER = "message-id";
+    /**
+     * Deduplication is off unless asked for.
+     */
+    static final int DEFAULT_CAPACITY = Integer.getInteger("gozirra.dedupe.window", 0).intValue();
+    static final long DEFAULT_TTL = Long.getLong("gozirra.dedupe.time", 10 * 60 * 1000L).longValue();
+    static final int DEFAULT_PRODUCERS = Integer.getInteger("gozirra.dedupe.producers", 1024).intValue();
+
+    private final int _capacity;
+    private final long _ttl;
+    /**
+     * The window of each producer, least recently used first.
+     */
+    private final Map _windows;
+
+
+    Deduplicator(int capacity, long ttl) {
+        this(capacity, ttl, DEFAULT_PRODUCERS);
+    }
+
+
+    Deduplicator(int capacity, long ttl, final int producers) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be at least 1");
+        if (producers < 1) throw new IllegalArgumentException("Producers must be at least 1");
+        _capacity = capacity;
+        _ttl = ttl;
+        _windows = new LinkedHashMap(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                return size() > producers;
+            }
+        };
+    }
+
+
+    /**
+     * Remembers a producer's ID.
+     *
+     * @return false if the ID is remembered already
+     */
+    synchronized boolean firstSeen(String producer, String id) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        Window w = (Window) _windows.get(producer);
+        if (w == null) {
+            w = new Window(_capacity);
+            _windows.put(producer, w);
+        }
+        w.expire(now, _ttl);
+        return w.add(id, now);
+    }
+
+
+    /**
+     * Forgets a producer's ID, for a message that couldn't be taken after
+     * all, so that the producer's resend is.
+     */
+    synchronized void forget(String producer, String id) {
+        Window w = (Window) _windows.get(producer);
+        if (w != null) w.remove(id);
+    }
+
+
+    /**
+     * The number of IDs remembered, for every producer.
+     */
+    synchronized int size() {
+        int size = 0;
+        for (Iterator i = _windows.values().iterator(); i.hasNext();) {
+            size += ((Window) i.next()).size;
+        }
+        return size;
+    }
+
+
+    /**
+     * Forgets the producers least recently heard from, while all their IDs
+     * have expired.
+     */
+    private void expire(long now) {
+        for (Iterator i = _windows.values().iterator(); i.hasNext();) {
+            Window w = (Window) i.next();
+            w.expire(now, _ttl);
+            if (w.size > 0) return;
+            i.remove();
+        }
+    }
+
+
+    /**
+     * One producer's IDs.
+     */
+    private static final class Window {
+        final String[] ids;
+        final long[] times;
+        final Set seen;
+        /**
+         * The ring position of the oldest ID, and the number of IDs.
+         */
+        int head = 0;
+        int size = 0;
+
+        Window(int capacity) {
+            ids = new String[capacity];
+            times = new long[capacity];
+            seen = new HashSet();
+        }
+
+        boolean add(String id, long now) {
+            if (seen.contains(id)) return false;
+            if (size == ids.length) removeOldest();
+            int tail = (head + size) % ids.length;
+            ids[tail] = id;
+            times[tail] = now;
+            size++;
+            seen.add(id);
+            return true;
+        }
+
+        /**
+         * Clears an ID's slot, which is then left to reach the head.  The
+         * newest is looked at first, as that is the one usually removed.
+         */
+        void remove(String id) {
+            if (!seen.remove(id)) return;
+            for (int n = size - 1; n >= 0; n--) {
+                int slot = (head + n) % ids.length;
+                if (id.equals(ids[slot])) {
+                    ids[slot] = null;
+                    return;
+                }
+            }
+        }
+
+        void expire(long now, long ttl) {
+            while (size > 0 && now - times[head] > ttl) removeOldest();
+        }
+
+        private void removeOldest() {
+            if (ids[head] != null) seen.remove(ids[head]);
+            ids[head] = null;
+            head = (head + 1) % ids.length;
+            size--;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package net.ser1.stomp;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JFR event: a message handed to a single subscriber, network or intra-VM.
+ *
+ * @see Tracing
+ */
+@Name("net.ser1.stomp.Delivery")
+@Label("Delivery")
+@Category({"Gozirra", "Frames"})
+@Description("A message handed to a single subscriber, network or intra-VM")
+@Threshold("1 ms")
+@StackTrace(false)
+final class DeliveryEvent extends Event {
+    @Label("Destination")
+    String destination;
+
+    @Label("Body Size")
+    @DataAmount
+    long size;
+
+    @Label("Subscriber")
+    String subscriber;
+}
@@ -0,0 +1,88 @@
+package net.ser1.stomp;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the statistics of one destination on a Server.
+ */
+class DestinationStats implements DestinationStatsMXBean {
+    private final Server _server;
+    private final String _destination;
+    /**
+     * When the destination was last used, in milliseconds.
+     */
+    private volatile long _last_used;
+
+    final LongAdder messages_in = new LongAdder();
+    final LongAdder bytes_in = new LongAdder();
+    final LongAdder messages_out = new LongAdder();
+    final LongAdder bytes_out = new LongAdder();
+    final LongAdder buffered = new LongAdder();
+
+
+    DestinationStats(Server server, String destination) {
+        _server = server;
+        _destination = destination;
+    }
+
+
+    /**
+     * Notes that the destination is in use.
+     */
+    void used(long now) {
+        // Spares the cache line a write per message
+        if (_last_used != now) _last_used = now;
+    }
+
+
+    long lastUsed() {
+        return _last_used;
+    }
+
+
+    /**
+     * Counts a message arriving for this destination.
+     */
+    void in(String body) {
+        messages_in.increment();
+        if (body != null) bytes_in.add(body.length());
+    }
+
+
+    /**
+     * Counts a message being delivered to a number of subscribers.
+     */
+    void out(String body, int subscribers) {
+        messages_out.add(subscribers);
+        if (body != null) bytes_out.add((long) body.length() * subscribers);
+    }
+
+
+    public String getDestination() {
+        return _destination;
+    }
+
+    public long getMessagesIn() {
+        return messages_in.sum();
+    }
+
+    public long getBytesIn() {
+        return bytes_in.sum();
+    }
+
+    public long getMessagesOut() {
+        return messages_out.sum();
+    }
+
+    public long getBytesOut() {
+        return bytes_out.sum();
+    }
+
+    public int getSubscribers() {
+        return _server.subscriberCount(_destination);
+    }
+
+    public long getBufferedDepth() {
+        return buffered.sum();
+    }
+}
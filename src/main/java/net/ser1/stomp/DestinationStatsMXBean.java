@@ -0,0 +1,41 @@
+package net.ser1.stomp;
+
+/**
+ * Runtime statistics of a single destination on a Server, registered as
+ * <code>net.ser1.stomp:type=Destination,server="server-N",name="/the/destination"</code>.
+ */
+public interface DestinationStatsMXBean {
+    String getDestination();
+
+    /**
+     * Messages sent to this destination.
+     */
+    long getMessagesIn();
+
+    /**
+     * Body bytes sent to this destination.
+     */
+    long getBytesIn();
+
+    /**
+     * Message deliveries to subscribers; one SEND to three subscribers
+     * counts three.
+     */
+    long getMessagesOut();
+
+    /**
+     * Body bytes delivered to subscribers.
+     */
+    long getBytesOut();
+
+    /**
+     * Current number of subscribers.
+     */
+    int getSubscribers();
+
+    /**
+     * Messages held by the server for this destination and not yet
+     * delivered, such as SENDs in uncommitted transactions.
+     */
+    long getBufferedDepth();
+}
@@ -0,0 +1,151 @@
+package net.ser1.stomp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.security.auth.login.LoginException;
+
+/**
+ * Links a Server to other Servers so that they form one messaging mesh.
+ * <p/>
+ * Every node opens a link -- an ordinary client connection that announces
+ * itself with a <code>federation-node</code> CONNECT header -- to every
+ * other node.  Over each link the node SUBSCRIBEs to the destinations its
+ * own clients are subscribed to, and UNSUBSCRIBEs when the last of them
+ * goes away.  A peer therefore only forwards a SEND to the nodes that
+ * have subscribers for it, and does so exactly as it would deliver to any
+ * other subscriber.  Messages arriving over a link are delivered to the
+ * node's local subscribers.
+ * <p/>
+ * Messages forwarded to a peer are stamped with a
+ * <code>federation-origin</code> header naming the forwarding node.  A
+ * message carrying that header is never forwarded again, so in a full mesh
+ * every message crosses at most one link and can not loop.  Deliveries to
+ * peers are written in batches by a BatchingWriter.
+ * <p/>
+ * Links are ReconnectingClients: one that drops is opened again, with
+ * backoff, and subscribes again to whatever the node has subscribers for.
+ * Messages sent to a peer while its link is down are not forwarded.
+ */
+class Federation {
+    static final String NODE = "federation-node";
+    static final String ORIGIN = "federation-origin";
+
+    private final Server _server;
+    private final List<Link> _links = new ArrayList<Link>();
+    /**
+     * Destinations the peers have been asked to forward to us.
+     */
+    private final Set<String> _interest = new HashSet<String>();
+
+
+    Federation(Server server) {
+        _server = server;
+    }
+
+
+    /**
+     * The connection from this node to a peer.
+     */
+    private class Link extends ReconnectingClient {
+        private final Stomp _local;
+
+        Link(String host, int port, String login, String pass, Map<String, String> headers)
+                throws IOException, LoginException {
+            super(host, port, login, pass, headers);
+            _local = _server.getClient();
+        }
+
+        public void receive(Command command, Map<String, String> headers, String body) {
+            if (command == Command.message && headers != null && headers.containsKey(ORIGIN)) {
+                // Never re-deliver our own messages, should a peer echo one
+                if (_server.getNodeId().equals(headers.get(ORIGIN))) return;
+                if (batching && Batch.batched(headers)) {
+                    // A batch goes on whole; its messages name their destinations
+                    _local.transmit(Command.send, new HashMap<String, String>(headers), body);
+                } else {
+                    _local.send(headers.get("destination"), body, new HashMap<String, String>(headers));
+                }
+            } else {
+                super.receive(command, headers, body);
+            }
+        }
+    }
+
+
+    /**
+     * Opens a link to a peer and asks it for every destination this node
+     * currently has subscribers for.  The first connection must succeed;
+     * the link reconnects after that.
+     */
+    void link(String host, int port, String login, String pass) throws IOException, LoginException {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put(NODE, _server.getNodeId());
+        Link link = new Link(host, port, login, pass, headers);
+        synchronized (this) {
+            _links.add(link);
+            for (Iterator<String> i = _interest.iterator(); i.hasNext();) {
+                link.subscribe(i.next());
+            }
+        }
+    }
+
+
+    /**
+     * Re-evaluates whether this node needs a destination forwarded to it,
+     * and tells every peer if that has changed.  Called whenever local
+     * subscriptions to the destination change.
+     */
+    void refresh(String destination) {
+        if (destination == null) return;
+        boolean wanted = _server.hasLocalSubscribers(destination);
+        synchronized (this) {
+            if (wanted == _interest.contains(destination)) return;
+            if (wanted) {
+                _interest.add(destination);
+            } else {
+                _interest.remove(destination);
+            }
+            for (int i = 0; i < _links.size(); i++) {
+                Link link = _links.get(i);
+                if (wanted) {
+                    link.subscribe(destination);
+                } else {
+                    link.unsubscribe(destination);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Re-evaluates every destination this node knows about.
+     */
+    void refreshAll(Set<String> destinations) {
+        Set<String> all = new HashSet<String>(destinations);
+        synchronized (this) {
+            all.addAll(_interest);
+        }
+        for (Iterator<String> i = all.iterator(); i.hasNext();) {
+            refresh(i.next());
+        }
+    }
+
+
+    /**
+     * Closes every link.
+     */
+    synchronized void close() {
+        for (int i = 0; i < _links.size(); i++) {
+            _links.get(i).disconnect();
+        }
+        _links.clear();
+        _interest.clear();
+    }
+}
@@ -1,9 +1,972 @@
 package net.ser1.stomp;
 
-/*
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores each destination as a log of segment files in a directory of its
+ * own.  A segment is a pair of files named after the offset of its first
+ * message: <code>&lt;offset&gt;.log</code> holds the MESSAGE frames, encoded
+ * exactly as they are sent to clients, so that replaying is a sequential
+ * copy from the file to the socket; <code>&lt;offset&gt;.index</code> holds
+ * the position, length and timestamp of each frame.  A new segment is
+ * started when the current one reaches 64MB.
+ * <p/>
+ * On opening, anything written after the last complete index entry is
+ * discarded.  Writes go to the operating system's cache; sync() forces
+ * them to disk according to the durability mode:
+ * <ul>
+ * <li>PER_MESSAGE forces the log on every sync, on the caller's thread;</li>
+ * <li>GROUP, the default, hands syncs to a commit thread that gathers
+ * those arriving within a short window, forces each log once, and then
+ * answers them all;</li>
+ * <li>ASYNC answers at once, leaving the writes to the operating system.
+ * A crash of the machine may lose the latest messages.</li>
+ * </ul>
+ * The mode can also be set with <code>-Dgozirra.durability=message</code>,
+ * <code>group</code> or <code>async</code>, and the window, in
+ * microseconds, with <code>-Dgozirra.commit.window</code>.
+ * <p/>
+ * The cursors of durable subscriptions are kept in a <code>cursors</code>
+ * file beside the segments.  Whole segments are deleted once every
+ * cursor has passed them, or, whether or not they have been consumed,
+ * once the log is larger or its oldest messages older than the retention
+ * limits.  A destination with no durable subscriptions keeps everything
+ * up to those limits.  Retention is checked whenever a segment fills up
+ * or a cursor is saved.
+ * <p/>
+ * The logs and cursors can be copied as they grow to another FileQueue,
+ * a standby's, through Replication; see Server.replicateTo.
+ * <p/>
+ * The extent of every segment, and the cursors, can be saved in a
+ * Checkpoint.  A log opened after restoring one trusts the checkpoint for
+ * each segment whose files are still the size it recorded, instead of
+ * checking the segment's index.
+ * <p/>
  * (c)2005 Sean Russell
  */
 public class FileQueue implements Queue {
+    public static final int PER_MESSAGE = 0;
+    public static final int GROUP = 1;
+    public static final int ASYNC = 2;
+    static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+    /**
+     * Index entries: position (8 bytes), length (4) and timestamp (8).
+     */
+    private static final int ENTRY = 20;
+    private static final int READ_BATCH = 256;
+
+    private final File _directory;
+    private final long _segment_size;
+    private final Map _logs = new HashMap();
+    private volatile long _max_bytes = 0;
+    private volatile long _max_age = 0;
+    private volatile boolean _delete_consumed = Boolean.getBoolean("gozirra.delete.consumed");
+    private volatile int _durability = durability(System.getProperty("gozirra.durability", "group"));
+    private long _commit_window = Long.getLong("gozirra.commit.window", GroupCommit.DEFAULT_WINDOW).longValue();
+    private GroupCommit _commit;
+    /**
+     * The state, from the last checkpoint restored, of logs not opened
+     * since.  Guarded by the queue.
+     */
+    private final Map _checkpointed = new HashMap();
+    /**
+     * Told of appends and cursor moves, while the logs are replicated.
+     */
+    private volatile Replication.Primary _replica;
+
+
+    /**
+     * Stores messages under the directory named by the
+     * <code>gozirra.data</code> system property, or
+     * <code>gozirra-data</code> in the working directory.  Nothing is
+     * created until a message is stored.
+     */
     public FileQueue() {
+        this(new File(System.getProperty("gozirra.data", "gozirra-data")));
+    }
+
+
+    public FileQueue(File directory) {
+        this(directory, SEGMENT_SIZE);
+    }
+
+
+    FileQueue(File directory, long segment_size) {
+        _directory = directory;
+        _segment_size = segment_size;
+    }
+
+
+    public File getDirectory() {
+        return _directory;
+    }
+
+
+    /**
+     * Limits how much of each destination's log is kept, consumed or not.
+     *
+     * @param max_bytes the largest a log may grow, or 0 for no limit
+     * @param max_age   how long, in milliseconds, messages are kept, or 0
+     *                  for no limit
+     */
+    public void setRetention(long max_bytes, long max_age) {
+        _max_bytes = max_bytes;
+        _max_age = max_age;
+    }
+
+
+    /**
+     * Deletes segments as soon as every durable cursor has passed them,
+     * within the retention limits.  Off by default, so that new
+     * subscriptions can still replay from the earliest message or a
+     * timestamp.
+     */
+    public void setDeleteConsumed(boolean delete) {
+        _delete_consumed = delete;
+    }
+
+
+    /**
+     * Sets how sync() makes messages durable: PER_MESSAGE, GROUP or ASYNC.
+     */
+    public void setDurability(int mode) {
+        if (mode < PER_MESSAGE || mode > ASYNC) throw new IllegalArgumentException("Unknown durability mode " + mode);
+        _durability = mode;
+    }
+
+
+    public int getDurability() {
+        return _durability;
+    }
+
+
+    /**
+     * Sets how long, in microseconds, the GROUP mode gathers syncs before
+     * forcing the logs.  Longer windows share each force among more
+     * writers, at the price of latency when few are writing.
+     */
+    public synchronized void setCommitWindow(long micros) {
+        _commit_window = micros;
+        if (_commit != null) _commit.setWindow(micros);
+    }
+
+
+    private static int durability(String mode) {
+        if (mode.equals("message")) return PER_MESSAGE;
+        if (mode.equals("async")) return ASYNC;
+        return GROUP;
+    }
+
+
+    public long append(String destination, Map<String, String> headers, String body) throws IOException {
+        long offset = log(destination).append(headers, body);
+        Replication.Primary replica = _replica;
+        if (replica != null) replica.appended();
+        return offset;
+    }
+
+
+    public long earliest(String destination) throws IOException {
+        return log(destination).earliest();
+    }
+
+
+    public long next(String destination) throws IOException {
+        return log(destination).next();
+    }
+
+
+    public long offsetAt(String destination, long timestamp) throws IOException {
+        return log(destination).offsetAt(timestamp);
+    }
+
+
+    public long transfer(String destination, long from, long to, WritableByteChannel out) throws IOException {
+        return log(destination).transfer(from, to, out);
+    }
+
+
+    public long read(String destination, long from, long to, final Listener listener) throws IOException {
+        Log log = log(destination);
+        MessageReceiver receiver = new MessageReceiver() {
+            public void receive(Command c, Map<String, String> h, String b) {
+                listener.message(h, b);
+            }
+
+            public void disconnect() {
+            }
+
+            public boolean isClosed() {
+                return false;
+            }
+        };
+        Buffer buffer = new Buffer();
+        while (from < to) {
+            buffer.reset();
+            long end = log.transfer(from, Math.min(to, from + READ_BATCH), Channels.newChannel(buffer));
+            if (end <= from) break;
+            Receiver r = new Receiver(receiver, buffer.stream());
+            for (long n = from; n < end;) {
+                if (r.receiveFrame()) n++;
+            }
+            from = end;
+        }
+        return from;
+    }
+
+
+    public long cursor(String destination, String name) throws IOException {
+        return log(destination).cursor(name);
+    }
+
+
+    public void cursor(String destination, String name, long offset) throws IOException {
+        log(destination).cursor(name, offset);
+        Replication.Primary replica = _replica;
+        if (replica != null) replica.cursor(destination, name, offset);
+    }
+
+
+    public void removeCursor(String destination, String name) throws IOException {
+        log(destination).removeCursor(name);
+        Replication.Primary replica = _replica;
+        if (replica != null) replica.cursor(destination, name, -1);
+    }
+
+
+    /**
+     * Calls a listener back once the messages appended so far are durable.
+     * While the logs are replicated semi-synchronously, that also means
+     * the standby has them.
+     */
+    public void sync(String destination, SyncListener listener) throws IOException {
+        Log log = log(destination);
+        Replication.Primary replica = _replica;
+        if (replica != null && replica.isSemiSync()) listener = replica.after(destination, log.next(), listener);
+        switch (_durability) {
+            case ASYNC:
+                listener.synced(null);
+                break;
+            case PER_MESSAGE:
+                IOException failure = null;
+                try {
+                    log.force();
+                } catch (IOException e) {
+                    failure = e;
+                }
+                listener.synced(failure);
+                break;
+            default:
+                committer().sync(log, listener);
+        }
+    }
+
+
+    /**
+     * Starts or stops telling a replication primary of appends and cursor
+     * moves.
+     */
+    void setReplica(Replication.Primary replica) {
+        _replica = replica;
+    }
+
+
+    /**
+     * The destinations with logs, whether or not they have been opened
+     * since starting.
+     */
+    synchronized List destinations() throws IOException {
+        List destinations = new ArrayList(_logs.keySet());
+        String[] names = _directory.list();
+        if (names == null) return destinations;
+        for (int i = 0; i < names.length; i++) {
+            if (!new File(_directory, names[i]).isDirectory()) continue;
+            String destination = URLDecoder.decode(names[i], "UTF-8");
+            if (!destinations.contains(destination)) destinations.add(destination);
+        }
+        return destinations;
+    }
+
+
+    /**
+     * A copy of a destination's durable cursors, by name.
+     */
+    Map cursors(String destination) throws IOException {
+        return log(destination).cursors();
+    }
+
+
+    /**
+     * Replaces a destination's durable cursors with those of another
+     * FileQueue, removing any it doesn't have.
+     */
+    void cursors(String destination, Map cursors) throws IOException {
+        log(destination).cursors(cursors);
+    }
+
+
+    /**
+     * Reads the lengths and timestamps of stored frames, from
+     * <code>from</code> up to <code>to</code> or as many as the arrays
+     * hold.
+     *
+     * @return the number of frames described
+     */
+    int describe(String destination, long from, long to, int[] lengths, long[] timestamps) throws IOException {
+        return log(destination).describe(from, to, lengths, timestamps);
+    }
+
+
+    /**
+     * Stores frames copied from another FileQueue, at the offsets and with
+     * the timestamps they had there, reading them straight from a channel
+     * into the log.  Frames already stored are skipped.  If the frames
+     * don't follow on from those stored, the log is emptied and starts
+     * again at <code>from</code>.
+     */
+    void replicate(String destination, long from, int[] lengths, long[] timestamps, int count,
+                   ReadableByteChannel in) throws IOException {
+        log(destination).replicate(from, lengths, timestamps, count, in);
+    }
+
+
+    /**
+     * Writes the segments and cursors of every log, for a checkpoint.
+     */
+    void checkpoint(DataOutputStream out) throws IOException {
+        Map logs, checkpointed;
+        synchronized (this) {
+            logs = new HashMap(_logs);
+            checkpointed = new HashMap(_checkpointed);
+        }
+        out.writeInt(logs.size() + checkpointed.size());
+        for (Iterator i = logs.entrySet().iterator(); i.hasNext();) {
+            Map.Entry e = (Map.Entry) i.next();
+            Checkpoint.writeString(out, (String) e.getKey());
+            ((Log) e.getValue()).snapshot().write(out);
+        }
+        for (Iterator i = checkpointed.entrySet().iterator(); i.hasNext();) {
+            Map.Entry e = (Map.Entry) i.next();
+            Checkpoint.writeString(out, (String) e.getKey());
+            ((Snapshot) e.getValue()).write(out);
+        }
+    }
+
+
+    /**
+     * Reads the segments and cursors of every log from a checkpoint taken
+     * at <code>time</code>, to be used when each is opened.
+     */
+    void restore(ByteBuffer in, long time) {
+        for (int i = in.getInt(); i > 0; i--) {
+            String destination = Checkpoint.readString(in);
+            Snapshot snapshot = Snapshot.read(in, time);
+            synchronized (this) {
+                if (!_logs.containsKey(destination)) _checkpointed.put(destination, snapshot);
+            }
+        }
+    }
+
+
+    private synchronized GroupCommit committer() {
+        if (_commit == null) {
+            _commit = new GroupCommit("gozirra-commit", _commit_window);
+            _commit.start();
+        }
+        return _commit;
+    }
+
+
+    public synchronized void close() {
+        if (_commit != null) {
+            _commit.close();
+            try {
+                _commit.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            _commit = null;
+        }
+        for (Iterator i = _logs.values().iterator(); i.hasNext();) {
+            ((Log) i.next()).close();
+        }
+        _logs.clear();
+    }
+
+
+    private synchronized Log log(String destination) throws IOException {
+        Log log = (Log) _logs.get(destination);
+        if (log == null) {
+            // Dots are escaped too, so that no destination can name "." or ".."
+            String name = URLEncoder.encode(destination, "UTF-8").replace(".", "%2E");
+            log = new Log(new File(_directory, name), (Snapshot) _checkpointed.remove(destination));
+            _logs.put(destination, log);
+        }
+        return log;
+    }
+
+
+    /**
+     * A ByteArrayOutputStream that lends out its array instead of copying
+     * it.
+     */
+    private static final class Buffer extends ByteArrayOutputStream {
+        ByteBuffer wrap() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+
+        ByteArrayInputStream stream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+
+
+    /**
+     * One segment of a log.  Only the last segment of a log is written to.
+     */
+    private static final class Segment {
+        final long base;
+        final File log_file;
+        final File index_file;
+        final FileChannel log;
+        final FileChannel index;
+        final ByteBuffer entry = ByteBuffer.allocate(ENTRY);
+        long count;
+        long size;
+
+        Segment(File directory, long base) throws IOException {
+            this(directory, base, -1, 0);
+        }
+
+        /**
+         * Opens a segment holding <code>known_count</code> frames in
+         * <code>known_size</code> bytes, as a checkpoint recorded; or, if
+         * <code>known_count</code> is -1, finds out from the index.
+         */
+        Segment(File directory, long base, long known_count, long known_size) throws IOException {
+            this.base = base;
+            String name = name(base);
+            log_file = new File(directory, name + ".log");
+            index_file = new File(directory, name + ".index");
+            log = new RandomAccessFile(log_file, "rw").getChannel();
+            index = new RandomAccessFile(index_file, "rw").getChannel();
+            if (known_count >= 0) {
+                count = known_count;
+                size = known_size;
+                return;
+            }
+            // Discard whatever a crash left half written
+            count = index.size() / ENTRY;
+            size = 0;
+            while (count > 0) {
+                long end = position(count - 1) + length(count - 1);
+                if (end <= log.size()) {
+                    size = end;
+                    break;
+                }
+                count--;
+            }
+            index.truncate(count * ENTRY);
+            log.truncate(size);
+        }
+
+        static String name(long base) {
+            return String.format("%020d", Long.valueOf(base));
+        }
+
+        synchronized long position(long i) throws IOException {
+            return read(i).getLong(0);
+        }
+
+        synchronized int length(long i) throws IOException {
+            return read(i).getInt(8);
+        }
+
+        synchronized long timestamp(long i) throws IOException {
+            return read(i).getLong(12);
+        }
+
+        private ByteBuffer read(long i) throws IOException {
+            entry.clear();
+            while (entry.hasRemaining()) {
+                if (index.read(entry, i * ENTRY + entry.position()) < 0) throw new IOException("Truncated index " + index_file);
+            }
+            return entry;
+        }
+
+        synchronized void write(ByteBuffer frame, long timestamp) throws IOException {
+            int length = frame.remaining();
+            long position = size;
+            while (frame.hasRemaining()) log.write(frame, position + length - frame.remaining());
+            indexed(position, length, timestamp);
+        }
+
+        /**
+         * Writes a frame read straight from a channel into the log.
+         */
+        synchronized void write(ReadableByteChannel in, int length, long timestamp) throws IOException {
+            long position = size;
+            for (long done = 0; done < length;) {
+                long n = log.transferFrom(in, position + done, length - done);
+                if (n <= 0) throw new EOFException("Replication stream ended mid-frame");
+                done += n;
+            }
+            indexed(position, length, timestamp);
+        }
+
+        private void indexed(long position, int length, long timestamp) throws IOException {
+            entry.clear();
+            entry.putLong(position).putInt(length).putLong(timestamp).flip();
+            while (entry.hasRemaining()) index.write(entry, count * ENTRY + entry.position());
+            size += length;
+            count++;
+        }
+
+        void force() throws IOException {
+            try {
+                // The log first, so that the index never points past it
+                log.force(false);
+                index.force(false);
+            } catch (ClosedChannelException e) {
+                // Deleted by retention, or closed; nothing left to force
+            }
+        }
+
+        void delete() {
+            close();
+            log_file.delete();
+            index_file.delete();
+        }
+
+        void close() {
+            try {
+                log.close();
+            } catch (IOException e) { /* Who cares? */ }
+            try {
+                index.close();
+            } catch (IOException e) { /* Who cares? */ }
+        }
+    }
+
+
+    /**
+     * The extent of a log's segments, and its cursors, as saved in a
+     * checkpoint.
+     */
+    private static final class Snapshot {
+        /**
+         * Cursors files changed this close to the checkpoint may be newer
+         * than it, given coarse file times.
+         */
+        private static final long CLOCK_SLACK = 2000;
+
+        final long time;
+        final long[] bases;
+        final long[] counts;
+        final long[] sizes;
+        final Map cursors;
+
+        Snapshot(long time, long[] bases, long[] counts, long[] sizes, Map cursors) {
+            this.time = time;
+            this.bases = bases;
+            this.counts = counts;
+            this.sizes = sizes;
+            this.cursors = cursors;
+        }
+
+        /**
+         * Opens a segment as recorded, if its files are still the size they
+         * were; otherwise returns null.
+         */
+        Segment segment(File dir, long base) throws IOException {
+            for (int i = 0; i < bases.length; i++) {
+                if (bases[i] != base) continue;
+                String name = Segment.name(base);
+                if (new File(dir, name + ".index").length() != counts[i] * ENTRY) return null;
+                if (new File(dir, name + ".log").length() != sizes[i]) return null;
+                return new Segment(dir, base, counts[i], sizes[i]);
+            }
+            return null;
+        }
+
+        /**
+         * True if a cursors file has not changed since the checkpoint.
+         */
+        boolean covers(File cursor_file) {
+            return cursor_file.lastModified() < time - CLOCK_SLACK;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(bases.length);
+            for (int i = 0; i < bases.length; i++) {
+                out.writeLong(bases[i]);
+                out.writeLong(counts[i]);
+                out.writeLong(sizes[i]);
+            }
+            out.writeInt(cursors.size());
+            for (Iterator i = cursors.entrySet().iterator(); i.hasNext();) {
+                Map.Entry e = (Map.Entry) i.next();
+                Checkpoint.writeString(out, (String) e.getKey());
+                out.writeLong(((Long) e.getValue()).longValue());
+            }
+        }
+
+        static Snapshot read(ByteBuffer in, long time) {
+            int n = in.getInt();
+            long[] bases = new long[n], counts = new long[n], sizes = new long[n];
+            for (int i = 0; i < n; i++) {
+                bases[i] = in.getLong();
+                counts[i] = in.getLong();
+                sizes[i] = in.getLong();
+            }
+            Map cursors = new HashMap();
+            for (int i = in.getInt(); i > 0; i--) cursors.put(Checkpoint.readString(in), Long.valueOf(in.getLong()));
+            return new Snapshot(time, bases, counts, sizes, cursors);
+        }
+    }
+
+
+    /**
+     * The log of one destination.
+     */
+    private final class Log implements GroupCommit.Target {
+        private final File _dir;
+        private final List _segments = new ArrayList();
+        /**
+         * Segments written to since they were last forced.
+         */
+        private final List _unforced = new ArrayList();
+        private final Object _force_lock = new Object();
+        private final Buffer _buffer = new Buffer();
+        private final File _cursor_file;
+        private final Map _cursors = new HashMap();
+        private long _next;
+        private long _last_timestamp = 0;
+
+        /**
+         * @param snapshot the log's state at the last checkpoint, or null
+         */
+        Log(File dir, Snapshot snapshot) throws IOException {
+            _dir = dir;
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Can't create " + dir);
+            String[] names = dir.list();
+            Arrays.sort(names);
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].endsWith(".log")) {
+                    long base = Long.parseLong(names[i].substring(0, names[i].length() - 4));
+                    Segment s = snapshot == null ? null : snapshot.segment(dir, base);
+                    _segments.add(s == null ? new Segment(dir, base) : s);
+                }
+            }
+            if (_segments.isEmpty()) _segments.add(new Segment(dir, 0));
+            Segment last = last();
+            _next = last.base + last.count;
+            if (last.count > 0) _last_timestamp = last.timestamp(last.count - 1);
+            _cursor_file = new File(dir, "cursors");
+            if (snapshot != null && _cursor_file.exists() && snapshot.covers(_cursor_file)) {
+                _cursors.putAll(snapshot.cursors);
+            } else if (_cursor_file.exists()) {
+                BufferedReader in = new BufferedReader(new FileReader(_cursor_file));
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        int space = line.indexOf(' ');
+                        if (space < 0) continue;
+                        _cursors.put(URLDecoder.decode(line.substring(space + 1), "UTF-8"),
+                                Long.valueOf(line.substring(0, space)));
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        }
+
+        private Segment last() {
+            return (Segment) _segments.get(_segments.size() - 1);
+        }
+
+        /**
+         * Returns the segment to write to, starting a new one if the last
+         * is full.
+         */
+        private Segment writable() throws IOException {
+            Segment s = last();
+            if (s.size >= _segment_size && s.count > 0) {
+                s = new Segment(_dir, _next);
+                _segments.add(s);
+                trim();
+            }
+            return s;
+        }
+
+        synchronized long append(Map headers, String body) throws IOException {
+            Segment s = writable();
+            long offset = _next;
+            // Timestamps never go backwards, so that they can be searched
+            long timestamp = Math.max(System.currentTimeMillis(), _last_timestamp);
+            headers.put(OFFSET, String.valueOf(offset));
+            headers.put(TIMESTAMP, String.valueOf(timestamp));
+            _buffer.reset();
+            Transmitter.transmit(Command.message, headers, body, _buffer);
+            s.write(_buffer.wrap(), timestamp);
+            if (_unforced.isEmpty() || _unforced.get(_unforced.size() - 1) != s) _unforced.add(s);
+            _next++;
+            _last_timestamp = timestamp;
+            if (_buffer.size() > 64 * 1024) _buffer.reset();
+            return offset;
+        }
+
+        /**
+         * Forces everything appended so far to disk.  Forces are serialized,
+         * so that a caller can't return while another caller is still
+         * forcing its writes.
+         */
+        public void force() throws IOException {
+            synchronized (_force_lock) {
+                Segment[] segments;
+                synchronized (this) {
+                    segments = (Segment[]) _unforced.toArray(new Segment[_unforced.size()]);
+                    _unforced.clear();
+                }
+                for (int i = 0; i < segments.length; i++) {
+                    try {
+                        segments[i].force();
+                    } catch (IOException e) {
+                        // Still to be forced by whoever syncs next
+                        synchronized (this) {
+                            _unforced.addAll(0, Arrays.asList(segments).subList(i, segments.length));
+                        }
+                        throw e;
+                    }
+                }
+            }
+        }
+
+        synchronized void replicate(long from, int[] lengths, long[] timestamps, int count,
+                                    ReadableByteChannel in) throws IOException {
+            if (from > _next || from < earliest()) reset(from);
+            ByteBuffer skip = null;
+            for (int i = 0; i < count; i++) {
+                if (from + i < _next) {
+                    // Already here; read past it
+                    if (skip == null || skip.capacity() < lengths[i]) skip = ByteBuffer.allocate(lengths[i]);
+                    skip.clear().limit(lengths[i]);
+                    while (skip.hasRemaining()) {
+                        if (in.read(skip) < 0) throw new EOFException("Replication stream ended mid-frame");
+                    }
+                    continue;
+                }
+                Segment s = writable();
+                s.write(in, lengths[i], timestamps[i]);
+                if (_unforced.isEmpty() || _unforced.get(_unforced.size() - 1) != s) _unforced.add(s);
+                _next++;
+                _last_timestamp = Math.max(_last_timestamp, timestamps[i]);
+            }
+        }
+
+        /**
+         * Discards every segment and starts the log again at an offset.
+         */
+        private void reset(long base) throws IOException {
+            for (int i = 0; i < _segments.size(); i++) ((Segment) _segments.get(i)).delete();
+            _segments.clear();
+            _unforced.clear();
+            _segments.add(new Segment(_dir, base));
+            _next = base;
+        }
+
+        int describe(long from, long to, int[] lengths, long[] timestamps) throws IOException {
+            Segment[] segments = segments();
+            int n = 0;
+            for (int i = 0; i < segments.length && n < lengths.length; i++) {
+                Segment s = segments[i];
+                long count;
+                synchronized (this) {
+                    count = s.count;
+                }
+                for (long o = Math.max(from + n, s.base); o < s.base + count && o < to && n < lengths.length; o++) {
+                    lengths[n] = s.length(o - s.base);
+                    timestamps[n] = s.timestamp(o - s.base);
+                    n++;
+                }
+            }
+            return n;
+        }
+
+        synchronized Snapshot snapshot() {
+            int n = _segments.size();
+            long[] bases = new long[n], counts = new long[n], sizes = new long[n];
+            for (int i = 0; i < n; i++) {
+                Segment s = (Segment) _segments.get(i);
+                bases[i] = s.base;
+                counts[i] = s.count;
+                sizes[i] = s.size;
+            }
+            return new Snapshot(0, bases, counts, sizes, new HashMap(_cursors));
+        }
+
+        synchronized long earliest() {
+            return ((Segment) _segments.get(0)).base;
+        }
+
+        synchronized long next() {
+            return _next;
+        }
+
+        private synchronized Segment[] segments() {
+            return (Segment[]) _segments.toArray(new Segment[_segments.size()]);
+        }
+
+        long offsetAt(long timestamp) throws IOException {
+            Segment[] segments = segments();
+            for (int i = 0; i < segments.length; i++) {
+                Segment s = segments[i];
+                long count;
+                synchronized (this) {
+                    count = s.count;
+                }
+                if (count == 0 || s.timestamp(count - 1) < timestamp) continue;
+                long low = 0, high = count - 1;
+                while (low < high) {
+                    long middle = (low + high) >>> 1;
+                    if (s.timestamp(middle) < timestamp) {
+                        low = middle + 1;
+                    } else {
+                        high = middle;
+                    }
+                }
+                return s.base + low;
+            }
+            return next();
+        }
+
+        long transfer(long from, long to, WritableByteChannel out) throws IOException {
+            Segment[] segments = segments();
+            from = Math.max(from, segments[0].base);
+            for (int i = 0; i < segments.length && from < to; i++) {
+                Segment s = segments[i];
+                long count;
+                synchronized (this) {
+                    count = s.count;
+                }
+                long end = Math.min(to, s.base + count);
+                if (end <= from) continue;
+                long start = s.position(from - s.base);
+                long length = s.position(end - 1 - s.base) + s.length(end - 1 - s.base) - start;
+                for (long done = 0; done < length;) {
+                    done += s.log.transferTo(start + done, length - done, out);
+                }
+                from = end;
+            }
+            return from;
+        }
+
+        synchronized long cursor(String name) {
+            Long offset = (Long) _cursors.get(name);
+            return offset == null ? -1 : offset.longValue();
+        }
+
+        synchronized void cursor(String name, long offset) throws IOException {
+            _cursors.put(name, Long.valueOf(offset));
+            saveCursors();
+            trim();
+        }
+
+        synchronized Map cursors() {
+            return new HashMap(_cursors);
+        }
+
+        synchronized void cursors(Map cursors) throws IOException {
+            if (_cursors.equals(cursors)) return;
+            _cursors.clear();
+            _cursors.putAll(cursors);
+            saveCursors();
+            trim();
+        }
+
+        synchronized void removeCursor(String name) throws IOException {
+            if (_cursors.remove(name) == null) return;
+            saveCursors();
+            trim();
+        }
+
+        /**
+         * Rewrites the cursors file, replacing the old one only once the new
+         * one is complete.
+         */
+        private void saveCursors() throws IOException {
+            File tmp = new File(_dir, "cursors.tmp");
+            Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+            try {
+                for (Iterator i = _cursors.entrySet().iterator(); i.hasNext();) {
+                    Map.Entry e = (Map.Entry) i.next();
+                    out.write(e.getValue() + " " + URLEncoder.encode((String) e.getKey(), "UTF-8") + "\n");
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), _cursor_file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Deletes the oldest segments while they are beyond the retention
+         * limits or, if asked to, have been consumed by every durable
+         * subscription.  The segment being written is never deleted.
+         */
+        private void trim() throws IOException {
+            long slowest = Long.MAX_VALUE;
+            for (Iterator i = _cursors.values().iterator(); i.hasNext();) {
+                slowest = Math.min(slowest, ((Long) i.next()).longValue());
+            }
+            long bytes = 0;
+            for (int i = 0; i < _segments.size(); i++) bytes += ((Segment) _segments.get(i)).size;
+            long max_bytes = _max_bytes, max_age = _max_age;
+            long oldest = System.currentTimeMillis() - max_age;
+            while (_segments.size() > 1) {
+                Segment first = (Segment) _segments.get(0);
+                long end = ((Segment) _segments.get(1)).base;
+                boolean consumed = _delete_consumed && !_cursors.isEmpty() && end <= slowest;
+                boolean too_big = max_bytes > 0 && bytes > max_bytes;
+                boolean too_old = max_age > 0 && first.timestamp(first.count - 1) < oldest;
+                if (!consumed && !too_big && !too_old) break;
+                _segments.remove(0);
+                bytes -= first.size;
+                first.delete();
+            }
+        }
+
+        synchronized void close() {
+            for (int i = 0; i < _segments.size(); i++) {
+                ((Segment) _segments.get(i)).close();
+            }
+        }
     }
 }
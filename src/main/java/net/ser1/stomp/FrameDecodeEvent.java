@@ -0,0 +1,33 @@
+package net.ser1.stomp;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JFR event: a frame read from a connection and parsed by a Receiver.
+ *
+ * @see Tracing
+ */
+@Name("net.ser1.stomp.FrameDecode")
+@Label("Frame Decode")
+@Category({"Gozirra", "Frames"})
+@Description("A frame read from a connection and parsed by a Receiver")
+@Threshold("1 ms")
+@StackTrace(false)
+final class FrameDecodeEvent extends Event {
+    @Label("Command")
+    String command;
+
+    @Label("Destination")
+    String destination;
+
+    @Label("Body Size")
+    @DataAmount
+    long size;
+}
@@ -0,0 +1,33 @@
+package net.ser1.stomp;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JFR event: a frame encoded and written to a connection by the Transmitter.
+ *
+ * @see Tracing
+ */
+@Name("net.ser1.stomp.FrameEncode")
+@Label("Frame Encode")
+@Category({"Gozirra", "Frames"})
+@Description("A frame encoded and written to a connection by the Transmitter")
+@Threshold("1 ms")
+@StackTrace(false)
+final class FrameEncodeEvent extends Event {
+    @Label("Command")
+    String command;
+
+    @Label("Destination")
+    String destination;
+
+    @Label("Frame Size")
+    @DataAmount
+    long size;
+}
@@ -0,0 +1,179 @@
+package net.ser1.stomp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Recycles the objects the server allocates for every frame, to keep the
+ * young generation quiet under load.
+ * <p/>
+ * Ownership rules:
+ * <ul>
+ * <li>A network Receiver acquires a header map when it starts decoding a
+ * frame, and releases it once the frame has been handled.  Routing is
+ * synchronous, so by then the last subscriber has been written to.</li>
+ * <li>Anything that keeps a frame's headers after the frame has been
+ * handled -- such as an open transaction, or a shard routing the frame on
+ * its own thread -- must keep() them, and release() them when it is
+ * done.  Maps that aren't pooled belong to the sender, intra-VM ones to
+ * client code, so these are copied.</li>
+ * <li>Code outside the server, such as intra-VM listeners, never sees a
+ * pooled map; it is given a copy.</li>
+ * </ul>
+ * Outbound frames are encoded into a per-thread byte buffer instead of a
+ * StringBuffer, String and byte[] per frame.
+ * <p/>
+ * <code>-Dgozirra.pool=false</code> turns recycling off.
+ * <code>-Dgozirra.pool.debug=true</code> records where every map was
+ * acquired and reports maps released twice; see leaks().
+ */
+final class FramePool {
+    static final boolean ENABLED = !"false".equals(System.getProperty("gozirra.pool"));
+    static final boolean DEBUG = Boolean.getBoolean("gozirra.pool.debug");
+
+    private static final int SIZE = 256;
+    /**
+     * Encode buffers larger than this are not kept between frames.
+     */
+    private static final int MAX_BUFFER = 64 * 1024;
+
+    private static final AtomicReferenceArray<Headers> FREE = new AtomicReferenceArray<Headers>(SIZE);
+    private static final Map<Headers, Throwable> OUTSTANDING = new IdentityHashMap<Headers, Throwable>();
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>();
+
+    private FramePool() {
+    }
+
+
+    /**
+     * A header map that belongs to the pool.  Reference counted: the
+     * acquirer holds the first reference.
+     */
+    static final class Headers extends HashMap<String, String> {
+        private final AtomicInteger _references = new AtomicInteger();
+
+        private Headers() {
+            super(16);
+        }
+    }
+
+
+    /**
+     * Takes a cleared header map from the pool, or creates one if the pool
+     * is empty.
+     */
+    static Headers acquire() {
+        Headers h = null;
+        int start = (int) (Thread.currentThread().getId() & (SIZE - 1));
+        for (int n = 0; n < SIZE && h == null; n++) {
+            int i = (start + n) & (SIZE - 1);
+            Headers candidate = FREE.get(i);
+            if (candidate != null && FREE.compareAndSet(i, candidate, null)) h = candidate;
+        }
+        if (h == null) h = new Headers();
+        h._references.set(1);
+        if (DEBUG) {
+            synchronized (OUTSTANDING) {
+                OUTSTANDING.put(h, new Throwable("Header map acquired here"));
+            }
+        }
+        return h;
+    }
+
+
+    /**
+     * Adds a reference to a header map, so that it survives the release by
+     * its acquirer.  Maps that don't belong to the pool are left alone.
+     *
+     * @return the map
+     */
+    static Map retain(Map m) {
+        if (m instanceof Headers) ((Headers) m)._references.incrementAndGet();
+        return m;
+    }
+
+
+    /**
+     * Keeps a frame's headers past the handling of the frame: adds a
+     * reference to a pooled map, or copies one that isn't, since its owner
+     * may change it as soon as the frame has been handled.  The result is
+     * to be released like a retained map.
+     */
+    static Map keep(Map m) {
+        if (m == null || m instanceof Headers) return retain(m);
+        return new HashMap(m);
+    }
+
+
+    /**
+     * Drops a reference to a header map, returning it to the pool when the
+     * last reference is gone.  Maps that don't belong to the pool are left
+     * alone.
+     */
+    static void release(Map m) {
+        if (!(m instanceof Headers)) return;
+        Headers h = (Headers) m;
+        int left = h._references.decrementAndGet();
+        if (left > 0) return;
+        if (left < 0) {
+            h._references.set(0);
+            if (DEBUG) new IllegalStateException("Header map released twice").printStackTrace(System.err);
+            return;
+        }
+        if (DEBUG) {
+            synchronized (OUTSTANDING) {
+                OUTSTANDING.remove(h);
+            }
+        }
+        h.clear();
+        int start = (int) (Thread.currentThread().getId() & (SIZE - 1));
+        for (int n = 0; n < SIZE; n++) {
+            int i = (start + n) & (SIZE - 1);
+            if (FREE.get(i) == null && FREE.compareAndSet(i, null, h)) return;
+        }
+        // Pool is full; let the garbage collector have it
+    }
+
+
+    /**
+     * Returns a map that is safe to hand to code outside the server: the
+     * map itself if it isn't pooled, otherwise a copy.
+     */
+    static Map<String, String> detach(Map m) {
+        if (m instanceof Headers) return new HashMap<String, String>((Headers) m);
+        return m;
+    }
+
+
+    /**
+     * Returns this thread's encode buffer, at least as large as requested.
+     * The buffer may only be used until the calling method returns.
+     */
+    static byte[] buffer(int size) {
+        byte[] b = BUFFER.get();
+        if (b == null || b.length < size) {
+            b = new byte[Math.max(size, 512)];
+            if (b.length <= MAX_BUFFER) BUFFER.set(b);
+        }
+        return b;
+    }
+
+
+    /**
+     * In debug mode, returns where each header map that is currently
+     * acquired was acquired.  Maps still being routed show up here too, so
+     * call this when the server is idle.
+     */
+    static List<Throwable> leaks() {
+        synchronized (OUTSTANDING) {
+            if (OUTSTANDING.isEmpty()) return Collections.emptyList();
+            return new ArrayList<Throwable>(OUTSTANDING.values());
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package net.ser1.stomp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes writes durable on behalf of many writers at once.  Writers queue
+ * a request after writing; the commit thread gathers the requests that
+ * arrive within a short window, forces each file they wrote to once, and
+ * then answers them all.  Requests that arrive while a force is under way
+ * go into the next group, so that the more writers are waiting, the more
+ * each force is shared.
+ */
+final class GroupCommit extends Thread {
+    /**
+     * The default window, in microseconds.
+     */
+    static final long DEFAULT_WINDOW = 1000;
+    private static final int MAX_GROUP = 4096;
+
+    /**
+     * Something that can be forced to disk.
+     */
+    interface Target {
+        void force() throws IOException;
+    }
+
+    private static final class Request {
+        final Target target;
+        final Queue.SyncListener listener;
+
+        Request(Target target, Queue.SyncListener listener) {
+            this.target = target;
+            this.listener = listener;
+        }
+    }
+
+    private final LinkedBlockingQueue _pending = new LinkedBlockingQueue();
+    private volatile long _window;
+    /**
+     * Set under _lock, so that no request is queued once the commit thread
+     * may have stopped looking.
+     */
+    private volatile boolean _closed = false;
+    private final Object _lock = new Object();
+
+
+    /**
+     * @param window how long, in microseconds, to gather requests after the
+     *               first one before forcing
+     */
+    GroupCommit(String name, long window) {
+        super(name);
+        setDaemon(true);
+        _window = window;
+    }
+
+
+    void setWindow(long window) {
+        _window = window;
+    }
+
+
+    /**
+     * Queues a request to force a target, after which the listener is
+     * called on the commit thread.
+     */
+    void sync(Target target, Queue.SyncListener listener) {
+        synchronized (_lock) {
+            if (!_closed) {
+                _pending.add(new Request(target, listener));
+                return;
+            }
+        }
+        listener.synced(new IOException("Closed"));
+    }
+
+
+    /**
+     * Stops the commit thread once the requests already queued have been
+     * answered.
+     */
+    void close() {
+        synchronized (_lock) {
+            _closed = true;
+        }
+        interrupt();
+    }
+
+
+    public void run() {
+        List group = new ArrayList();
+        while (!_closed || !_pending.isEmpty()) {
+            try {
+                Request first = (Request) (_closed ? _pending.poll() : _pending.take());
+                if (first == null) break;
+                group.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(_window);
+                while (!_closed && group.size() < MAX_GROUP) {
+                    Request next = (Request) _pending.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    group.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Closing; answer what has been gathered
+            }
+            _pending.drainTo(group, MAX_GROUP - group.size());
+            commit(group);
+            group.clear();
+        }
+    }
+
+
+    private void commit(List group) {
+        Map forced = new IdentityHashMap();
+        for (int i = 0; i < group.size(); i++) {
+            Target target = ((Request) group.get(i)).target;
+            if (forced.containsKey(target)) continue;
+            try {
+                target.force();
+                forced.put(target, null);
+            } catch (IOException e) {
+                forced.put(target, e);
+            }
+        }
+        for (int i = 0; i < group.size(); i++) {
+            Request r = (Request) group.get(i);
+            try {
+                r.listener.synced((IOException) forced.get(r.target));
+            } catch (RuntimeException e) {
+                // Don't let one listener keep the others waiting
+            }
+        }
+    }
+}
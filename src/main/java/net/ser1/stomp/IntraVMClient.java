@@ -17,6 +17,7 @@ public class IntraVMClient extends Stomp implements Listener, Authenticatable {
     protected IntraVMClient(Server server) {
         this.server = server;
         connected = true;
+        batching = true;
     }
 
     public boolean isClosed() {
@@ -42,6 +43,14 @@ public class IntraVMClient extends Stomp implements Listener, Authenticatable {
         this.server = null;
     }
 
+    /**
+     * The server hands this client messages one at a time, so a batch
+     * header on one is the sender's own.
+     */
+    protected boolean receivesBatches() {
+        return false;
+    }
+
     public void message(Map<String, String> headers, String body) {
         receive(Command.message, headers, body);
     }
@@ -0,0 +1,218 @@
+package net.ser1.stomp;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the last message sent to each retained destination, so that it
+ * can be given to subscribers who arrive later.  A destination can be
+ * keyed by a header, in which case the last message for each value of
+ * that header is kept; a price topic keyed by <code>symbol</code> keeps
+ * the latest price of every symbol.
+ * <p/>
+ * Memory is bounded: when the retained messages of all destinations
+ * together grow beyond the limit, the least recently sent or replayed
+ * ones are dropped.
+ */
+final class LastValueCache {
+    static final long DEFAULT_LIMIT = 16 * 1024 * 1024;
+    /**
+     * Set on messages given to a subscriber from the cache.
+     */
+    static final String RETAINED = "retained";
+
+    /**
+     * Retained destinations, mapped to their key header, or to "" if they
+     * are not keyed.
+     */
+    private final Map _keys = new ConcurrentHashMap();
+    /**
+     * Every entry, least recently used first.
+     */
+    private final LinkedHashMap _lru = new LinkedHashMap(16, 0.75f, true);
+    /**
+     * Destination to a map of key to entry, in the order the keys were
+     * first sent.
+     */
+    private final Map _destinations = new HashMap();
+    private long _bytes = 0;
+    private long _limit = DEFAULT_LIMIT;
+
+
+    private static final class Entry {
+        final String destination;
+        final String key;
+        final Map headers;
+        final String body;
+        final long size;
+
+        Entry(String destination, String key, Map headers, String body) {
+            this.destination = destination;
+            this.key = key;
+            this.headers = headers;
+            this.body = body;
+            long chars = body == null ? 0 : body.length();
+            for (Iterator i = headers.entrySet().iterator(); i.hasNext();) {
+                Map.Entry e = (Map.Entry) i.next();
+                chars += ((String) e.getKey()).length() + String.valueOf(e.getValue()).length();
+            }
+            size = 2 * chars + 64;
+        }
+
+        String id() {
+            return id(destination, key);
+        }
+
+        static String id(String destination, String key) {
+            return key == null ? destination : destination + '\u0000' + key;
+        }
+    }
+
+
+    /**
+     * Starts retaining messages to a destination.
+     *
+     * @param key_header the header to keep one message per value of, or
+     *                   null to keep only the last message
+     */
+    void retain(String destination, String key_header) {
+        _keys.put(destination, key_header == null ? "" : key_header);
+    }
+
+
+    /**
+     * Stops retaining messages to a destination, and drops those retained.
+     */
+    synchronized void forget(String destination) {
+        _keys.remove(destination);
+        Map entries = (Map) _destinations.remove(destination);
+        if (entries == null) return;
+        for (Iterator i = entries.values().iterator(); i.hasNext();) {
+            Entry e = (Entry) i.next();
+            _lru.remove(e.id());
+            _bytes -= e.size;
+        }
+    }
+
+
+    boolean retains(String destination) {
+        return destination != null && _keys.containsKey(destination);
+    }
+
+
+    synchronized void setLimit(long bytes) {
+        _limit = bytes;
+        evict();
+    }
+
+
+    synchronized long size() {
+        return _bytes;
+    }
+
+
+    /**
+     * Keeps a message sent to a retained destination.  The headers are
+     * copied.
+     */
+    synchronized void put(String destination, Map headers, String body) {
+        String key_header = (String) _keys.get(destination);
+        if (key_header == null) return;
+        String key = key_header.length() == 0 ? null : (String) headers.get(key_header);
+        Entry e = new Entry(destination, key, new HashMap(headers), body);
+        Entry old = (Entry) _lru.put(e.id(), e);
+        if (old != null) _bytes -= old.size;
+        _bytes += e.size;
+        Map entries = (Map) _destinations.get(destination);
+        if (entries == null) {
+            entries = new LinkedHashMap();
+            _destinations.put(destination, entries);
+        }
+        entries.put(key, e);
+        evict();
+    }
+
+
+    /**
+     * Returns the messages retained for a destination, oldest first, with
+     * their headers marked as retained.
+     */
+    synchronized List get(String destination) {
+        Map entries = (Map) _destinations.get(destination);
+        if (entries == null) return new ArrayList();
+        List messages = new ArrayList(entries.size());
+        for (Iterator i = entries.values().iterator(); i.hasNext();) {
+            Entry e = (Entry) i.next();
+            _lru.get(e.id());
+            Map h = new HashMap(e.headers);
+            h.put(RETAINED, "true");
+            messages.add(new Message(Command.message, h, e.body));
+        }
+        return messages;
+    }
+
+
+    /**
+     * Writes the retained destinations and their messages, least recently
+     * used first, for a checkpoint.
+     */
+    synchronized void checkpoint(DataOutputStream out) throws IOException {
+        Map keys = new HashMap(_keys);
+        out.writeInt(keys.size());
+        for (Iterator i = keys.entrySet().iterator(); i.hasNext();) {
+            Map.Entry e = (Map.Entry) i.next();
+            Checkpoint.writeString(out, (String) e.getKey());
+            Checkpoint.writeString(out, (String) e.getValue());
+        }
+        out.writeInt(_lru.size());
+        for (Iterator i = _lru.values().iterator(); i.hasNext();) {
+            Entry e = (Entry) i.next();
+            Checkpoint.writeString(out, e.destination);
+            out.writeInt(e.headers.size());
+            for (Iterator j = e.headers.entrySet().iterator(); j.hasNext();) {
+                Map.Entry h = (Map.Entry) j.next();
+                Checkpoint.writeString(out, (String) h.getKey());
+                Checkpoint.writeString(out, String.valueOf(h.getValue()));
+            }
+            Checkpoint.writeString(out, e.body);
+        }
+    }
+
+
+    /**
+     * Retains the destinations and messages written by checkpoint().
+     */
+    void restore(ByteBuffer in) {
+        for (int i = in.getInt(); i > 0; i--) {
+            String destination = Checkpoint.readString(in);
+            String key_header = Checkpoint.readString(in);
+            retain(destination, key_header.length() == 0 ? null : key_header);
+        }
+        for (int i = in.getInt(); i > 0; i--) {
+            String destination = Checkpoint.readString(in);
+            Map headers = new HashMap();
+            for (int j = in.getInt(); j > 0; j--) headers.put(Checkpoint.readString(in), Checkpoint.readString(in));
+            put(destination, headers, Checkpoint.readString(in));
+        }
+    }
+
+
+    private void evict() {
+        for (Iterator i = _lru.values().iterator(); _bytes > _limit && i.hasNext();) {
+            Entry e = (Entry) i.next();
+            i.remove();
+            _bytes -= e.size;
+            Map entries = (Map) _destinations.get(e.destination);
+            entries.remove(e.key);
+            if (entries.isEmpty()) _destinations.remove(e.destination);
+        }
+    }
+}
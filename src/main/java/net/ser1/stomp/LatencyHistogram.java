@@ -0,0 +1,150 @@
+package net.ser1.stomp;
+
+/**
+ * A fixed-footprint latency histogram in the style of HdrHistogram.
+ * Values (nanoseconds) are recorded into log-linear buckets which keep
+ * three significant decimal digits of precision over the whole trackable
+ * range, so percentiles can be read off without keeping every sample.
+ * <p/>
+ * Recording is synchronized; each recording thread is expected to own its
+ * histogram and the results are combined with add() once recording has
+ * finished.
+ */
+public class LatencyHistogram {
+    /**
+     * 2^11 sub-buckets per magnitude gives better than 0.1% resolution.
+     */
+    private static final int SUB_BUCKET_BITS = 11;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+    private static final long SUB_BUCKET_MASK = SUB_BUCKET_COUNT - 1;
+
+    private final long _highest;
+    private final long[] _counts;
+    private long _total;
+    private long _min = Long.MAX_VALUE;
+    private long _max;
+    private double _sum;
+
+
+    /**
+     * Creates a histogram that can track values up to one hour, in
+     * nanoseconds.
+     */
+    public LatencyHistogram() {
+        this(3600L * 1000 * 1000 * 1000);
+    }
+
+
+    /**
+     * @param highest the largest value that is tracked precisely.  Larger
+     *                values are recorded as this value.
+     */
+    public LatencyHistogram(long highest) {
+        _highest = highest;
+        _counts = new long[index(highest) + 1];
+    }
+
+
+    private static int magnitude(long value) {
+        return 63 - Long.numberOfLeadingZeros(value | SUB_BUCKET_MASK) - (SUB_BUCKET_BITS - 1);
+    }
+
+
+    private static int index(long value) {
+        int m = magnitude(value);
+        return (m * SUB_BUCKET_HALF) + (int) (value >>> m);
+    }
+
+
+    /**
+     * The largest value which lands in the same bucket as the one at the
+     * supplied index.
+     */
+    private static long highestAt(int index) {
+        int m = index < SUB_BUCKET_COUNT ? 0 : (index / SUB_BUCKET_HALF) - 1;
+        long sub = index - (m * SUB_BUCKET_HALF);
+        return ((sub + 1) << m) - 1;
+    }
+
+
+    /**
+     * Records a single value.  Negative values are recorded as zero.
+     */
+    public synchronized void record(long value) {
+        if (value < 0) value = 0;
+        if (value > _highest) value = _highest;
+        _counts[index(value)]++;
+        _total++;
+        _sum += value;
+        if (value < _min) _min = value;
+        if (value > _max) _max = value;
+    }
+
+
+    /**
+     * Adds all of the values recorded by another histogram to this one.
+     * Both histograms must have been created with the same highest value.
+     */
+    public synchronized void add(LatencyHistogram other) {
+        synchronized (other) {
+            for (int i = 0; i < _counts.length; i++) {
+                _counts[i] += other._counts[i];
+            }
+            _total += other._total;
+            _sum += other._sum;
+            if (other._total > 0) {
+                if (other._min < _min) _min = other._min;
+                if (other._max > _max) _max = other._max;
+            }
+        }
+    }
+
+
+    public synchronized void reset() {
+        java.util.Arrays.fill(_counts, 0);
+        _total = 0;
+        _sum = 0;
+        _min = Long.MAX_VALUE;
+        _max = 0;
+    }
+
+
+    public synchronized long count() {
+        return _total;
+    }
+
+
+    public synchronized long min() {
+        return _total == 0 ? 0 : _min;
+    }
+
+
+    public synchronized long max() {
+        return _max;
+    }
+
+
+    public synchronized double mean() {
+        return _total == 0 ? 0 : _sum / _total;
+    }
+
+
+    /**
+     * Returns the value at the given percentile, accurate to the bucket
+     * resolution.
+     *
+     * @param percentile 0 to 100
+     */
+    public synchronized long percentile(double percentile) {
+        if (_total == 0) return 0;
+        long target = (long) Math.ceil((percentile / 100.0) * _total);
+        if (target < 1) target = 1;
+        long seen = 0;
+        for (int i = 0; i < _counts.length; i++) {
+            seen += _counts[i];
+            if (seen >= target) return Math.min(highestAt(i), _max);
+        }
+        return _max;
+    }
+}
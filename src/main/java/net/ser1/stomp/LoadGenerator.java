@@ -0,0 +1,440 @@
+package net.ser1.stomp;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A reproducible load generator for capacity planning.  Starts a Server
+ * (or targets an existing one), opens producer and consumer Clients over
+ * loopback, drives a fixed message rate and reports latency percentiles and
+ * sustained throughput.
+ * <p/>
+ * Latencies are measured from the time each message was <em>scheduled</em>
+ * to be sent, not from when the producer actually got around to sending
+ * it.  A stalled server therefore shows up as latency for every message
+ * that should have been sent during the stall, rather than hiding behind a
+ * producer that was blocked (coordinated omission).  The uncorrected
+ * latency, measured from the actual send time, is reported alongside.
+ * <p/>
+ * Example:
+ * <pre>
+ *   java -cp gozirra.jar net.ser1.stomp.LoadGenerator \
+ *        -producers 4 -consumers 8 -destinations 4 -fanout 2 \
+ *        -rate 20000 -size 64-4096 -duration 60
+ * </pre>
+ * Run with -help for the full list of options.
+ */
+public class LoadGenerator {
+    private static final String INTENDED = "load-intended";
+    private static final String SENT = "load-sent";
+    private static final String DESTINATION_PREFIX = "/load/";
+
+    private String _host = null;
+    private int _port = -1;
+    private String _login = "load";
+    private String _passcode = "load";
+    private int _producers = 1;
+    private int _consumers = 1;
+    private int _destinations = 1;
+    private int _fanout = 1;
+    private long _rate = 1000;
+    private String _size = "256";
+    private int _warmup = 5;
+    private int _duration = 30;
+    private long _seed = 42;
+
+    private Server _server;
+    private final List<Client> _clients = new ArrayList<Client>();
+    private final AtomicLong _sent = new AtomicLong();
+    private volatile long _measureFrom;
+    private volatile long _measureUntil;
+
+
+    /**
+     * Chooses message sizes from a size specification: a fixed size
+     * ("256"), a uniform range ("64-4096"), or weighted sizes
+     * ("64:0.9,65536:0.1").
+     */
+    static class SizeDistribution {
+        private final int[] _sizes;
+        private final double[] _cumulative;
+        private final boolean _range;
+
+        SizeDistribution(String spec) {
+            if (spec.indexOf(',') < 0 && spec.indexOf(':') < 0) {
+                int dash = spec.indexOf('-');
+                if (dash > 0) {
+                    _sizes = new int[]{Integer.parseInt(spec.substring(0, dash).trim()),
+                            Integer.parseInt(spec.substring(dash + 1).trim())};
+                    _range = true;
+                } else {
+                    _sizes = new int[]{Integer.parseInt(spec.trim())};
+                    _range = false;
+                }
+                _cumulative = new double[]{1.0};
+                return;
+            }
+            String[] parts = spec.split(",");
+            _sizes = new int[parts.length];
+            _cumulative = new double[parts.length];
+            _range = false;
+            double total = 0;
+            for (int i = 0; i < parts.length; i++) {
+                String[] sw = parts[i].split(":");
+                _sizes[i] = Integer.parseInt(sw[0].trim());
+                total += sw.length > 1 ? Double.parseDouble(sw[1].trim()) : 1.0;
+                _cumulative[i] = total;
+            }
+            for (int i = 0; i < _cumulative.length; i++) {
+                _cumulative[i] /= total;
+            }
+        }
+
+        int next(Random r) {
+            if (_range) {
+                return _sizes[0] + r.nextInt(_sizes[1] - _sizes[0] + 1);
+            }
+            double d = r.nextDouble();
+            for (int i = 0; i < _cumulative.length; i++) {
+                if (d < _cumulative[i]) return _sizes[i];
+            }
+            return _sizes[_sizes.length - 1];
+        }
+
+        int max() {
+            int m = 0;
+            for (int i = 0; i < _sizes.length; i++) {
+                if (_sizes[i] > m) m = _sizes[i];
+            }
+            return m;
+        }
+    }
+
+
+    /**
+     * Records the latency of every message that arrives inside the
+     * measurement window.  Each consumer connection owns one.
+     */
+    private class Recorder implements Listener {
+        final LatencyHistogram corrected = new LatencyHistogram();
+        final LatencyHistogram uncorrected = new LatencyHistogram();
+        long received;
+
+        public void message(Map<String, String> headers, String body) {
+            long now = System.nanoTime();
+            String intended = headers.get(INTENDED);
+            if (intended == null) return;
+            long i = Long.parseLong(intended);
+            if (i < _measureFrom || i >= _measureUntil) return;
+            synchronized (this) {
+                received++;
+            }
+            corrected.record(now - i);
+            uncorrected.record(now - Long.parseLong(headers.get(SENT)));
+        }
+    }
+
+
+    /**
+     * Sends at a fixed rate from a single connection.  The send schedule is
+     * fixed up front; a producer that falls behind sends immediately until
+     * it has caught up with the schedule, instead of skipping ahead.
+     */
+    private class Producer extends Thread {
+        private final Client _client;
+        private final long _interval;
+        private final long _start;
+        private final long _end;
+        private final Random _random;
+        private final SizeDistribution _sizes;
+        private final String _payload;
+        private final int _offset;
+
+        Producer(Client client, int index, long interval, long start, long end, SizeDistribution sizes, String payload) {
+            super("load-producer-" + index);
+            _client = client;
+            _interval = interval;
+            _start = start;
+            _end = end;
+            _random = new Random(_seed + index);
+            _sizes = sizes;
+            _payload = payload;
+            _offset = index;
+        }
+
+        public void run() {
+            long n = 0;
+            while (true) {
+                long intended = _start + n * _interval;
+                if (intended >= _end) return;
+                long wait = intended - System.nanoTime();
+                if (wait > 0) LockSupport.parkNanos(wait);
+                Map<String, String> headers = new HashMap<String, String>();
+                headers.put(INTENDED, String.valueOf(intended));
+                headers.put(SENT, String.valueOf(System.nanoTime()));
+                String destination = DESTINATION_PREFIX + ((_offset + n) % _destinations);
+                _client.send(destination, _payload.substring(0, _sizes.next(_random)), headers);
+                _sent.incrementAndGet();
+                n++;
+            }
+        }
+    }
+
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if (a.equals("-help")) {
+                usage(System.out);
+                System.exit(0);
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + a);
+            }
+            String v = args[++i];
+            if (a.equals("-host")) _host = v;
+            else if (a.equals("-port")) _port = Integer.parseInt(v);
+            else if (a.equals("-login")) _login = v;
+            else if (a.equals("-passcode")) _passcode = v;
+            else if (a.equals("-producers")) _producers = Integer.parseInt(v);
+            else if (a.equals("-consumers")) _consumers = Integer.parseInt(v);
+            else if (a.equals("-destinations")) _destinations = Integer.parseInt(v);
+            else if (a.equals("-fanout")) _fanout = Integer.parseInt(v);
+            else if (a.equals("-rate")) _rate = Long.parseLong(v);
+            else if (a.equals("-size")) _size = v;
+            else if (a.equals("-warmup")) _warmup = Integer.parseInt(v);
+            else if (a.equals("-duration")) _duration = Integer.parseInt(v);
+            else if (a.equals("-seed")) _seed = Long.parseLong(v);
+            else throw new IllegalArgumentException("Unknown option " + a);
+        }
+        if (_fanout > _consumers) {
+            throw new IllegalArgumentException("-fanout can not exceed -consumers");
+        }
+        if (_producers < 1 || _rate < _producers) {
+            throw new IllegalArgumentException("-rate must be at least one message per second per producer");
+        }
+    }
+
+
+    private static void usage(PrintStream out) {
+        out.println("Usage: LoadGenerator [options]");
+        out.println("  -host <host>          target an existing server (default: start one in-process)");
+        out.println("  -port <port>          port of the target, or of the in-process server (default: any free port)");
+        out.println("  -login <login>        login used by every connection (default: load)");
+        out.println("  -passcode <passcode>  passcode used by every connection (default: load)");
+        out.println("  -producers <n>        producer connections (default: 1)");
+        out.println("  -consumers <n>        consumer connections (default: 1)");
+        out.println("  -destinations <n>     destinations the producers spread messages over (default: 1)");
+        out.println("  -fanout <n>           consumers subscribed to each destination (default: 1)");
+        out.println("  -rate <n>             total messages per second, all producers together (default: 1000)");
+        out.println("  -size <spec>          body size: 256 | 64-4096 | 64:0.9,65536:0.1 (default: 256)");
+        out.println("  -warmup <seconds>     load applied before measuring (default: 5)");
+        out.println("  -duration <seconds>   measured period (default: 30)");
+        out.println("  -seed <n>             random seed for body sizes (default: 42)");
+    }
+
+
+    private Client connect(String host, int port) throws Exception {
+        Client c = new Client(host, port, _login, _passcode);
+        _clients.add(c);
+        return c;
+    }
+
+
+    /**
+     * Runs the load and prints the report.
+     */
+    public void run(PrintStream out) throws Exception {
+        String host = _host;
+        int port = _port;
+        if (host == null) {
+            host = "localhost";
+            if (port < 0) port = freePort();
+            _server = new Server(port);
+            // The connection listener binds asynchronously
+            Thread.sleep(200);
+        }
+
+        try {
+            Recorder[] recorders = new Recorder[_consumers];
+            for (int i = 0; i < _consumers; i++) {
+                recorders[i] = new Recorder();
+            }
+            List<Client> consumers = new ArrayList<Client>();
+            for (int i = 0; i < _consumers; i++) {
+                consumers.add(connect(host, port));
+            }
+            // Each destination is subscribed by _fanout consecutive consumers
+            int next = 0;
+            for (int d = 0; d < _destinations; d++) {
+                for (int f = 0; f < _fanout; f++) {
+                    int c = next++ % _consumers;
+                    consumers.get(c).subscribe(DESTINATION_PREFIX + d, recorders[c]);
+                }
+            }
+            for (int i = 0; i < _consumers; i++) {
+                awaitSubscriptions(consumers.get(i), i);
+            }
+
+            SizeDistribution sizes = new SizeDistribution(_size);
+            StringBuilder payload = new StringBuilder(sizes.max());
+            for (int i = 0; i < sizes.max(); i++) {
+                payload.append((char) ('a' + (i % 26)));
+            }
+
+            long interval = (1000000000L * _producers) / _rate;
+            long start = System.nanoTime() + 100000000L;
+            _measureFrom = start + _warmup * 1000000000L;
+            _measureUntil = _measureFrom + _duration * 1000000000L;
+            List<Producer> producers = new ArrayList<Producer>();
+            for (int i = 0; i < _producers; i++) {
+                // Stagger the producers so the aggregate rate is smooth
+                long offset = (interval * i) / _producers;
+                producers.add(new Producer(connect(host, port), i, interval,
+                        start + offset, _measureUntil, sizes, payload.toString()));
+            }
+
+            out.println(Version.VERSION);
+            out.println("Target " + host + ":" + port + (_server != null ? " (in-process)" : "")
+                    + ", " + _producers + " producers, " + _consumers + " consumers, "
+                    + _destinations + " destinations x " + _fanout + " fan-out, "
+                    + _rate + " msg/s, size " + _size);
+            out.println("Warming up for " + _warmup + "s, measuring for " + _duration + "s");
+
+            for (int i = 0; i < producers.size(); i++) {
+                producers.get(i).start();
+            }
+            LockSupport.parkNanos(_measureFrom - System.nanoTime());
+            long sentAtStart = _sent.get();
+            for (int i = 0; i < producers.size(); i++) {
+                producers.get(i).join();
+            }
+            long sentMeasured = _sent.get() - sentAtStart;
+            long expected = _fanout * sentMeasured;
+
+            // Give the consumers a little time to drain
+            long deadline = System.nanoTime() + 10000000000L;
+            while (System.nanoTime() < deadline && received(recorders) < expected) {
+                Thread.sleep(50);
+            }
+
+            LatencyHistogram corrected = new LatencyHistogram();
+            LatencyHistogram uncorrected = new LatencyHistogram();
+            for (int i = 0; i < recorders.length; i++) {
+                corrected.add(recorders[i].corrected);
+                uncorrected.add(recorders[i].uncorrected);
+            }
+            long received = received(recorders);
+            out.println();
+            out.println("Sent      " + sentMeasured + " (" + (sentMeasured / _duration) + " msg/s)");
+            out.println("Received  " + received + " (" + (received / _duration) + " msg/s)");
+            out.println();
+            report(out, "Latency (corrected for coordinated omission), microseconds", corrected);
+            report(out, "Latency (from actual send time), microseconds", uncorrected);
+        } finally {
+            for (int i = 0; i < _clients.size(); i++) {
+                _clients.get(i).disconnect();
+            }
+            if (_server != null) _server.stop();
+        }
+    }
+
+
+    /**
+     * Frames from one connection are handled in order, so once a consumer
+     * receives a message it sent to itself after subscribing, all of its
+     * subscriptions are in place.
+     */
+    private static void awaitSubscriptions(Client consumer, int index) throws InterruptedException {
+        final Object lock = new Object();
+        final boolean[] seen = new boolean[1];
+        String probe = DESTINATION_PREFIX + "probe/" + index;
+        consumer.subscribe(probe, new Listener() {
+            public void message(Map<String, String> headers, String body) {
+                synchronized (lock) {
+                    seen[0] = true;
+                    lock.notifyAll();
+                }
+            }
+        });
+        consumer.send(probe, "");
+        long deadline = System.currentTimeMillis() + 10000;
+        synchronized (lock) {
+            while (!seen[0]) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) throw new IllegalStateException("Consumer " + index + " could not subscribe");
+                lock.wait(wait);
+            }
+        }
+        consumer.unsubscribe(probe);
+    }
+
+
+    private static long received(Recorder[] recorders) {
+        long total = 0;
+        for (int i = 0; i < recorders.length; i++) {
+            synchronized (recorders[i]) {
+                total += recorders[i].received;
+            }
+        }
+        return total;
+    }
+
+
+    private static void report(PrintStream out, String title, LatencyHistogram h) {
+        out.println(title);
+        out.println("  count   " + h.count());
+        out.println("  min     " + micros(h.min()));
+        out.println("  mean    " + micros((long) h.mean()));
+        out.println("  p50     " + micros(h.percentile(50)));
+        out.println("  p90     " + micros(h.percentile(90)));
+        out.println("  p99     " + micros(h.percentile(99)));
+        out.println("  p99.9   " + micros(h.percentile(99.9)));
+        out.println("  p99.99  " + micros(h.percentile(99.99)));
+        out.println("  max     " + micros(h.max()));
+        out.println();
+    }
+
+
+    private static String micros(long nanos) {
+        return String.valueOf(nanos / 1000);
+    }
+
+
+    private static int freePort() throws IOException {
+        ServerSocket s = new ServerSocket(0);
+        try {
+            return s.getLocalPort();
+        } finally {
+            s.close();
+        }
+    }
+
+
+    public static final void main(String[] args) {
+        LoadGenerator g = new LoadGenerator();
+        try {
+            g.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage(System.err);
+            System.exit(1);
+        }
+        try {
+            g.run(System.out);
+        } catch (Exception e) {
+            System.err.println("Load run failed");
+            e.printStackTrace(System.err);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,159 @@
+package net.ser1.stomp;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the messages a server buffers, across all destinations and
+ * transactions, within a memory budget.  Everything that buffers messages
+ * counts its bytes here.  When the total passes the limit, a pager thread
+ * pages the backlogs used least recently out to disk until the total is
+ * back under three quarters of the limit; backlogs page themselves back in
+ * as their consumers drain them.
+ */
+final class MemoryManager {
+    static final long DEFAULT_LIMIT = 64L * 1024 * 1024;
+
+    /**
+     * Something holding messages in memory that can move them to disk.
+     */
+    interface Pageable {
+        /**
+         * Bytes held in memory.
+         */
+        long bytes();
+
+        /**
+         * When the holder was last added to or taken from, in milliseconds.
+         */
+        long lastUsed();
+
+        /**
+         * Moves what can be moved to disk.
+         *
+         * @return the bytes no longer held in memory
+         */
+        long pageOut();
+    }
+
+    private final AtomicLong _bytes = new AtomicLong();
+    private final Set _pageables = ConcurrentHashMap.newKeySet();
+    private volatile long _limit;
+    private Thread _pager;
+    private boolean _closed = false;
+
+
+    MemoryManager(long limit) {
+        _limit = limit;
+    }
+
+
+    void setLimit(long limit) {
+        _limit = limit;
+        if (full()) wake();
+    }
+
+
+    long limit() {
+        return _limit;
+    }
+
+
+    long bytes() {
+        return _bytes.get();
+    }
+
+
+    /**
+     * True if the budget is spent; new messages should go straight to
+     * disk.
+     */
+    boolean full() {
+        return _bytes.get() >= _limit;
+    }
+
+
+    void add(long bytes) {
+        if (_bytes.addAndGet(bytes) > _limit) wake();
+    }
+
+
+    void remove(long bytes) {
+        _bytes.addAndGet(-bytes);
+    }
+
+
+    void register(Pageable p) {
+        _pageables.add(p);
+    }
+
+
+    synchronized void close() {
+        _closed = true;
+        notify();
+    }
+
+
+    private synchronized void wake() {
+        if (_closed) return;
+        if (_pager == null) {
+            _pager = new Thread("gozirra-pager") {
+                public void run() {
+                    page();
+                }
+            };
+            _pager.setDaemon(true);
+            _pager.start();
+        }
+        notify();
+    }
+
+
+    private void page() {
+        while (true) {
+            synchronized (this) {
+                while (!_closed && _bytes.get() <= _limit) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (_closed) return;
+            }
+            Object[] pageables = _pageables.toArray();
+            // Sorted on a snapshot, since the holders stay in use meanwhile
+            final Map used = new IdentityHashMap();
+            for (int i = 0; i < pageables.length; i++) {
+                used.put(pageables[i], Long.valueOf(((Pageable) pageables[i]).lastUsed()));
+            }
+            Arrays.sort(pageables, new Comparator() {
+                public int compare(Object a, Object b) {
+                    return ((Long) used.get(a)).compareTo((Long) used.get(b));
+                }
+            });
+            long low_water = _limit / 4 * 3;
+            boolean moved = false;
+            for (int i = 0; i < pageables.length && _bytes.get() > low_water; i++) {
+                Pageable p = (Pageable) pageables[i];
+                if (p.bytes() > 0 && p.pageOut() > 0) moved = true;
+            }
+            if (!moved) {
+                // What is left can't be paged, e.g. open transactions; wait
+                // for it to go
+                synchronized (this) {
+                    try {
+                        wait(100);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
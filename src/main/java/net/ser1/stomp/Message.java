@@ -17,6 +17,18 @@ public class Message {
 		body = abody;
 	}
 
+	/**
+	 * A message to send, as part of a batch.
+	 * 
+	 * @param aheaders
+	 *            the headers, including the destination unless the batch
+	 *            gives it; may be null
+	 * @see Stomp#sendBatch(List)
+	 */
+	public Message(Map<String, String> aheaders, String abody) {
+		this(Command.send, aheaders, abody);
+	}
+
 	public Map<String, String> headers() {
 		return headers;
 	}
@@ -0,0 +1,99 @@
+package net.ser1.stomp;
+
+import java.util.Map;
+
+/**
+ * Picks which of the ten priority levels, 0 lowest to 9 highest, to take
+ * the next buffered message from.  The levels that have messages are kept
+ * as bits of an int, so the highest is found with one instruction however
+ * many messages wait.
+ * <p/>
+ * Strict priority would starve the low levels for as long as high ones
+ * are busy, so there is a guard: once the lowest waiting level has been
+ * passed over <code>guard</code> times in a row, it is served next.  With
+ * a guard of 0, priority is strict.
+ * <p/>
+ * Not thread safe; the holder of the levels synchronizes.
+ */
+final class PriorityIndex {
+    /**
+     * The header giving a message's priority.
+     */
+    static final String HEADER = "priority";
+    static final int LEVELS = 10;
+    /**
+     * The priority of messages without a priority header.
+     */
+    static final int DEFAULT = 4;
+    static final int DEFAULT_GUARD = Integer.getInteger("gozirra.priority.guard", 100).intValue();
+
+    private int _bitmap = 0;
+    private int _guard;
+    private int _passed_over = 0;
+
+
+    PriorityIndex(int guard) {
+        _guard = guard;
+    }
+
+
+    void setGuard(int guard) {
+        _guard = guard;
+    }
+
+
+    /**
+     * Returns a message's priority level.  Missing or unreadable priorities
+     * are the default; others are clamped to the levels there are.
+     */
+    static int priority(Map headers) {
+        Object p = headers == null ? null : headers.get(HEADER);
+        if (p == null) return DEFAULT;
+        try {
+            return Math.max(0, Math.min(LEVELS - 1, Integer.parseInt(p.toString().trim())));
+        } catch (NumberFormatException e) {
+            return DEFAULT;
+        }
+    }
+
+
+    /**
+     * Notes that a level has messages.
+     */
+    void set(int level) {
+        _bitmap |= 1 << level;
+    }
+
+
+    void clear() {
+        _bitmap = 0;
+        _passed_over = 0;
+    }
+
+
+    boolean isEmpty() {
+        return _bitmap == 0;
+    }
+
+
+    /**
+     * Returns the level to take the next message from, or -1 if no level
+     * has any.
+     */
+    int next() {
+        if (_bitmap == 0) return -1;
+        if (_guard > 0 && _passed_over >= _guard) return Integer.numberOfTrailingZeros(_bitmap);
+        return 31 - Integer.numberOfLeadingZeros(_bitmap);
+    }
+
+
+    /**
+     * Notes that a message was taken from a level.
+     *
+     * @param empty true if that left the level empty
+     */
+    void taken(int level, boolean empty) {
+        _passed_over = level == Integer.numberOfTrailingZeros(_bitmap) ? 0 : _passed_over + 1;
+        if (empty) _bitmap &= ~(1 << level);
+    }
+}
@@ -1,8 +1,111 @@
 package net.ser1.stomp;
 
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+
 /**
+ * Storage for the messages of persisted destinations.  Each destination
+ * is an append-only log of MESSAGE frames, numbered by offset from 0.
+ * Offsets only grow; the earliest offset grows when old messages are
+ * discarded.
+ * <p/>
+ * Durable subscriptions are cursors into these logs: a named offset per
+ * subscription, rather than a copy of each message.
+ * <p/>
  * (c)2005 Sean Russell
  */
 public interface Queue {
-}
+    /**
+     * The header giving a stored message's offset.
+     */
+    String OFFSET = "offset";
+    /**
+     * The header giving the time, in milliseconds since the epoch, a
+     * message was stored.
+     */
+    String TIMESTAMP = "timestamp";
+
+    /**
+     * Stores a message.  The offset and timestamp headers are added to the
+     * headers given.
+     *
+     * @return the offset of the message
+     */
+    long append(String destination, Map<String, String> headers, String body) throws IOException;
+
+    /**
+     * Returns the offset of the oldest message still stored.
+     */
+    long earliest(String destination) throws IOException;
+
+    /**
+     * Returns the offset the next message will be stored at.
+     */
+    long next(String destination) throws IOException;
+
+    /**
+     * Returns the offset of the first message stored at or after a time,
+     * or next() if there is none.
+     */
+    long offsetAt(String destination, long timestamp) throws IOException;
+
+    /**
+     * Writes the stored frames with offsets from <code>from</code> up to,
+     * but not including, <code>to</code>, exactly as they would be sent to
+     * a client.
+     *
+     * @return the offset after the last frame written
+     */
+    long transfer(String destination, long from, long to, WritableByteChannel out) throws IOException;
+
+    /**
+     * Hands the stored messages with offsets from <code>from</code> up to,
+     * but not including, <code>to</code>, to a listener.
+     *
+     * @return the offset after the last message read
+     */
+    long read(String destination, long from, long to, Listener listener) throws IOException;
 
+    /**
+     * Returns the offset a durable subscription has reached, or -1 if it
+     * has none.
+     */
+    long cursor(String destination, String name) throws IOException;
+
+    /**
+     * Saves the offset a durable subscription has reached.  Messages that
+     * every durable subscription to a destination has passed may be
+     * discarded.
+     */
+    void cursor(String destination, String name, long offset) throws IOException;
+
+    /**
+     * Forgets a durable subscription.
+     */
+    void removeCursor(String destination, String name) throws IOException;
+
+    /**
+     * Calls a listener back once every message appended to a destination
+     * so far is as durable as the Queue promises.  The listener may be
+     * called on another thread.
+     */
+    void sync(String destination, SyncListener listener) throws IOException;
+
+    /**
+     * Releases the files and other resources held.
+     */
+    void close();
+
+
+    /**
+     * Told when stored messages have been made durable.
+     */
+    interface SyncListener {
+        /**
+         * @param failure why the messages could not be made durable, or
+         *                null if they were
+         */
+        void synced(IOException failure);
+    }
+}
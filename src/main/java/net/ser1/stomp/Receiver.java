@@ -5,6 +5,7 @@ import org.apache.commons.logging.LogFactory;
 
 import java.io.*;
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * (c)2005 Sean Russell
@@ -16,6 +17,8 @@ public class Receiver extends Thread {
     private MessageReceiver _receiver;
     private BufferedReader _input;
     private InputStream _stream;
+    private boolean _recycle = false;
+    private StringBuilder _body = new StringBuilder();
 
     protected Receiver() {
         super();
@@ -36,73 +39,122 @@ public class Receiver extends Thread {
         }
     }
 
-    public void run() {
-        // Loop reading from stream, calling receive()
-        try {
-            while (!isInterrupted()) {
-                // Get command
-                if (_input.ready()) {
-                    String command = _input.readLine();
-                    if (command.length() > 0) {
-                        try {
-                            Command c = Command.valueOf(command);
-                            // Get headers
-                            HashMap headers = new HashMap();
-                            String header;
-                            while ((header = _input.readLine()).length() > 0) {
-                                int ind = header.indexOf(':');
-                                String k = header.substring(0, ind);
-                                String v = header.substring(ind + 1, header.length());
-                                headers.put(k.trim(), v.trim());
-                            }
-                            // Read body
-                            StringBuffer body = new StringBuffer();
-                            int b;
-                            while ((b = _input.read()) != 0) {
-                                body.append((char) b);
-                            }
+    /**
+     * Sets whether decoded header maps are taken from, and returned to, the
+     * FramePool.  Only receivers whose MessageReceiver follows the pool's
+     * ownership rules may turn this on.
+     */
+    void setRecycle(boolean recycle) {
+        _recycle = recycle && FramePool.ENABLED;
+    }
 
-                            try {
-                                _receiver.receive(c, headers, body.toString());
-                            } catch (Exception e) {
-                                // We ignore these errors; we don't want client code
-                                // crashing our listener.
-                            }
-                        } catch (Error e) {
-                            try {
-                                while (_input.read() != 0) ;
-                            } catch (Exception ex) {
-                            }
-                            try {
-                                _receiver.receive(Command.ERROR, null, e.getMessage() + "\n");
-                            } catch (Exception ex) {
-                                // We ignore these errors; we don't want client code
-                                // crashing our listener.
-                            }
-                        }
-                    }
-                } else {
-                    if (_receiver.isClosed()) {
-                        _receiver.disconnect();
-                        return;
-                    }
-                    try {
-                        Thread.sleep(200);
-                    } catch (InterruptedException e) {
-                        interrupt();
-                    }
+    /**
+     * Reads a single frame from the stream and hands it to the receiver.
+     * Blocks until a complete frame has been read.  Blank lines between
+     * frames are consumed and ignored.
+     *
+     * @return true if a frame was read, false if only a blank line was
+     * @throws EOFException if the stream ends
+     */
+    boolean receiveFrame() throws IOException {
+        String command = _input.readLine();
+        if (command == null) throw new EOFException("End of stream");
+        if (command.length() == 0) return false;
+        FrameDecodeEvent event = null;
+        if (Tracing.trace(Tracing.DECODE)) {
+            event = new FrameDecodeEvent();
+            event.begin();
+        }
+        try {
+            Command c = Command.valueOf(command);
+            // Get headers
+            Map headers = _recycle ? FramePool.acquire() : new HashMap();
+            String header;
+            while ((header = readLine()).length() > 0) {
+                int ind = header.indexOf(':');
+                String k = header.substring(0, ind);
+                String v = header.substring(ind + 1, header.length());
+                headers.put(k.trim(), v.trim());
+            }
+            // Read body
+            StringBuilder body = _body;
+            body.setLength(0);
+            int b;
+            while ((b = _input.read()) != 0) {
+                if (b < 0) throw new EOFException("End of stream in a frame");
+                body.append((char) b);
+            }
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.command = c.toString();
+                    event.destination = (String) headers.get("destination");
+                    event.size = body.length();
+                    event.commit();
                 }
             }
+
+            try {
+                _receiver.receive(c, headers, body.toString());
+            } catch (Exception e) {
+                // We ignore these errors; we don't want client code
+                // crashing our listener.
+            } finally {
+                FramePool.release(headers);
+            }
+            // Don't hang on to the memory of an unusually large body
+            if (body.capacity() > 64 * 1024) _body = new StringBuilder();
+        } catch (Error e) {
+            try {
+                while (_input.read() != 0) ;
+            } catch (Exception ex) {
+            }
+            try {
+                _receiver.receive(Command.ERROR, null, e.getMessage() + "\n");
+            } catch (Exception ex) {
+                // We ignore these errors; we don't want client code
+                // crashing our listener.
+            }
+        }
+        return true;
+    }
+
+    private String readLine() throws IOException {
+        String line = _input.readLine();
+        if (line == null) throw new EOFException("End of stream in a frame");
+        return line;
+    }
+
+    /**
+     * Reads frames until the stream ends or is closed.  Either way the
+     * receiver is then disconnected, unless this thread was interrupted to
+     * stop it.
+     */
+    public void run() {
+        // Loop reading from stream, calling receive()
+        try {
+            while (!isInterrupted()) receiveFrame();
+        } catch (EOFException e) {
+            // The other end went away
+            if (!isInterrupted()) _receiver.disconnect();
         } catch (IOException e) {
-            // What do we do with IO Exceptions?  Report it to the receiver, and
-            // exit the thread.
+            if (isInterrupted() || _receiver.isClosed()) {
+                // Closed here, to stop reading
+                if (!isInterrupted()) _receiver.disconnect();
+                return;
+            }
+            // What do we do with IO Exceptions?  Report it to the receiver,
+            // which has lost its connection, and exit the thread.
             System.err.println("Stomp exiting because of exception");
             e.printStackTrace(System.err);
             _receiver.receive(Command.ERROR, null, e.getMessage());
+            _receiver.disconnect();
         } catch (Exception e) {
             System.err.println("Stomp exiting because of exception");
             e.printStackTrace(System.err);
             _receiver.receive(Command.ERROR, null, e.getMessage());
+            // Nothing is reading the connection any more
+            _receiver.disconnect();
         }
     }
 }
@@ -0,0 +1,436 @@
+package net.ser1.stomp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.security.auth.login.LoginException;
+
+/**
+ * A network client that survives losing its connection. When the
+ * connection drops, it connects again, waiting longer after each failed
+ * attempt, with random jitter so that many clients cut off together don't
+ * all come back at once. Once connected it subscribes again to everything
+ * it was subscribed to, then resends, in order, the frames that asked for a
+ * receipt and haven't had one. Listeners, error listeners and receipt
+ * waits carry on across the gap.
+ * <p/>
+ * The frames awaiting receipts are kept in a bounded buffer; past it, the
+ * oldest are dropped. Frames without a receipt that are sent while the
+ * client is disconnected are dropped too. A resent frame may have reached
+ * the server before the connection dropped; messages sent with receipts
+ * are given a message-id header, so that the server can drop the copy
+ * (see Server.setDeduplication) if the client connects with a client-id
+ * header.
+ * <p/>
+ * A transaction open when the connection drops is aborted by the server,
+ * so frames sent within a transaction are never resent. Instead they fail,
+ * as do the rest of the transaction's frames, up to its COMMIT or ABORT:
+ * waits on their receipts throw IllegalStateException, and error listeners
+ * are told. Aborting a lost transaction succeeds.
+ * <p/>
+ * Example:
+ *
+ * <pre>
+ *   ReconnectingClient c = new ReconnectingClient( "localhost", 61626, "ser", "ser" );
+ *   c.subscribe( "/my/channel", new Listener() { ... } );
+ *   c.sendW( "/other/channel", "Survives a blip" );
+ *   // ...
+ *   c.disconnect();
+ * </pre>
+ */
+public class ReconnectingClient extends Stomp {
+	/**
+	 * Frames awaiting receipts kept for resending.
+	 */
+	public static final int DEFAULT_BUFFER = 1000;
+	public static final long DEFAULT_INITIAL_BACKOFF = 100;
+	public static final long DEFAULT_MAX_BACKOFF = 30000;
+	/**
+	 * How often, in milliseconds, the connection is checked.
+	 */
+	private static final long CHECK_INTERVAL = 200;
+	private static final String DESTINATION = "destination";
+	private static final String RECEIPT = "receipt";
+	private static final String RECEIPT_ID = "receipt-id";
+	private static final String MESSAGE_ID = "message-id";
+	private static final String TRANSACTION = "transaction";
+	private static final String LOST = "Transaction lost with the connection";
+
+	private final String server;
+	private final int port;
+	private final String login;
+	private final String pass;
+	private final Map<String, String> headers;
+	/**
+	 * The current connection. Frames are written to it, and it is replaced,
+	 * while holding the client's lock.
+	 */
+	private volatile Link link;
+	/**
+	 * The SUBSCRIBE frame of each subscribed destination, in the order
+	 * subscribed. Guarded by the client.
+	 */
+	private final Map<String, Map<String, String>> subscriptions = new LinkedHashMap<String, Map<String, String>>();
+	/**
+	 * Frames awaiting receipts, by receipt ID, oldest first. Guarded by
+	 * itself, so that receipts are taken off while a frame is being written.
+	 */
+	private final LinkedHashMap<String, Message> unreceipted = new LinkedHashMap<String, Message>();
+	/**
+	 * Receipts awaited for frames of the open transaction, which fail
+	 * rather than being resent. Guarded by unreceipted.
+	 */
+	private final Set<String> transactional = new HashSet<String>();
+	/**
+	 * Whether a transaction is open, and whether it has lost its
+	 * connection. Guarded by the client.
+	 */
+	private boolean inTransaction = false;
+	private boolean transactionLost = false;
+	private volatile int bufferSize = DEFAULT_BUFFER;
+	private volatile long initialBackoff = DEFAULT_INITIAL_BACKOFF;
+	private volatile long maxBackoff = DEFAULT_MAX_BACKOFF;
+	private volatile boolean closed = false;
+	/**
+	 * Makes the IDs given to messages sent with receipts unique to this
+	 * client
+	 */
+	private final String producerId = UUID.randomUUID() + ":";
+	private final AtomicLong messageCount = new AtomicLong();
+	private final Thread monitor;
+	private final Object monitorLock = new Object();
+
+	private final AtomicLong reconnects = new AtomicLong();
+	private final AtomicLong failedAttempts = new AtomicLong();
+	private final AtomicLong resent = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong downtime = new AtomicLong();
+
+	/**
+	 * One connection. Frames it receives are handed to the outer client.
+	 */
+	private class Link extends Client {
+		/**
+		 * Set once the connection is replaced; its last frames are ignored.
+		 */
+		volatile boolean retired = false;
+
+		Link() throws IOException, LoginException {
+			super(server, port, login, pass, headers == null ? null : new HashMap<String, String>(headers));
+		}
+
+		protected void received(Command command, Map<String, String> headers, String body) {
+			if (retired)
+				return;
+			if (command == Command.connected || (command == Command.error && !isConnected())) {
+				// Ours, to finish connecting, or to fail to
+				super.received(command, headers, body);
+			} else {
+				ReconnectingClient.this.receive(command, headers, body);
+				if (command == Command.error)
+					wake();
+			}
+		}
+	}
+
+	public ReconnectingClient(String server, int port, String login, String pass) throws IOException,
+			LoginException {
+		this(server, port, login, pass, null);
+	}
+
+	/**
+	 * Connects to a server. The first connection must succeed; only later
+	 * ones are retried.
+	 *
+	 * @param headers
+	 *            Extra CONNECT headers, sent on every connection; may be null
+	 */
+	public ReconnectingClient(String server, int port, String login, String pass, Map<String, String> headers)
+			throws IOException, LoginException {
+		this.server = server;
+		this.port = port;
+		this.login = login;
+		this.pass = pass;
+		this.headers = headers == null ? null : new HashMap<String, String>(headers);
+		link = new Link();
+		batching = link.batching;
+		connected = true;
+		monitor = new Thread("gozirra-reconnect-" + server + ":" + port) {
+			public void run() {
+				watch();
+			}
+		};
+		monitor.setDaemon(true);
+		monitor.start();
+	}
+
+	/**
+	 * Sets how long to wait before the first attempt to reconnect, and the
+	 * most to wait between attempts. Each failed attempt doubles the wait,
+	 * up to the most; each wait is then cut by a random amount, up to half.
+	 */
+	public void setBackoff(long initial, long max) {
+		if (initial < 1 || max < initial)
+			throw new IllegalArgumentException("Bad backoff " + initial + ", " + max);
+		initialBackoff = initial;
+		maxBackoff = max;
+	}
+
+	/**
+	 * Sets how many frames awaiting receipts are kept for resending.
+	 */
+	public void setBufferSize(int frames) {
+		bufferSize = frames;
+	}
+
+	/**
+	 * The number of times the client has connected again.
+	 */
+	public long getReconnects() {
+		return reconnects.get();
+	}
+
+	/**
+	 * The number of attempts to connect again that failed.
+	 */
+	public long getFailedAttempts() {
+		return failedAttempts.get();
+	}
+
+	/**
+	 * The number of frames resent after connecting again.
+	 */
+	public long getResent() {
+		return resent.get();
+	}
+
+	/**
+	 * The number of frames dropped, for want of a connection or of room in
+	 * the buffer.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * The number of frames awaiting receipts.
+	 */
+	public int getUnreceipted() {
+		synchronized (unreceipted) {
+			return unreceipted.size();
+		}
+	}
+
+	/**
+	 * The total time, in milliseconds, spent disconnected.
+	 */
+	public long getDowntime() {
+		return downtime.get();
+	}
+
+	public void disconnect(Map<String, String> header) {
+		closed = true;
+		wake();
+		synchronized (this) {
+			link.disconnect(header);
+			connected = false;
+		}
+	}
+
+	/**
+	 * Writes a frame to the connection, remembering subscriptions and
+	 * frames awaiting receipts.
+	 */
+	protected synchronized void transmit(Command command, Map<String, String> header, String body) {
+		String receipt = header == null ? null : header.get(RECEIPT);
+		if (receipt != null && command == Command.send && !header.containsKey(MESSAGE_ID)) {
+			// Lets the server drop the copy, if a resent message got there
+			header.put(MESSAGE_ID, producerId + messageCount.incrementAndGet());
+		}
+		if (command == Command.subscribe) {
+			subscriptions.put(header.get(DESTINATION), new HashMap<String, String>(header));
+		} else if (command == Command.unsubscribe) {
+			subscriptions.remove(header.get(DESTINATION));
+		}
+		if (command == Command.begin || command == Command.commit || command == Command.abort || inTransaction
+				|| (header != null && header.containsKey(TRANSACTION))) {
+			transmitTransactional(command, header, body, receipt);
+			return;
+		}
+		if (receipt != null && command != Command.subscribe && command != Command.disconnect) {
+			synchronized (unreceipted) {
+				unreceipted.put(receipt, new Message(command, new HashMap<String, String>(header), body));
+				if (unreceipted.size() > bufferSize) {
+					Iterator<String> oldest = unreceipted.keySet().iterator();
+					oldest.next();
+					oldest.remove();
+					dropped.incrementAndGet();
+				}
+			}
+		}
+		Link l = link;
+		if (l.isAlive()) {
+			l.transmit(command, header, body);
+		} else if (receipt == null && command != Command.subscribe && command != Command.unsubscribe) {
+			// Subscriptions and receipted frames are sent on reconnecting
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Writes a frame of a transaction, or fails it if the transaction has
+	 * lost its connection. Holds the client's lock.
+	 */
+	private void transmitTransactional(Command command, Map<String, String> header, String body, String receipt) {
+		Link l = link;
+		if (command == Command.begin) {
+			inTransaction = true;
+			transactionLost = false;
+		}
+		boolean lost = transactionLost || !l.isAlive();
+		if (command == Command.commit || command == Command.abort) {
+			inTransaction = false;
+			transactionLost = false;
+		} else if (inTransaction) {
+			transactionLost = lost;
+		}
+		if (!lost) {
+			if (receipt != null) {
+				synchronized (unreceipted) {
+					transactional.add(receipt);
+				}
+			}
+			l.transmit(command, header, body);
+		} else if (command == Command.abort) {
+			// Done already
+			if (receipt != null)
+				super.receive(Command.receipt, receiptFor(receipt), null);
+		} else {
+			dropped.incrementAndGet();
+			if (receipt != null)
+				failReceipt(receipt, LOST);
+			if (command == Command.commit)
+				super.receive(Command.error, null, LOST);
+		}
+	}
+
+	private static Map<String, String> receiptFor(String receipt) {
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put(RECEIPT_ID, receipt);
+		return headers;
+	}
+
+	public void receive(Command command, Map<String, String> headers, String body) {
+		if (command == Command.receipt) {
+			synchronized (unreceipted) {
+				unreceipted.remove(headers.get(RECEIPT_ID));
+				transactional.remove(headers.get(RECEIPT_ID));
+			}
+		}
+		super.receive(command, headers, body);
+	}
+
+	private void wake() {
+		synchronized (monitorLock) {
+			monitorLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Checks the connection until the client is disconnected, connecting
+	 * again whenever it has dropped.
+	 */
+	private void watch() {
+		while (!closed) {
+			if (link.isAlive()) {
+				synchronized (monitorLock) {
+					try {
+						monitorLock.wait(CHECK_INTERVAL);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			} else {
+				try {
+					reconnect();
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	private void reconnect() throws InterruptedException {
+		long lost = System.currentTimeMillis();
+		connected = false;
+		Link old = link;
+		old.retired = true;
+		try {
+			old.disconnect();
+		} catch (Exception e) {/* We ignore these. */
+		}
+		for (int attempt = 0; !closed; attempt++) {
+			long ceiling = Math.min(maxBackoff, initialBackoff << Math.min(attempt, 30));
+			Thread.sleep(ceiling - ThreadLocalRandom.current().nextLong(ceiling / 2 + 1));
+			if (closed)
+				return;
+			Link fresh;
+			try {
+				fresh = new Link();
+			} catch (Exception e) {
+				failedAttempts.incrementAndGet();
+				continue;
+			}
+			synchronized (this) {
+				if (closed) {
+					fresh.disconnect();
+					return;
+				}
+				resume(fresh);
+				link = fresh;
+				batching = fresh.batching;
+				connected = true;
+			}
+			reconnects.incrementAndGet();
+			downtime.addAndGet(System.currentTimeMillis() - lost);
+			return;
+		}
+	}
+
+	/**
+	 * Fails the open transaction, subscribes a new connection to
+	 * everything, then resends the frames awaiting receipts.
+	 */
+	private void resume(Link fresh) {
+		if (inTransaction)
+			transactionLost = true;
+		List<String> lost;
+		synchronized (unreceipted) {
+			lost = new ArrayList<String>(transactional);
+			transactional.clear();
+		}
+		for (Iterator<String> i = lost.iterator(); i.hasNext();)
+			failReceipt(i.next(), LOST);
+		for (Iterator<Map<String, String>> i = subscriptions.values().iterator(); i.hasNext();)
+			fresh.transmit(Command.subscribe, new HashMap<String, String>(i.next()), null);
+		List<Message> frames;
+		synchronized (unreceipted) {
+			frames = new ArrayList<Message>(unreceipted.values());
+		}
+		for (Iterator<Message> i = frames.iterator(); i.hasNext();) {
+			Message m = i.next();
+			fresh.transmit(m.command(), new HashMap<String, String>(m.headers()), m.body());
+			resent.incrementAndGet();
+		}
+	}
+}
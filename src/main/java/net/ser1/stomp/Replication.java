@@ -0,0 +1,601 @@
+package net.ser1.stomp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Copies the logs and cursors of a FileQueue to a standby's FileQueue, over
+ * a socket, so that the standby can take over with little to catch up on.
+ * <p/>
+ * The primary sends each destination's new frames in batches: a header
+ * giving the destination, the offset of the first frame, and the length
+ * and timestamp of each frame, followed by the frames themselves, copied
+ * from the segment files straight to the socket.  The standby writes them
+ * straight from the socket into its own log, at the same offsets, and
+ * acknowledges how far it has got.  Cursor moves are sent as they happen.
+ * <p/>
+ * On connecting, the standby tells the primary how far each of its logs
+ * goes, and the primary carries on from there; a standby that has fallen
+ * behind the primary's retention starts again at its earliest message.
+ * The primary then sends every destination's cursors, which replace the
+ * standby's, so that cursors made or moved while it was away aren't lost.
+ * <p/>
+ * Replication is asynchronous by default: a message is acknowledged to its
+ * producer once durable on the primary, and a crash of the primary may lose
+ * the latest.  Semi-synchronous replication holds the acknowledgement until
+ * the standby has the message too.  While no standby is connected, it
+ * falls back to asynchronous, rather than stopping the primary.
+ * <p/>
+ * Destinations the server keeps for itself, such as backlogs paged out of
+ * memory, are not replicated.
+ */
+final class Replication {
+    static final int BATCH = 1;
+    static final int CURSOR = 2;
+    static final int ACK = 3;
+    static final int READY = 4;
+    static final int CURSORS = 5;
+    /**
+     * The most frames sent in one batch.
+     */
+    static final int BATCH_FRAMES = 1024;
+    /**
+     * How long, in milliseconds, to wait before connecting again, and for
+     * more to send.
+     */
+    static final long RETRY = 1000;
+    static final long IDLE = 100;
+
+
+    private Replication() {
+    }
+
+
+    /**
+     * True if a destination is the server's own, and not replicated.
+     */
+    static boolean isInternal(String destination) {
+        return destination.length() > 0 && destination.charAt(0) == '\u0000';
+    }
+
+
+    /**
+     * Sends the logs of a FileQueue to a standby, connecting again whenever
+     * the connection is lost.
+     */
+    static final class Primary extends Thread {
+        private final FileQueue _queue;
+        private final String _host;
+        private final int _port;
+        private final boolean _semi_sync;
+        /**
+         * How far each destination has been sent, and acknowledged, on the
+         * current connection.
+         */
+        private final Map _sent = new ConcurrentHashMap();
+        private final Map _acked = new ConcurrentHashMap();
+        /**
+         * Cursor moves waiting to be sent, as {destination, name, offset}.
+         * Guarded by itself.
+         */
+        private final List _cursors = new ArrayList();
+        /**
+         * Syncs waiting for the standby, as Waiters.  Guarded by itself.
+         */
+        private final List _waiters = new ArrayList();
+        private final Object _wake = new Object();
+        private volatile SocketChannel _channel;
+        private volatile boolean _connected = false;
+        private volatile boolean _closed = false;
+        private boolean _pending = false;
+
+
+        Primary(FileQueue queue, String host, int port, boolean semi_sync) {
+            super("gozirra-replication-" + host + ":" + port);
+            setDaemon(true);
+            _queue = queue;
+            _host = host;
+            _port = port;
+            _semi_sync = semi_sync;
+        }
+
+
+        boolean isSemiSync() {
+            return _semi_sync;
+        }
+
+
+        boolean isConnected() {
+            return _connected;
+        }
+
+
+        /**
+         * The offset up to which the standby has acknowledged a
+         * destination, or -1.
+         */
+        long acknowledged(String destination) {
+            Long acked = (Long) _acked.get(destination);
+            return acked == null ? -1 : acked.longValue();
+        }
+
+
+        /**
+         * Called by the queue after an append.
+         */
+        void appended() {
+            synchronized (_wake) {
+                _pending = true;
+                _wake.notifyAll();
+            }
+        }
+
+
+        /**
+         * Called by the queue when a cursor moves; -1 removes it.
+         */
+        void cursor(String destination, String name, long offset) {
+            if (isInternal(destination)) return;
+            synchronized (_cursors) {
+                _cursors.add(new Object[]{destination, name, Long.valueOf(offset)});
+            }
+            appended();
+        }
+
+
+        /**
+         * Wraps a sync listener so that, once the messages are durable
+         * here, it also waits for the standby to have them.
+         */
+        Queue.SyncListener after(final String destination, final long offset, final Queue.SyncListener listener) {
+            return new Queue.SyncListener() {
+                public void synced(IOException failure) {
+                    if (failure != null) {
+                        listener.synced(failure);
+                    } else {
+                        await(destination, offset, listener);
+                    }
+                }
+            };
+        }
+
+
+        private void await(String destination, long offset, Queue.SyncListener listener) {
+            synchronized (_waiters) {
+                if (_connected && acknowledged(destination) < offset) {
+                    _waiters.add(new Waiter(destination, offset, listener));
+                    return;
+                }
+            }
+            listener.synced(null);
+        }
+
+
+        /**
+         * Answers the syncs the standby has caught up with, or all of them.
+         */
+        private void release(boolean all) {
+            List released = new ArrayList();
+            synchronized (_waiters) {
+                for (Iterator i = _waiters.iterator(); i.hasNext();) {
+                    Waiter w = (Waiter) i.next();
+                    if (all || acknowledged(w.destination) >= w.offset) {
+                        released.add(w);
+                        i.remove();
+                    }
+                }
+            }
+            for (int i = 0; i < released.size(); i++) ((Waiter) released.get(i)).listener.synced(null);
+        }
+
+
+        void close() {
+            _closed = true;
+            disconnected();
+            interrupt();
+            try {
+                join(RETRY);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+
+        public void run() {
+            while (!_closed) {
+                try {
+                    connect();
+                    while (!_closed) {
+                        if (!pump()) idle();
+                    }
+                } catch (IOException e) {
+                    // Lost the standby, or never reached it
+                } catch (InterruptedException e) {
+                    break;
+                } finally {
+                    disconnected();
+                }
+                try {
+                    if (!_closed) Thread.sleep(RETRY);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+
+
+        /**
+         * Connects, learns how far the standby's logs go, and sends it every
+         * destination's cursors.
+         */
+        private void connect() throws IOException {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(_host, _port));
+            channel.socket().setTcpNoDelay(true);
+            _channel = channel;
+            _sent.clear();
+            _acked.clear();
+            ByteBuffer type = ByteBuffer.allocate(1);
+            while (true) {
+                type.clear();
+                readFully(channel, type);
+                if (type.get(0) == READY) break;
+                if (type.get(0) != ACK) throw new IOException("Unexpected replication message " + type.get(0));
+                String destination = readString(channel);
+                long next = readLong(channel);
+                _sent.put(destination, Long.valueOf(next));
+                _acked.put(destination, Long.valueOf(next));
+            }
+            sendCursors(channel);
+            synchronized (_waiters) {
+                _connected = true;
+            }
+            Thread acks = new Thread(getName() + "-acks") {
+                public void run() {
+                    readAcks(_channel);
+                }
+            };
+            acks.setDaemon(true);
+            acks.start();
+        }
+
+
+        /**
+         * Sends the cursors of each destination either side has.  Moves
+         * waiting to be sent are dropped first, as the snapshot has them;
+         * any made while it is taken are sent again after it.
+         */
+        private void sendCursors(SocketChannel channel) throws IOException {
+            synchronized (_cursors) {
+                _cursors.clear();
+            }
+            List destinations = _queue.destinations();
+            for (Iterator i = _sent.keySet().iterator(); i.hasNext();) {
+                Object destination = i.next();
+                if (!destinations.contains(destination)) destinations.add(destination);
+            }
+            for (int i = 0; i < destinations.size(); i++) {
+                String destination = (String) destinations.get(i);
+                if (isInternal(destination)) continue;
+                Map cursors = _queue.cursors(destination);
+                byte[] name = bytes(destination);
+                int length = 1 + 2 + name.length + 4;
+                List entries = new ArrayList();
+                for (Iterator j = cursors.entrySet().iterator(); j.hasNext();) {
+                    Map.Entry e = (Map.Entry) j.next();
+                    byte[] cursor = bytes((String) e.getKey());
+                    entries.add(new Object[]{cursor, e.getValue()});
+                    length += 2 + cursor.length + 8;
+                }
+                ByteBuffer b = ByteBuffer.allocate(length);
+                b.put((byte) CURSORS);
+                putString(b, name);
+                b.putInt(entries.size());
+                for (int j = 0; j < entries.size(); j++) {
+                    Object[] e = (Object[]) entries.get(j);
+                    putString(b, (byte[]) e[0]);
+                    b.putLong(((Long) e[1]).longValue());
+                }
+                b.flip();
+                writeFully(channel, b);
+            }
+        }
+
+
+        private void disconnected() {
+            synchronized (_waiters) {
+                _connected = false;
+            }
+            SocketChannel channel = _channel;
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) { /* Who cares? */ }
+            }
+            release(true);
+        }
+
+
+        private void idle() throws InterruptedException {
+            synchronized (_wake) {
+                if (!_pending) _wake.wait(IDLE);
+                _pending = false;
+            }
+        }
+
+
+        /**
+         * Sends the waiting cursor moves, and a batch of each destination's
+         * new frames.
+         *
+         * @return true if anything was sent
+         */
+        private boolean pump() throws IOException {
+            SocketChannel channel = _channel;
+            boolean sent = false;
+            Object[][] cursors;
+            synchronized (_cursors) {
+                cursors = (Object[][]) _cursors.toArray(new Object[_cursors.size()][]);
+                _cursors.clear();
+            }
+            for (int i = 0; i < cursors.length; i++) {
+                byte[] destination = bytes((String) cursors[i][0]);
+                byte[] name = bytes((String) cursors[i][1]);
+                ByteBuffer b = ByteBuffer.allocate(1 + 2 + destination.length + 2 + name.length + 8);
+                b.put((byte) CURSOR);
+                putString(b, destination);
+                putString(b, name);
+                b.putLong(((Long) cursors[i][2]).longValue()).flip();
+                writeFully(channel, b);
+                sent = true;
+            }
+            int[] lengths = new int[BATCH_FRAMES];
+            long[] timestamps = new long[BATCH_FRAMES];
+            List destinations = _queue.destinations();
+            for (int i = 0; i < destinations.size(); i++) {
+                String destination = (String) destinations.get(i);
+                if (isInternal(destination)) continue;
+                long next = _queue.next(destination);
+                Long done = (Long) _sent.get(destination);
+                long from = Math.max(done == null ? 0 : done.longValue(), _queue.earliest(destination));
+                if (from >= next) continue;
+                int count = _queue.describe(destination, from, next, lengths, timestamps);
+                if (count == 0) continue;
+                byte[] name = bytes(destination);
+                ByteBuffer header = ByteBuffer.allocate(1 + 2 + name.length + 8 + 4 + count * 12);
+                header.put((byte) BATCH);
+                putString(header, name);
+                header.putLong(from).putInt(count);
+                for (int j = 0; j < count; j++) header.putInt(lengths[j]).putLong(timestamps[j]);
+                header.flip();
+                writeFully(channel, header);
+                _queue.transfer(destination, from, from + count, channel);
+                // Frames trimmed mid-batch leave the standby short; start over
+                if (_queue.earliest(destination) > from) throw new IOException("Retention overtook " + destination);
+                _sent.put(destination, Long.valueOf(from + count));
+                sent = true;
+            }
+            return sent;
+        }
+
+
+        private void readAcks(SocketChannel channel) {
+            ByteBuffer type = ByteBuffer.allocate(1);
+            try {
+                while (true) {
+                    type.clear();
+                    readFully(channel, type);
+                    if (type.get(0) != ACK) throw new IOException("Unexpected replication message " + type.get(0));
+                    String destination = readString(channel);
+                    _acked.put(destination, Long.valueOf(readLong(channel)));
+                    release(false);
+                }
+            } catch (IOException e) {
+                // The sender notices the closed channel, and connects again
+                try {
+                    channel.close();
+                } catch (IOException f) { /* Who cares? */ }
+            }
+        }
+    }
+
+
+    /**
+     * A sync waiting for the standby to have a destination's messages up
+     * to an offset.
+     */
+    private static final class Waiter {
+        final String destination;
+        final long offset;
+        final Queue.SyncListener listener;
+
+        Waiter(String destination, long offset, Queue.SyncListener listener) {
+            this.destination = destination;
+            this.offset = offset;
+            this.listener = listener;
+        }
+    }
+
+
+    /**
+     * Receives the logs of a primary into a FileQueue, one primary at a
+     * time.
+     */
+    static final class Standby extends Thread {
+        private final FileQueue _queue;
+        private final ServerSocketChannel _server;
+        private volatile SocketChannel _channel;
+        private volatile boolean _closed = false;
+
+
+        Standby(FileQueue queue, int port) throws IOException {
+            super("gozirra-standby-" + port);
+            setDaemon(true);
+            _queue = queue;
+            _server = ServerSocketChannel.open();
+            _server.socket().setReuseAddress(true);
+            _server.socket().bind(new InetSocketAddress(port));
+        }
+
+
+        /**
+         * Stops receiving.  Whatever was received is kept.
+         */
+        void close() {
+            _closed = true;
+            try {
+                _server.close();
+            } catch (IOException e) { /* Who cares? */ }
+            SocketChannel channel = _channel;
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) { /* Who cares? */ }
+            }
+            try {
+                join(RETRY);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+
+        public void run() {
+            while (!_closed) {
+                SocketChannel channel;
+                try {
+                    channel = _server.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                _channel = channel;
+                try {
+                    channel.socket().setTcpNoDelay(true);
+                    receive(channel);
+                } catch (IOException e) {
+                    // The primary went away; wait for it to come back
+                } finally {
+                    try {
+                        channel.close();
+                    } catch (IOException e) { /* Who cares? */ }
+                }
+            }
+        }
+
+
+        private void receive(SocketChannel channel) throws IOException {
+            List destinations = _queue.destinations();
+            for (int i = 0; i < destinations.size(); i++) {
+                String destination = (String) destinations.get(i);
+                if (!isInternal(destination)) acknowledge(channel, destination);
+            }
+            writeFully(channel, (ByteBuffer) ByteBuffer.allocate(1).put((byte) READY).flip());
+            ByteBuffer type = ByteBuffer.allocate(1);
+            int[] lengths = new int[BATCH_FRAMES];
+            long[] timestamps = new long[BATCH_FRAMES];
+            while (!_closed) {
+                type.clear();
+                readFully(channel, type);
+                if (type.get(0) == BATCH) {
+                    String destination = readString(channel);
+                    ByteBuffer b = ByteBuffer.allocate(12);
+                    readFully(channel, b);
+                    long from = b.getLong(0);
+                    int count = b.getInt(8);
+                    if (count > lengths.length) {
+                        lengths = new int[count];
+                        timestamps = new long[count];
+                    }
+                    ByteBuffer entries = ByteBuffer.allocate(count * 12);
+                    readFully(channel, entries);
+                    entries.flip();
+                    for (int i = 0; i < count; i++) {
+                        lengths[i] = entries.getInt();
+                        timestamps[i] = entries.getLong();
+                    }
+                    _queue.replicate(destination, from, lengths, timestamps, count, channel);
+                    acknowledge(channel, destination);
+                } else if (type.get(0) == CURSOR) {
+                    String destination = readString(channel);
+                    String name = readString(channel);
+                    long offset = readLong(channel);
+                    if (offset < 0) {
+                        _queue.removeCursor(destination, name);
+                    } else {
+                        _queue.cursor(destination, name, offset);
+                    }
+                } else if (type.get(0) == CURSORS) {
+                    String destination = readString(channel);
+                    ByteBuffer count = ByteBuffer.allocate(4);
+                    readFully(channel, count);
+                    Map cursors = new HashMap();
+                    for (int i = count.getInt(0); i > 0; i--) {
+                        String name = readString(channel);
+                        cursors.put(name, Long.valueOf(readLong(channel)));
+                    }
+                    _queue.cursors(destination, cursors);
+                } else {
+                    throw new IOException("Unexpected replication message " + type.get(0));
+                }
+            }
+        }
+
+
+        private void acknowledge(SocketChannel channel, String destination) throws IOException {
+            byte[] name = bytes(destination);
+            ByteBuffer b = ByteBuffer.allocate(1 + 2 + name.length + 8);
+            b.put((byte) ACK);
+            putString(b, name);
+            b.putLong(_queue.next(destination)).flip();
+            writeFully(channel, b);
+        }
+    }
+
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+
+    private static void putString(ByteBuffer b, byte[] s) {
+        b.putShort((short) s.length).put(s);
+    }
+
+
+    private static String readString(SocketChannel channel) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(2);
+        readFully(channel, length);
+        ByteBuffer s = ByteBuffer.allocate(length.getShort(0) & 0xffff);
+        readFully(channel, s);
+        return new String(s.array(), StandardCharsets.UTF_8);
+    }
+
+
+    private static long readLong(SocketChannel channel) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(8);
+        readFully(channel, b);
+        return b.getLong(0);
+    }
+
+
+    private static void readFully(SocketChannel channel, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            if (channel.read(b) < 0) throw new EOFException("Replication connection closed");
+        }
+    }
+
+
+    private static void writeFully(SocketChannel channel, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) channel.write(b);
+    }
+}
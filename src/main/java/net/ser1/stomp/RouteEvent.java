@@ -0,0 +1,33 @@
+package net.ser1.stomp;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JFR event: a SEND routed by the Server, including fan-out to every subscriber.
+ *
+ * @see Tracing
+ */
+@Name("net.ser1.stomp.Route")
+@Label("Route")
+@Category({"Gozirra", "Frames"})
+@Description("A SEND routed by the Server, including fan-out to every subscriber")
+@Threshold("1 ms")
+@StackTrace(false)
+final class RouteEvent extends Event {
+    @Label("Destination")
+    String destination;
+
+    @Label("Body Size")
+    @DataAmount
+    long size;
+
+    @Label("Subscribers")
+    int subscribers;
+}
@@ -0,0 +1,624 @@
+package net.ser1.stomp;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * A message selector: a SQL92-like condition on a message's headers, given
+ * in the <code>selector</code> header of a SUBSCRIBE.  For example:
+ * <pre>
+ *   region = 'EU' AND size > 1000
+ *   type IN ('order', 'refund') AND NOT urgent = 'true'
+ *   "content-type" LIKE 'text/%' OR priority BETWEEN 5 AND 9
+ * </pre>
+ * Supported are <code>AND OR NOT</code>, the comparisons
+ * <code>= &lt;&gt; &lt; &gt; &lt;= &gt;=</code>, <code>+ - * /</code>,
+ * <code>[NOT] LIKE</code> (with <code>ESCAPE</code>), <code>[NOT] IN</code>,
+ * <code>[NOT] BETWEEN</code>, <code>IS [NOT] NULL</code>, string, number
+ * and boolean literals, and parentheses.  Identifiers name headers; header
+ * names that aren't plain identifiers, such as those containing a dash or
+ * spelled like a keyword, go in double quotes.  Header values are strings, and are read as
+ * numbers when compared with numbers.  A missing header, or one that is
+ * not a number where a number is needed, makes its comparison unknown,
+ * and a message is only selected if the whole condition is true.
+ * <p/>
+ * An expression is parsed once, into a tree of nodes that evaluate
+ * directly against a header map.  Selectors are cached by their text, so
+ * subscribers with the same selector share one instance, and the Server
+ * evaluates it once per message for all of them.
+ */
+final class Selector {
+    static final String HEADER = "selector";
+
+    private static final int CACHE_SIZE = 1024;
+    private static final Map CACHE = new ConcurrentHashMap();
+
+    private final String _expression;
+    private final Node _root;
+
+
+    private Selector(String expression, Node root) {
+        _expression = expression;
+        _root = root;
+    }
+
+
+    /**
+     * Returns the selector for an expression, parsing it if it isn't
+     * cached.
+     *
+     * @throws IllegalArgumentException if the expression is not valid
+     */
+    static Selector compile(String expression) {
+        Selector s = (Selector) CACHE.get(expression);
+        if (s == null) {
+            s = new Selector(expression, new Parser(expression).parse());
+            if (CACHE.size() >= CACHE_SIZE) CACHE.clear();
+            CACHE.put(expression, s);
+        }
+        return s;
+    }
+
+
+    /**
+     * True if a message with these headers is selected.
+     */
+    boolean matches(Map headers) {
+        return _root.eval(headers) == Boolean.TRUE;
+    }
+
+
+    public String toString() {
+        return _expression;
+    }
+
+
+    // Evaluation.  Values are String, Double, Boolean, or null for unknown.
+
+    private static abstract class Node {
+        abstract Object eval(Map h);
+    }
+
+
+    private static final class Literal extends Node {
+        private final Object _value;
+
+        Literal(Object value) {
+            _value = value;
+        }
+
+        Object eval(Map h) {
+            return _value;
+        }
+    }
+
+
+    private static final class Header extends Node {
+        private final String _name;
+
+        Header(String name) {
+            _name = name;
+        }
+
+        Object eval(Map h) {
+            return h.get(_name);
+        }
+    }
+
+
+    private static final class And extends Node {
+        private final Node _left, _right;
+
+        And(Node left, Node right) {
+            _left = left;
+            _right = right;
+        }
+
+        Object eval(Map h) {
+            Object l = _left.eval(h);
+            if (l == Boolean.FALSE) return Boolean.FALSE;
+            Object r = _right.eval(h);
+            if (r == Boolean.FALSE) return Boolean.FALSE;
+            return l == Boolean.TRUE && r == Boolean.TRUE ? Boolean.TRUE : null;
+        }
+    }
+
+
+    private static final class Or extends Node {
+        private final Node _left, _right;
+
+        Or(Node left, Node right) {
+            _left = left;
+            _right = right;
+        }
+
+        Object eval(Map h) {
+            Object l = _left.eval(h);
+            if (l == Boolean.TRUE) return Boolean.TRUE;
+            Object r = _right.eval(h);
+            if (r == Boolean.TRUE) return Boolean.TRUE;
+            return l == Boolean.FALSE && r == Boolean.FALSE ? Boolean.FALSE : null;
+        }
+    }
+
+
+    private static final class Not extends Node {
+        private final Node _operand;
+
+        Not(Node operand) {
+            _operand = operand;
+        }
+
+        Object eval(Map h) {
+            Object v = _operand.eval(h);
+            if (v == Boolean.TRUE) return Boolean.FALSE;
+            if (v == Boolean.FALSE) return Boolean.TRUE;
+            return null;
+        }
+    }
+
+
+    private static final class Compare extends Node {
+        private static final String[] OPERATORS = {"=", "<>", "<", ">", "<=", ">="};
+        private static final int EQ = 0, NE = 1, LT = 2, GT = 3, LE = 4;
+
+        private final int _op;
+        private final Node _left, _right;
+
+        Compare(String op, Node left, Node right) {
+            int i = 0;
+            while (!OPERATORS[i].equals(op)) i++;
+            _op = i;
+            _left = left;
+            _right = right;
+        }
+
+        static boolean isOperator(String op) {
+            for (int i = 0; i < OPERATORS.length; i++) {
+                if (OPERATORS[i].equals(op)) return true;
+            }
+            return false;
+        }
+
+        Object eval(Map h) {
+            Object l = _left.eval(h);
+            Object r = _right.eval(h);
+            if (l == null || r == null) return null;
+            int c;
+            if (l instanceof Double || r instanceof Double) {
+                Double a = number(l), b = number(r);
+                if (a == null || b == null) return null;
+                c = Double.compare(a.doubleValue(), b.doubleValue());
+            } else if (l instanceof Boolean || r instanceof Boolean) {
+                Boolean a = bool(l), b = bool(r);
+                if (a == null || b == null) return null;
+                if (_op == EQ) return Boolean.valueOf(a.equals(b));
+                if (_op == NE) return Boolean.valueOf(!a.equals(b));
+                return null;
+            } else {
+                c = ((String) l).compareTo((String) r);
+            }
+            switch (_op) {
+                case EQ:
+                    return Boolean.valueOf(c == 0);
+                case NE:
+                    return Boolean.valueOf(c != 0);
+                case LT:
+                    return Boolean.valueOf(c < 0);
+                case GT:
+                    return Boolean.valueOf(c > 0);
+                case LE:
+                    return Boolean.valueOf(c <= 0);
+                default:
+                    return Boolean.valueOf(c >= 0);
+            }
+        }
+    }
+
+
+    private static final class Arithmetic extends Node {
+        private final char _op;
+        private final Node _left, _right;
+
+        Arithmetic(char op, Node left, Node right) {
+            _op = op;
+            _left = left;
+            _right = right;
+        }
+
+        Object eval(Map h) {
+            Double a = number(_left.eval(h));
+            if (a == null) return null;
+            Double b = number(_right.eval(h));
+            if (b == null) return null;
+            double x = a.doubleValue(), y = b.doubleValue();
+            switch (_op) {
+                case '+':
+                    return Double.valueOf(x + y);
+                case '-':
+                    return Double.valueOf(x - y);
+                case '*':
+                    return Double.valueOf(x * y);
+                default:
+                    return Double.valueOf(x / y);
+            }
+        }
+    }
+
+
+    private static final class IsNull extends Node {
+        private final Node _operand;
+        private final boolean _negated;
+
+        IsNull(Node operand, boolean negated) {
+            _operand = operand;
+            _negated = negated;
+        }
+
+        Object eval(Map h) {
+            return Boolean.valueOf((_operand.eval(h) == null) != _negated);
+        }
+    }
+
+
+    private static final class Like extends Node {
+        private final Node _operand;
+        private final Pattern _pattern;
+        private final boolean _negated;
+
+        Like(Node operand, Pattern pattern, boolean negated) {
+            _operand = operand;
+            _pattern = pattern;
+            _negated = negated;
+        }
+
+        Object eval(Map h) {
+            Object v = _operand.eval(h);
+            if (!(v instanceof String)) return null;
+            return Boolean.valueOf(_pattern.matcher((String) v).matches() != _negated);
+        }
+    }
+
+
+    private static final class In extends Node {
+        private final Node _operand;
+        private final Set _values;
+        private final boolean _negated;
+
+        In(Node operand, Set values, boolean negated) {
+            _operand = operand;
+            _values = values;
+            _negated = negated;
+        }
+
+        Object eval(Map h) {
+            Object v = _operand.eval(h);
+            if (!(v instanceof String)) return null;
+            return Boolean.valueOf(_values.contains(v) != _negated);
+        }
+    }
+
+
+    private static Double number(Object v) {
+        if (v instanceof Double) return (Double) v;
+        if (v instanceof String) {
+            try {
+                return Double.valueOf(((String) v).trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+
+    private static Boolean bool(Object v) {
+        if (v instanceof Boolean) return (Boolean) v;
+        if ("true".equalsIgnoreCase((String) v)) return Boolean.TRUE;
+        if ("false".equalsIgnoreCase((String) v)) return Boolean.FALSE;
+        return null;
+    }
+
+
+    // Parsing
+
+    private static final int END = 0, IDENTIFIER = 1, STRING = 2, NUMBER = 3, SYMBOL = 4;
+
+
+    /**
+     * A recursive descent parser, lowest precedence first:
+     * <pre>
+     *   or        := and ( OR and )*
+     *   and       := not ( AND not )*
+     *   not       := NOT not | predicate
+     *   predicate := sum [ comparison sum | IS [NOT] NULL | [NOT] LIKE string [ESCAPE string]
+     *                    | [NOT] IN ( string, ... ) | [NOT] BETWEEN sum AND sum ]
+     *   sum       := product ( ( + | - ) product )*
+     *   product   := unary ( ( * | / ) unary )*
+     *   unary     := ( + | - ) unary | primary
+     *   primary   := ( or ) | literal | identifier
+     * </pre>
+     */
+    private static final class Parser {
+        private final String _text;
+        private int _position = 0;
+        private int _type;
+        private String _token;
+        /**
+         * True if the identifier in _token was quoted, and so is never a
+         * keyword.
+         */
+        private boolean _quoted;
+
+        Parser(String text) {
+            if (text == null) throw new IllegalArgumentException("Empty selector");
+            _text = text;
+            next();
+        }
+
+        Node parse() {
+            if (_type == END) throw new IllegalArgumentException("Empty selector");
+            Node n = or();
+            if (_type != END) throw error("Unexpected '" + _token + "'");
+            return n;
+        }
+
+        private Node or() {
+            Node n = and();
+            while (keyword("OR")) {
+                next();
+                n = new Or(n, and());
+            }
+            return n;
+        }
+
+        private Node and() {
+            Node n = not();
+            while (keyword("AND")) {
+                next();
+                n = new And(n, not());
+            }
+            return n;
+        }
+
+        private Node not() {
+            if (keyword("NOT")) {
+                next();
+                return new Not(not());
+            }
+            return predicate();
+        }
+
+        private Node predicate() {
+            Node n = sum();
+            if (_type == SYMBOL && Compare.isOperator(_token)) {
+                String op = _token;
+                next();
+                return new Compare(op, n, sum());
+            }
+            if (keyword("IS")) {
+                next();
+                boolean negated = keyword("NOT");
+                if (negated) next();
+                expectKeyword("NULL");
+                return new IsNull(n, negated);
+            }
+            boolean negated = keyword("NOT");
+            if (negated) next();
+            if (keyword("LIKE")) {
+                next();
+                String pattern = string();
+                String escape = null;
+                if (keyword("ESCAPE")) {
+                    next();
+                    escape = string();
+                    if (escape.length() != 1) throw error("ESCAPE must be one character");
+                }
+                return new Like(n, like(pattern, escape), negated);
+            }
+            if (keyword("IN")) {
+                next();
+                expect("(");
+                Set values = new HashSet();
+                values.add(string());
+                while (_type == SYMBOL && _token.equals(",")) {
+                    next();
+                    values.add(string());
+                }
+                expect(")");
+                return new In(n, values, negated);
+            }
+            if (keyword("BETWEEN")) {
+                next();
+                Node low = sum();
+                expectKeyword("AND");
+                Node high = sum();
+                Node between = new And(new Compare(">=", n, low), new Compare("<=", n, high));
+                return negated ? new Not(between) : between;
+            }
+            if (negated) throw error("Expected LIKE, IN or BETWEEN after NOT");
+            return n;
+        }
+
+        private Node sum() {
+            Node n = product();
+            while (_type == SYMBOL && (_token.equals("+") || _token.equals("-"))) {
+                char op = _token.charAt(0);
+                next();
+                n = new Arithmetic(op, n, product());
+            }
+            return n;
+        }
+
+        private Node product() {
+            Node n = unary();
+            while (_type == SYMBOL && (_token.equals("*") || _token.equals("/"))) {
+                char op = _token.charAt(0);
+                next();
+                n = new Arithmetic(op, n, unary());
+            }
+            return n;
+        }
+
+        private Node unary() {
+            if (_type == SYMBOL && _token.equals("-")) {
+                next();
+                return new Arithmetic('-', new Literal(Double.valueOf(0)), unary());
+            }
+            if (_type == SYMBOL && _token.equals("+")) {
+                next();
+                return unary();
+            }
+            return primary();
+        }
+
+        private Node primary() {
+            if (_type == SYMBOL && _token.equals("(")) {
+                next();
+                Node n = or();
+                expect(")");
+                return n;
+            }
+            String t = _token;
+            if (_type == STRING) {
+                next();
+                return new Literal(t);
+            }
+            if (_type == NUMBER) {
+                next();
+                try {
+                    return new Literal(Double.valueOf(t));
+                } catch (NumberFormatException e) {
+                    throw error("Bad number '" + t + "'");
+                }
+            }
+            if (keyword("TRUE") || keyword("FALSE")) {
+                next();
+                return new Literal(Boolean.valueOf(t));
+            }
+            if (keyword("NULL")) {
+                next();
+                return new Literal(null);
+            }
+            if (_type == IDENTIFIER && (_quoted || !isReserved(t))) {
+                next();
+                return new Header(t);
+            }
+            throw error(_type == END ? "Unexpected end of selector" : "Unexpected '" + t + "'");
+        }
+
+        private String string() {
+            if (_type != STRING) throw error("Expected a string");
+            String s = _token;
+            next();
+            return s;
+        }
+
+        private void expect(String symbol) {
+            if (_type != SYMBOL || !_token.equals(symbol)) throw error("Expected '" + symbol + "'");
+            next();
+        }
+
+        private void expectKeyword(String word) {
+            if (!keyword(word)) throw error("Expected " + word);
+            next();
+        }
+
+        private boolean keyword(String word) {
+            return _type == IDENTIFIER && !_quoted && _token.equalsIgnoreCase(word);
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + _position + " of selector: " + _text);
+        }
+
+        /**
+         * Reads the next token into _type and _token.
+         */
+        private void next() {
+            int length = _text.length();
+            _quoted = false;
+            while (_position < length && Character.isWhitespace(_text.charAt(_position))) _position++;
+            if (_position >= length) {
+                _type = END;
+                _token = "";
+                return;
+            }
+            int start = _position;
+            char c = _text.charAt(_position);
+            if (c == '\'' || c == '"') {
+                // Quotes are escaped by doubling them
+                StringBuilder b = new StringBuilder();
+                _position++;
+                while (true) {
+                    if (_position >= length) throw error("Unterminated " + (c == '"' ? "identifier" : "string"));
+                    char d = _text.charAt(_position++);
+                    if (d == c) {
+                        if (_position < length && _text.charAt(_position) == c) {
+                            _position++;
+                        } else {
+                            break;
+                        }
+                    }
+                    b.append(d);
+                }
+                _type = c == '"' ? IDENTIFIER : STRING;
+                _quoted = c == '"';
+                _token = b.toString();
+            } else if (Character.isDigit(c) || (c == '.' && _position + 1 < length
+                    && Character.isDigit(_text.charAt(_position + 1)))) {
+                while (_position < length && (Character.isLetterOrDigit(_text.charAt(_position))
+                        || _text.charAt(_position) == '.')) {
+                    _position++;
+                }
+                _type = NUMBER;
+                _token = _text.substring(start, _position);
+            } else if (Character.isJavaIdentifierStart(c)) {
+                while (_position < length && (Character.isJavaIdentifierPart(_text.charAt(_position))
+                        || _text.charAt(_position) == '.')) {
+                    _position++;
+                }
+                _type = IDENTIFIER;
+                _token = _text.substring(start, _position);
+            } else {
+                _position++;
+                if (_position < length && (c == '<' || c == '>')) {
+                    char d = _text.charAt(_position);
+                    if (d == '=' || (c == '<' && d == '>')) _position++;
+                }
+                _type = SYMBOL;
+                _token = _text.substring(start, _position);
+                if ("=<>+-*/(),".indexOf(c) < 0) throw error("Unexpected '" + _token + "'");
+            }
+        }
+
+        private static boolean isReserved(String word) {
+            String w = word.toUpperCase();
+            return w.equals("AND") || w.equals("OR") || w.equals("NOT") || w.equals("LIKE")
+                    || w.equals("IN") || w.equals("BETWEEN") || w.equals("IS") || w.equals("ESCAPE");
+        }
+
+        /**
+         * Turns a LIKE pattern into a regular expression.
+         */
+        private static Pattern like(String pattern, String escape) {
+            StringBuilder b = new StringBuilder();
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (escape != null && c == escape.charAt(0) && i + 1 < pattern.length()) {
+                    b.append(Pattern.quote(String.valueOf(pattern.charAt(++i))));
+                } else if (c == '%') {
+                    b.append(".*");
+                } else if (c == '_') {
+                    b.append('.');
+                } else {
+                    b.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            return Pattern.compile(b.toString(), Pattern.DOTALL);
+        }
+    }
+}
@@ -3,6 +3,8 @@ package net.ser1.stomp;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Implements a Stomp server.  This is a tiny embeddable server that
@@ -29,11 +31,12 @@ import java.util.*;
  *   i.stop();
  * </pre>
  * <p/>
- * FIXME
- * Queues are not implemented.  Therefore, this server operates as an IRC,
- * rather than a Jabber, messaging system.  That is, all messages arriving
- * before a subscription request are lost to that client.  When Queues are
- * implemented, there will be an option to set persistence on the messages.
+ * By default, this server operates as an IRC, rather than a Jabber,
+ * messaging system.  That is, all messages arriving before a subscription
+ * request are lost to that client.  retain() keeps the latest message to
+ * a destination for subscribers that arrive later, and persist() stores
+ * every message to a destination in the Queue, from where subscribers can
+ * replay them.
  * <p/>
  * Would it be good if -- given a session ID -- clients could
  * reconnect and complete transactions?
@@ -42,10 +45,68 @@ import java.util.*;
  */
 public class Server {
     private Queue _message_queue;
+    private static final String START = "start";
+    private static final String EARLIEST = "earliest";
+    private static final String LATEST = "latest";
+    private static final String OFFSET = "offset:";
+    private static final String TIMESTAMP = "timestamp:";
+    private static final String CLIENT_ID = "client-id";
+    private static final String DURABLE = "durable-subscription-name";
+    /**
+     * On a SUBSCRIBE to a queue, puts the subscriber on credit; on an ACK,
+     * grants it more.
+     */
+    private static final String CREDIT = "credit";
+    private static final long CURSOR_INTERVAL = 1000;
+    /**
+     * Destinations starting with this are temporary: only the connection
+     * that first subscribes to one may subscribe to it, and it goes away
+     * when that connection does.  The same client, reconnecting, may take
+     * it over; see mayTakeOver().  Clients use them for replies.
+     */
+    public static final String TEMP_PREFIX = "/temp/";
+
     private Map _transactions;
-    private Map _listeners;
+    private volatile Shard[] _shards;
     private ConnectionListener _connection_listener;
     private Authenticator _authenticator = new AllowAllAuthenticator();
+    private ServerStats _stats;
+    private int _compression_threshold = Compression.DEFAULT_THRESHOLD;
+    private String _node_id = "node-" + java.util.UUID.randomUUID();
+    private Federation _federation;
+    private Replication.Primary _primary;
+    private Replication.Standby _standby;
+    private File _checkpoint_file;
+    private Timer _checkpoint_timer;
+    private final LastValueCache _retained = new LastValueCache();
+    private final Map _persisted = new ConcurrentHashMap();
+    private final Map _queues = new ConcurrentHashMap();
+    private final Map _durables = new HashMap();
+    private Timer _cursor_timer;
+    private final MemoryManager _memory =
+            new MemoryManager(Long.getLong("gozirra.memory", MemoryManager.DEFAULT_LIMIT).longValue());
+    private final Map _backlogs = new ConcurrentHashMap();
+    /**
+     * The connection owning each temporary destination.
+     */
+    private final Map _temporaries = new ConcurrentHashMap();
+    private volatile int _starvation_guard = PriorityIndex.DEFAULT_GUARD;
+    /**
+     * The IDs of recent messages, or null if SENDs aren't deduplicated.
+     */
+    private volatile Deduplicator _dedupe = Deduplicator.DEFAULT_CAPACITY > 0 ?
+            new Deduplicator(Deduplicator.DEFAULT_CAPACITY, Deduplicator.DEFAULT_TTL) : null;
+    /**
+     * Names the connections without a client-id, for deduplication.
+     */
+    private final Map _scopes = Collections.synchronizedMap(new WeakHashMap());
+    private final AtomicInteger _scope_count = new AtomicInteger();
+    /**
+     * Each connection's recent authorization decisions.
+     */
+    private final Map _authorizations = new ConcurrentHashMap();
+    private volatile int _authorization_cache_size = AuthorizationCache.DEFAULT_SIZE;
+    private volatile long _authorization_cache_ttl = AuthorizationCache.DEFAULT_TTL;
 
 
     /**
@@ -57,8 +118,9 @@ public class Server {
      */
     public Server() {
         _message_queue = new FileQueue();
-        _transactions = new HashMap();
-        _listeners = new HashMap();
+        _transactions = new ConcurrentHashMap();
+        _shards = shards(Integer.getInteger("gozirra.shards", 0).intValue());
+        if (Statistics.ENABLED) _stats = new ServerStats(this);
     }
 
 
@@ -149,6 +211,7 @@ public class Server {
                 _serve_sock = new ServerSocket(_port);
                 while (!isInterrupted()) {
                     sock = _serve_sock.accept();
+                    if (_stats != null) _stats.opened.increment();
                     try {
                         Thread handler = new SocketHandler(sock, _server);
                         handler.start();
@@ -164,10 +227,12 @@ public class Server {
             } catch (Exception e) {
                 e.printStackTrace(System.err);
             }
-            for (Iterator i = _handlers.iterator(); i.hasNext();) {
+            for (Iterator i = new ArrayList(_handlers).iterator(); i.hasNext();) {
                 try {
-                    Thread t = (Thread) i.next();
-                    t.interrupt();
+                    SocketHandler h = (SocketHandler) i.next();
+                    h.interrupt();
+                    // Handlers block reading their sockets until closed
+                    h.close();
                     Thread.yield();
                 } catch (Exception e) {
                 }
@@ -207,14 +272,41 @@ public class Server {
             _connection_listener.shutdown();
         }
         close(-1);
+        synchronized (this) {
+            if (_federation != null) _federation.close();
+            if (_primary != null) _primary.close();
+            if (_standby != null) _standby.close();
+        }
+        Shard[] shards = _shards;
+        for (int i = 0; i < shards.length; i++) shards[i].stop();
+        synchronized (_durables) {
+            if (_cursor_timer != null) _cursor_timer.cancel();
+        }
+        deactivateAll();
+        synchronized (this) {
+            if (_checkpoint_timer != null) _checkpoint_timer.cancel();
+        }
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            // The last periodic checkpoint stands
+        }
+        _memory.close();
+        _message_queue.close();
+        if (_stats != null) _stats.unregister();
+        if (FramePool.DEBUG) {
+            for (Iterator i = FramePool.leaks().iterator(); i.hasNext();) {
+                ((Throwable) i.next()).printStackTrace(System.err);
+            }
+        }
         Thread.yield();
     }
 
 
     /**
-     * Sets the queuing mechanism used for all further messages.  Any
-     * existing undelivered messages will <em>not</em> use this queue.
-     * FIXME Not implemented
+     * Sets where the messages of persisted destinations are stored.  The
+     * default is a FileQueue.  Messages already stored are not moved, so
+     * set this before persisting any destination.
      *
      * @param queue
      */
@@ -223,25 +315,331 @@ public class Server {
     }
 
 
+    /**
+     * Returns where the messages of persisted destinations are stored; for
+     * instance, to set the retention of a FileQueue.
+     */
+    public Queue getQueue() {
+        return _message_queue;
+    }
+
+
+    /**
+     * Stores every message sent to a destination from now on, so that
+     * subscribers can replay them.  A SUBSCRIBE to a persisted destination
+     * may carry a <code>start</code> header:
+     * <ul>
+     * <li><code>start:earliest</code> replays every stored message;</li>
+     * <li><code>start:offset:N</code> replays from offset N on;</li>
+     * <li><code>start:timestamp:T</code> replays the messages stored at or
+     * after T, in milliseconds since the epoch;</li>
+     * <li><code>start:latest</code>, like no start header at all, delivers
+     * only new messages.</li>
+     * </ul>
+     * Replayed messages are followed, without gaps or repeats, by new ones.
+     * Every message to a persisted destination carries <code>offset</code>
+     * and <code>timestamp</code> headers, so that a consumer can resume
+     * where it left off.
+     * <p/>
+     * A SUBSCRIBE to a persisted destination may also carry a
+     * <code>durable-subscription-name</code> header, from a client that
+     * gave a <code>client-id</code> at CONNECT.  The server then remembers
+     * how far the subscription has read, and when the client subscribes
+     * again under the same name it is sent everything it missed.  An
+     * UNSUBSCRIBE carrying the name ends the subscription for good.
+     * <p/>
+     * The receipt for a SEND to a persisted destination is only sent once
+     * the message is durable; see FileQueue.setDurability().
+     */
+    public void persist(String destination) {
+        _persisted.put(destination, destination);
+    }
+
+
+    /**
+     * Stops storing the messages of a destination.  Messages already stored
+     * are kept.
+     */
+    public void unpersist(String destination) {
+        _persisted.remove(destination);
+    }
+
+
+    /**
+     * Makes a destination a queue: each message goes to one subscriber,
+     * taking turns among those whose selector accepts it, and messages
+     * sent while there are none wait for one.  Other destinations give
+     * every message to every subscriber.
+     */
+    public void queue(String destination) {
+        _queues.put(destination, destination);
+    }
+
+
+    /**
+     * Makes a queue an ordinary destination again.  Messages already
+     * waiting on it still go, one to each subscriber, as subscribers come.
+     */
+    public void unqueue(String destination) {
+        _queues.remove(destination);
+    }
+
+
+    /**
+     * Sets the body size, in characters, from which messages to clients
+     * that negotiated compression are compressed.  A negative value turns
+     * compression off for connections made from now on.  The default is
+     * 1024.
+     */
+    public void setCompressionThreshold(int threshold) {
+        _compression_threshold = threshold;
+    }
+
+
     /**
      * Closes a port.  All connections on this port will be closed.
      *
      * @param port The port to close.  A value of < -1 closes all ports
      */
     public void close(int port) {
-        for (Iterator i = _listeners.keySet().iterator(); i.hasNext();) {
-            Object k = i.next();
-            Object s = _listeners.get(k);
-            if (s instanceof SocketHandler) {
-                SocketHandler sh = (SocketHandler) s;
-                if (port == -1 || sh.isPort(port)) {
-                    sh.interrupt();
-                    sh.close();
-                    _transactions.remove(s);
-                    _listeners.remove(k);
+        Shard[] shards = _shards;
+        for (int n = 0; n < shards.length; n++) {
+            for (Iterator i = shards[n].destinations().iterator(); i.hasNext();) {
+                String k = (String) i.next();
+                List l = shards[n].subscribers(k);
+                for (int j = 0; j < l.size(); j++) {
+                    Object s = l.get(j);
+                    if (s instanceof SocketHandler) {
+                        SocketHandler sh = (SocketHandler) s;
+                        if (port == -1 || sh.isPort(port)) {
+                            sh.interrupt();
+                            sh.close();
+                            abort(sh);
+                            shards[n].unsubscribe(k, sh);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Keeps the last message sent to a destination, and gives it to each
+     * new subscriber when it subscribes.  Use this for destinations that
+     * carry state, such as configuration, so that subscribers don't have
+     * to wait for the next change.  Retained messages are marked with a
+     * <code>retained:true</code> header.
+     */
+    public void retain(String destination) {
+        retain(destination, null);
+    }
+
+
+    /**
+     * Keeps the last message sent to a destination for each value of a
+     * header.  For example, <code>retain("/prices", "symbol")</code> keeps
+     * the latest price of every symbol, and gives a new subscriber all of
+     * them.  Messages without the header share one more slot.
+     */
+    public void retain(String destination, String key_header) {
+        _retained.retain(destination, key_header);
+    }
+
+
+    /**
+     * Stops retaining messages to a destination, and discards those
+     * retained.
+     */
+    public void forget(String destination) {
+        _retained.forget(destination);
+    }
+
+
+    /**
+     * Restores the retained messages, durable cursors and store indexes
+     * saved in a checkpoint file, if there is one, then saves them there
+     * every <code>interval</code> milliseconds and on stop().  Call this
+     * before clients use retained or persisted destinations.  A checkpoint
+     * that can't be read is reported and treated as absent: the stores
+     * then recover their indexes as they open, and retained messages
+     * start empty.
+     *
+     * @see Checkpoint
+     */
+    public void setCheckpoint(File file, long interval) throws IOException {
+        synchronized (this) {
+            if (_checkpoint_file != null) throw new IllegalStateException("Already checkpointing to " + _checkpoint_file);
+            _checkpoint_file = file;
+        }
+        FileQueue queue = _message_queue instanceof FileQueue ? (FileQueue) _message_queue : null;
+        try {
+            Checkpoint.read(file, _retained, queue);
+        } catch (IOException e) {
+            System.err.println("Ignoring checkpoint " + file + ": " + e.getMessage());
+        }
+        synchronized (this) {
+            _checkpoint_timer = new Timer("gozirra-checkpoint", true);
+            _checkpoint_timer.schedule(new TimerTask() {
+                public void run() {
+                    try {
+                        checkpoint();
+                    } catch (IOException e) {
+                        // Try again next time
+                    }
                 }
+            }, interval, interval);
+        }
+    }
+
+
+    /**
+     * Saves a checkpoint now, if setCheckpoint() has been called.
+     */
+    public void checkpoint() throws IOException {
+        File file;
+        synchronized (this) {
+            file = _checkpoint_file;
+        }
+        if (file == null) return;
+        saveCursors();
+        Queue q = _message_queue;
+        Checkpoint.write(file, _retained, q instanceof FileQueue ? (FileQueue) q : null);
+    }
+
+
+    /**
+     * Limits the memory used by retained messages, across all
+     * destinations.  When the limit is reached, the least recently used
+     * messages are discarded.  The default is 16MB.
+     */
+    public void setRetainedBytes(long bytes) {
+        _retained.setLimit(bytes);
+    }
+
+
+    /**
+     * Limits the memory used by the messages waiting in queues and open
+     * transactions, across all destinations and connections.  Past the
+     * limit, the queues used least recently are paged out to disk through
+     * the Queue, and read back as their consumers catch up.  The default is
+     * 64MB, or <code>-Dgozirra.memory=BYTES</code>.
+     */
+    public void setMemoryLimit(long bytes) {
+        _memory.setLimit(bytes);
+    }
+
+
+    /**
+     * Sets how many messages of higher priority may be delivered in a row
+     * while lower priority ones wait, before the lowest waiting one is
+     * delivered.  0 makes priority strict.  The default is 100, or
+     * <code>-Dgozirra.priority.guard=N</code>.
+     * <p/>
+     * Messages waiting on queues, and messages waiting to be written to
+     * federation peers, are delivered highest <code>priority</code> header
+     * first: 9 is highest, 0 lowest, and the default 4.
+     */
+    public void setStarvationGuard(int messages) {
+        _starvation_guard = messages;
+        synchronized (_backlogs) {
+            for (Iterator i = _backlogs.values().iterator(); i.hasNext();) {
+                ((Backlog) i.next()).setStarvationGuard(messages);
+            }
+        }
+    }
+
+
+    /**
+     * Delivers SENDs with the same <code>message-id</code> header only once
+     * within a window: a producer's last <code>messages</code> IDs, none
+     * older than <code>millis</code>.  A duplicate is receipted like the
+     * original, but not delivered; a message that can't be stored has its
+     * ID forgotten, so that its resend is taken.  IDs are per destination
+     * and per client-id given at CONNECT, so producers that reconnect
+     * should give one; without, they are per connection.  Each producer has
+     * a window of its own, and the 1024 most recently heard from are
+     * remembered, or <code>-Dgozirra.dedupe.producers=N</code>.
+     * Deduplication is off by default, or set with
+     * <code>-Dgozirra.dedupe.window=N</code> and
+     * <code>-Dgozirra.dedupe.time=MILLIS</code>.  0 messages turns it off.
+     * Changing the window forgets the IDs seen so far.
+     */
+    public void setDeduplication(int messages, long millis) {
+        _dedupe = messages > 0 ? new Deduplicator(messages, millis) : null;
+    }
+
+
+    /**
+     * Sets how many authorization decisions each connection remembers, and
+     * for how long, in milliseconds.  A connection asks the Authenticator
+     * once per destination and verb, then reuses the answer until it
+     * expires, is pushed out by others, or is invalidated.  The default is
+     * 256 decisions for a minute, or <code>-Dgozirra.auth.cache=N</code>
+     * and <code>-Dgozirra.auth.ttl=MILLIS</code>; 0 decisions asks the
+     * Authenticator every time.  Decisions already remembered are
+     * forgotten.
+     */
+    public void setAuthorizationCache(int decisions, long millis) {
+        _authorization_cache_size = decisions;
+        _authorization_cache_ttl = millis;
+        _authorizations.clear();
+    }
+
+
+    /**
+     * Forgets every connection's authorization decisions, for an
+     * Authenticator whose permissions have changed.
+     */
+    public void invalidateAuthorizations() {
+        for (Iterator i = _authorizations.values().iterator(); i.hasNext();) {
+            ((AuthorizationCache) i.next()).clear();
+        }
+    }
+
+
+    /**
+     * Forgets the authorization decisions of the connections logged in
+     * with a token returned by Authenticator.connect.
+     */
+    public void invalidateAuthorizations(Object token) {
+        for (Iterator i = _authorizations.entrySet().iterator(); i.hasNext();) {
+            Map.Entry e = (Map.Entry) i.next();
+            Object t = ((Authenticatable) e.getKey()).token();
+            if (t == null ? token == null : t.equals(token)) ((AuthorizationCache) e.getValue()).clear();
+        }
+    }
+
+
+    /**
+     * Splits routing across a number of threads.  Each destination is owned
+     * by one of the threads, which routes all of its messages in the order
+     * they arrived; connections hand their frames to the owning thread
+     * rather than routing them themselves.  With 0 threads, the default,
+     * each connection routes its own frames.  The default can also be set
+     * with <code>-Dgozirra.shards=N</code>.
+     * <p/>
+     * Must be called before any client subscribes.
+     *
+     * @throws IllegalStateException if there are subscriptions
+     */
+    public synchronized void setRoutingThreads(int threads) {
+        Shard[] old = _shards;
+        for (int i = 0; i < old.length; i++) {
+            if (!old[i].destinations().isEmpty()) {
+                throw new IllegalStateException("Routing threads must be set before clients subscribe");
             }
         }
+        _shards = shards(threads);
+        for (int i = 0; i < old.length; i++) old[i].stop();
+    }
+
+
+    private static Shard[] shards(int threads) {
+        if (threads <= 0) return new Shard[]{new Shard(null)};
+        Shard[] shards = new Shard[threads];
+        for (int i = 0; i < threads; i++) shards[i] = new Shard("gozirra-shard-" + i);
+        return shards;
     }
 
 
@@ -262,6 +660,13 @@ public class Server {
         private Server _server;
         private Object _client_token;
         private boolean _authenticated = false;
+        private boolean _closed = false;
+        private Compression _compression;
+        private boolean _peer = false;
+        private BatchingWriter _batcher;
+        private java.nio.channels.WritableByteChannel _channel;
+        private String _client_id;
+        private boolean _batch = false;
 
 
         /**
@@ -274,6 +679,7 @@ public class Server {
             _socket = sock;
             _server = s;
             setup(this, _input);
+            setRecycle(true);
         }
 
 
@@ -287,6 +693,14 @@ public class Server {
         }
 
 
+        /**
+         * True if this is a link from another federated node.
+         */
+        boolean isPeer() {
+            return _peer;
+        }
+
+
         /**
          * Tests whether the supplied port is the port this handler is
          * communicating with the client over.
@@ -304,6 +718,11 @@ public class Server {
          * Close the connection with the client.
          */
         protected void close() {
+            synchronized (this) {
+                if (_stats != null && !_closed) _stats.closed.increment();
+                _closed = true;
+            }
+            closed(this);
             try {
                 _socket.shutdownInput();
                 _input.close();
@@ -315,6 +734,7 @@ public class Server {
             try {
                 _socket.close();
             } catch (IOException e) { /* Who cares? */ }
+            if (_batcher != null) _batcher.close();
         }
 
 
@@ -330,16 +750,38 @@ public class Server {
          * RECEIPTs back to the client.
          */
         public void receive(Command c, Map h, String b) {
+            if (_stats != null) _stats.received.increment(c);
             if (c == Command.CONNECT) {
                 String login = (String) h.get("login");
                 String passcode = (String) h.get("passcode");
                 try {
-                    _client_token = Server.this._authenticator.connect(login, passcode);
+                    _client_token = Server.this.authenticate(login, passcode);
                     HashMap headers = new HashMap();
                     headers.put("session", String.valueOf(this.hashCode()));
+                    if (Compression.requested(h) && _compression_threshold >= 0) {
+                        _compression = new Compression(_compression_threshold);
+                        headers.put(Compression.NEGOTIATE, Compression.DEFLATE);
+                    }
+                    if (Batch.requested(h)) {
+                        _batch = true;
+                        headers.put(Batch.HEADER, "true");
+                    }
                     transmit(Command.CONNECTED, headers, null);
+                    _client_id = (String) h.get(CLIENT_ID);
+                    if (h.get(Federation.NODE) != null) {
+                        _peer = true;
+                        _batcher = new BatchingWriter(_output, "federation-" + h.get(Federation.NODE),
+                                new Runnable() {
+                                    public void run() {
+                                        close();
+                                    }
+                                }, _starvation_guard);
+                        _batcher.start();
+                    }
                     _authenticated = true;
+                    if (_stats != null) _stats.logins.increment();
                 } catch (javax.security.auth.login.LoginException e) {
+                    if (_stats != null) _stats.login_failures.increment();
                     transmit(Command.ERROR, null, "Login failed: " + e.getMessage());
                 }
             } else {
@@ -354,7 +796,7 @@ public class Server {
                         if (receipt != null) {
                             HashMap headers = new HashMap();
                             headers.put("receipt-id", receipt);
-                            receive(Command.RECEIPT, headers, null);
+                            receipt(headers);
                         }
                     }
                     _server.disconnect(this);
@@ -364,6 +806,19 @@ public class Server {
                 } else if (c == Command.ERROR) {
                     // Then there was an error in the client message.  Pass it back.
                     error(h, b);
+                } else if (Compression.compressed(h)) {
+                    if (_compression == null) {
+                        error(null, "Compressed body without negotiating compression");
+                        return;
+                    }
+                    try {
+                        b = _compression.decompress(b);
+                    } catch (IllegalArgumentException e) {
+                        error(null, e.getMessage());
+                        return;
+                    }
+                    h.remove(Compression.ENCODING);
+                    _server.receive(c, h, b, this);
                 } else {
                     _server.receive(c, h, b, this);
                 }
@@ -375,7 +830,101 @@ public class Server {
          * Called by the server; sends a message to this client.
          */
         public void message(Map headers, String body) {
-            transmit(Command.MESSAGE, headers, body);
+            if (_batch && Batch.batched(headers)) {
+                messages(Collections.singletonList(new Message(Command.MESSAGE, headers, body)));
+            } else {
+                deliver(headers, body);
+            }
+        }
+
+
+        /**
+         * Sends a message, or batch frame, to this client.  A message of its
+         * own with a batch header goes in a batch of one to a client that
+         * takes batches, which would otherwise read it as one.
+         */
+        private void deliver(Map headers, String body) {
+            if (_compression != null && _compression.worthCompressing(body)) {
+                message(headers, body, new Compression.Shared(headers, body));
+            } else {
+                transmit(Command.MESSAGE, headers, body);
+            }
+        }
+
+
+        /**
+         * Sends a message to this client, using the compressed form shared
+         * by all subscribers if this client negotiated compression.
+         */
+        void message(Map headers, String body, Compression.Shared shared) {
+            if (_batch && Batch.batched(headers)) {
+                message(headers, body);
+            } else if (_compression != null && _compression.worthCompressing(body) && shared.compress(_compression)) {
+                transmit(Command.MESSAGE, shared.headers(), shared.body());
+            } else {
+                transmit(Command.MESSAGE, headers, body);
+            }
+        }
+
+
+        /**
+         * Sends messages to this client, as one batch MESSAGE if there is
+         * more than one, or the one has a batch header of its own.
+         */
+        void messages(List messages) {
+            Message m = (Message) messages.get(0);
+            if (messages.size() == 1 && !Batch.batched(m.headers())) {
+                deliver(m.headers(), m.body());
+                return;
+            }
+            HashMap headers = new HashMap();
+            headers.put(Batch.HEADER, String.valueOf(messages.size()));
+            deliver(headers, Batch.encode(messages));
+            if (_stats != null) _stats.sent.add(Command.MESSAGE, messages.size() - 1);
+        }
+
+
+        /**
+         * True if this client agreed to batches at CONNECT.
+         */
+        boolean batches() {
+            return _batch;
+        }
+
+
+        /**
+         * The client-id given at CONNECT, which names the client's durable
+         * subscriptions.
+         */
+        String clientId() {
+            return _client_id;
+        }
+
+
+        /**
+         * True if stored frames may be copied straight to this client's
+         * socket.
+         */
+        boolean canTransfer() {
+            return _batcher == null;
+        }
+
+
+        /**
+         * Copies stored frames from the Queue to this client's socket.
+         *
+         * @return the offset after the last frame sent
+         */
+        synchronized long transfer(String destination, long from, long to) throws IOException {
+            if (_channel == null) {
+                // Sockets opened through a channel can be written with no
+                // copy through user space at all
+                _channel = _socket.getChannel() != null ? _socket.getChannel()
+                        : java.nio.channels.Channels.newChannel(_output);
+            }
+            long end = _message_queue.transfer(destination, from, to, _channel);
+            if (_stats != null) _stats.sent.add(Command.MESSAGE, end - from);
+            return end;
         }
 
 
@@ -399,7 +948,17 @@ public class Server {
          * Used by message(), receipt(), and error() to deliver the message to the
          * client.
          */
-        private void transmit(Command c, Map h, String b) {
+        private synchronized void transmit(Command c, Map h, String b) {
+            if (_stats != null) _stats.sent.increment(c);
+            if (_batcher != null) {
+                // The writer keeps the headers past this call, so they are
+                // copied; the copy also carries the origin of forwarded
+                // messages.
+                Map copy = h == null ? new HashMap() : new HashMap(h);
+                if (c == Command.MESSAGE) copy.put(Federation.ORIGIN, _node_id);
+                _batcher.write(c, copy, b);
+                return;
+            }
             try {
                 Transmitter.transmit(c, h, b, _output);
             } catch (Exception e) {
@@ -431,114 +990,1408 @@ public class Server {
      * @param y the thing that received the message and passed it to us
      */
     protected void receive(Command c, Map h, String b, Authenticatable y) {
-        long id = (int) (Math.random() * 10000);
+        // Network frames are counted by their SocketHandler
+        if (_stats != null && !(y instanceof SocketHandler)) _stats.received.increment(c);
+        route(c, h, b, y);
+    }
+
+
+    /**
+     * Discards a client's open transaction, if it has one.
+     */
+    private void abort(Authenticatable y) {
+        List trans = (List) _transactions.remove(y);
+        if (trans != null) {
+            synchronized (trans) {
+                if (_stats != null) _stats.aborts.increment();
+                for (Iterator i = trans.iterator(); i.hasNext();) {
+                    Message m = (Message) i.next();
+                    unbuffered(m);
+                    FramePool.release(m.headers());
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Does the work of receive().  Committed transactions are replayed
+     * through here, so that their messages aren't counted twice.
+     */
+    private void route(Command c, Map h, String b, Authenticatable y) {
         try {
+            String receipt = h == null ? null : (String) h.get("receipt");
             // Convert to MESSAGE and distribute
             if (c == Command.COMMIT) {
-                synchronized (_transactions) {
-                    List trans = (List) _transactions.remove(y);
-                    trans = new ArrayList(trans);
-                    for (Iterator i = trans.iterator(); i.hasNext();) {
-                        Message m = (Message) i.next();
-                        try {
-                            receive(m.command(), m.headers(), m.body(), y);
-                        } catch (Exception e) {
-                            // Don't allow listener code to break us
+                List trans = (List) _transactions.remove(y);
+                if (trans != null) {
+                    synchronized (trans) {
+                        if (_stats != null) _stats.committed(trans.size());
+                        for (Iterator i = trans.iterator(); i.hasNext();) {
+                            Message m = (Message) i.next();
+                            unbuffered(m);
+                            try {
+                                route(m.command(), m.headers(), m.body(), y);
+                            } catch (Exception e) {
+                                // Don't allow listener code to break us
+                            } finally {
+                                FramePool.release(m.headers());
+                            }
                         }
                     }
                 }
+                receiptAfterShards(receipt, y);
 
             } else if (c == Command.ABORT) {
-                synchronized (_transactions) {
-                    _transactions.remove(y);
-                }
+                abort(y);
+                receiptAfterShards(receipt, y);
 
             } else if (_transactions.get(y) != null) {
-                synchronized (_transactions) {
-                    ((List) _transactions.get(y)).add(new Message(c, h, b));
+                List trans = (List) _transactions.get(y);
+                synchronized (trans) {
+                    // The transaction keeps the headers until COMMIT or ABORT
+                    trans.add(new Message(c, FramePool.keep(h), b));
                 }
+                _memory.add(Backlog.size(h, b));
+                if (_stats != null && c == Command.send) {
+                    _stats.destination((String) h.get("destination")).buffered.increment();
+                }
+                receipt(receipt, y);
+
+            } else if (c == Command.BEGIN) {
+                _transactions.put(y, new ArrayList());
+                receiptAfterShards(receipt, y);
+
+            } else if (c == Command.DISCONNECT) {
+                disconnect(y, receipt);
+
+            } else if (c == Command.SEND && Batch.batched(h) && batches(y)) {
+                sendBatch(h, b, y, receipt);
 
             } else {
                 if (h == null) h = new HashMap();
-                String destination = (String) h.get("destination");
-                if (c == Command.SEND) {
-                    if (y instanceof IntraVMClient ||
-                            _authenticator.authorizeSend(y.token(), destination)) {
-                        synchronized (_listeners) {
-                            List l = (List) _listeners.get(destination);
-                            if (l != null) {
-                                l = new ArrayList(l);
-                                for (Iterator i = l.iterator(); i.hasNext();) {
-                                    Listener sh = (Listener) i.next();
-                                    try {
-                                        sh.message(h, b);
-                                    } catch (Exception e) {
-                                        // Don't allow listener code to break us
-                                    }
-                                }
-                            }
+                final String destination = (String) h.get("destination");
+                final Shard shard = shard(destination);
+                final Command fc = c;
+                // A threaded shard reads the headers after receive() has
+                // returned them to their owner
+                final Map fh = shard.threaded() ? FramePool.keep(h) : FramePool.retain(h);
+                final String fb = b;
+                final Authenticatable fy = y;
+                shard.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            route(shard, fc, destination, fh, fb, fy);
+                        } finally {
+                            FramePool.release(fh);
                         }
-                    } else {
-                        Map error_headers = new HashMap();
-                        error_headers.put("message:", "authorization refused");
-                        error_headers.put("type:", "send");
-                        error_headers.put("channel:", destination);
-                        y.error(error_headers, "The message:\n-----\n" + b +
-                                "\n-----\nAuthentication token refused for this channel");
                     }
+                });
+            }
+        } catch (Exception e) {
+            // Don't allow listener code to break us
+        }
+    }
 
-                } else if (c == Command.SUBSCRIBE) {
-                    if (y instanceof IntraVMClient ||
-                            _authenticator.authorizeSubscribe(y.token(), destination)) {
-                        synchronized (_listeners) {
-                            List l = (List) _listeners.get(destination);
-                            if (l == null) {
-                                l = new ArrayList();
-                                _listeners.put(destination, l);
-                            }
-                            if (!l.contains(y)) l.add(y);
-                        }
-                    } else {
+
+    /**
+     * Sends a receipt once every shard has routed the frames handed to it
+     * so far, so that it still means the frames before it were routed.
+     */
+    private void receiptAfterShards(String receipt, Authenticatable y) {
+        if (receipt == null) return;
+        Shard[] shards = _shards;
+        final Countdown countdown = new Countdown(shards.length, receipt, y);
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].execute(new Runnable() {
+                public void run() {
+                    countdown.done();
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Routes a frame for a destination, on the shard that owns the
+     * destination.
+     */
+    private void route(Shard shard, Command c, String destination, Map h, String b, Authenticatable y) {
+        try {
+            String receipt = (String) h.get("receipt");
+            if (c == Command.SEND) {
+                if (y instanceof IntraVMClient ||
+                        authorize(true, y, destination)) {
+                    if (send(shard, destination, h, b, y) && receipt != null) {
+                        // The receipt waits until the message is on disk
+                        receiptWhenStored(destination, receipt, y);
+                        receipt = null;
+                    }
+                } else {
+                    refused(destination, b, y);
+                }
+
+            } else if (c == Command.SUBSCRIBE) {
+                Selector selector = null;
+                String expression = (String) h.get(Selector.HEADER);
+                if (expression != null) {
+                    try {
+                        selector = Selector.compile(expression);
+                    } catch (IllegalArgumentException e) {
                         Map error_headers = new HashMap();
-                        error_headers.put("message:", "authorization refused");
+                        error_headers.put("message:", "invalid selector");
                         error_headers.put("type:", "subscription");
                         error_headers.put("channel:", destination);
-                        y.error(error_headers, "The message:\n-----\n" + b +
-                                "\n-----\nAuthentication token refused for this channel");
+                        y.error(error_headers, e.getMessage());
+                        return;
                     }
-
-                } else if (c == Command.UNSUBSCRIBE) {
-                    synchronized (_listeners) {
-                        List l = (List) _listeners.get(destination);
-                        if (l != null) l.remove(y);
+                }
+                if (y instanceof IntraVMClient ||
+                        authorize(false, y, destination)) {
+                    if (isTemporary(destination) && !own(shard, destination, y)) {
+                        y.error(null, destination + " belongs to another connection");
+                        return;
                     }
-
-                } else if (c == Command.BEGIN) {
-                    synchronized (_transactions) {
-                        List trans = new ArrayList();
-                        _transactions.put(y, trans);
+                    if (h.get(DURABLE) != null) {
+                        subscribeDurable(shard, destination, h, y, selector);
+                        return;
                     }
-
-                } else if (c == Command.DISCONNECT) {
-                    synchronized (_listeners) {
-                        for (Iterator i = _listeners.values().iterator(); i.hasNext();) {
-                            List l = (List) i.next();
-                            l.remove(y);
+                    String start = (String) h.get(START);
+                    if (start != null && !start.equals(LATEST) && persisted(destination)) {
+                        long from;
+                        try {
+                            from = start(destination, start);
+                        } catch (NumberFormatException e) {
+                            y.error(null, "Invalid start '" + start + "' for " + destination);
+                            return;
                         }
+                        if (_stats != null) _stats.destination(destination);
+                        // The replay subscribes, and sends the receipt
+                        new Replay(shard, destination, y, selector, from, (String) h.get("receipt")).start();
+                        return;
                     }
-                }
+                    String credit = (String) h.get(CREDIT);
+                    if (credit != null && isQueue(destination)) {
+                        long n = credit(credit);
+                        if (n < 0) {
+                            y.error(null, "Invalid credit '" + credit + "' for " + destination);
+                            return;
+                        }
+                        backlog(destination).limit((Listener) y, n);
+                    }
+                    if (_retained.retains(destination)) {
+                        synchronized (shard) {
+                            shard.subscribe(destination, (Listener) y, selector);
+                            replay(destination, (Listener) y, selector);
+                        }
+                    } else {
+                        shard.subscribe(destination, (Listener) y, selector);
+                    }
+                    drain(shard, destination);
+                    if (_stats != null) _stats.destination(destination);
+                    if (!isPeer(y)) federate(destination);
+                } else {
+                    if (_stats != null) _stats.authorization_failures.increment();
+                    Map error_headers = new HashMap();
+                    error_headers.put("message:", "authorization refused");
+                    error_headers.put("type:", "subscription");
+                    error_headers.put("channel:", destination);
+                    y.error(error_headers, "The message:\n-----\n" + b +
+                            "\n-----\nAuthentication token refused for this channel");
+                }
+
+            } else if (c == Command.ack) {
+                // Credit for a queue; other acknowledgements need nothing done
+                String credit = (String) h.get(CREDIT);
+                Backlog backlog = (Backlog) _backlogs.get(destination);
+                if (credit != null && backlog != null) {
+                    long n = credit(credit);
+                    if (n < 0) {
+                        y.error(null, "Invalid credit '" + credit + "' for " + destination);
+                        return;
+                    }
+                    if (backlog.grant((Listener) y, n)) drain(shard, destination);
+                }
+
+            } else if (c == Command.UNSUBSCRIBE) {
+                shard.unsubscribe(destination, (Listener) y);
+                Backlog backlog = (Backlog) _backlogs.get(destination);
+                if (backlog != null) backlog.forget((Listener) y);
+                deactivate(y, destination);
+                // Naming the durable subscription ends it for good
+                String name = durableName(h, y);
+                if (name != null && persisted(destination)) {
+                    synchronized (_durables) {
+                        _durables.remove(destination + '\u0000' + name);
+                    }
+                    _message_queue.removeCursor(destination, name);
+                }
+                if (!isPeer(y)) federate(destination);
             }
-            if (h != null) {
-                String receipt = (String) h.get("receipt");
-                if (receipt != null) {
-                    HashMap headers = new HashMap();
-                    headers.put("receipt-id", receipt);
-                    y.receive(Command.RECEIPT, headers, null);
+            receipt(receipt, y);
+        } catch (Exception e) {
+            // Don't allow listener code to break us
+        }
+    }
+
+
+    /**
+     * Delivers a message to the subscribers to its destination.  Each
+     * distinct selector is evaluated once, for all of the subscribers that
+     * share it.
+     *
+     * @return the number of subscribers the message was delivered to
+     */
+    private int fanOut(Shard shard, String destination, Map h, String b, Compression.Shared shared) {
+        Shard.Subscribers subscribers = shard.subscriptions(destination);
+        int delivered = 0;
+        for (int g = 0; g < subscribers.groups.length; g++) {
+            Selector selector = subscribers.selectors[g];
+            if (selector != null && !selector.matches(h)) continue;
+            List l = subscribers.groups[g];
+            for (int i = 0; i < l.size(); i++) {
+                deliver((Listener) l.get(i), destination, h, b, shared);
+            }
+            delivered += l.size();
+        }
+        return delivered;
+    }
+
+
+    /**
+     * True if a client's SENDs with a batch header are batches, rather
+     * than messages that happen to have one.  Intra-VM clients always
+     * batch; connections only once they agree to at CONNECT.
+     */
+    private static boolean batches(Authenticatable y) {
+        return !(y instanceof SocketHandler) || ((SocketHandler) y).batches();
+    }
+
+
+    /**
+     * Routes the messages of a batch SEND.  They are grouped by destination,
+     * so that each destination is authorized once and its messages are
+     * routed in one pass on its shard.  The receipt, if asked for, is sent
+     * once every message has been routed, and stored if its destination is
+     * persisted.
+     */
+    private void sendBatch(Map h, String b, final Authenticatable y, String receipt) {
+        List messages;
+        try {
+            messages = Batch.decode(Command.SEND, h, b);
+        } catch (IllegalArgumentException e) {
+            y.error(null, e.getMessage());
+            return;
+        }
+        Map destinations = new LinkedHashMap();
+        for (int i = 0; i < messages.size(); i++) {
+            Message m = (Message) messages.get(i);
+            String destination = (String) m.headers().get("destination");
+            if (destination == null) {
+                y.error(null, "Batch message " + i + " has no destination");
+                return;
+            }
+            List batch = (List) destinations.get(destination);
+            if (batch == null) {
+                batch = new ArrayList();
+                destinations.put(destination, batch);
+            }
+            batch.add(m);
+        }
+        if (_stats != null) _stats.received.add(Command.SEND, messages.size() - 1);
+        final Countdown countdown = new Countdown(destinations.size() + 1, receipt, y);
+        for (Iterator i = destinations.entrySet().iterator(); i.hasNext();) {
+            Map.Entry e = (Map.Entry) i.next();
+            final String destination = (String) e.getKey();
+            final List batch = (List) e.getValue();
+            if (!(y instanceof IntraVMClient) && !authorize(true, y, destination)) {
+                refused(destination, "(" + batch.size() + " batched messages)", y);
+                countdown.failed();
+                continue;
+            }
+            final Shard shard = shard(destination);
+            shard.execute(new Runnable() {
+                public void run() {
+                    sendAll(shard, destination, batch, y, countdown);
+                }
+            });
+        }
+        countdown.done();
+    }
+
+
+    /**
+     * Routes the batched messages to one destination.  Connections that
+     * take batches get what this delivers to them as one batch MESSAGE.
+     */
+    private void sendAll(Shard shard, final String destination, List messages, Authenticatable y,
+                         final Countdown countdown) {
+        // Held back messages could be overtaken by retained or replayed
+        // ones, which must come after them
+        boolean collect = !persisted(destination) && !_retained.retains(destination) &&
+                Batch.collecting() == null;
+        Batch.Collector collector = collect ? Batch.collect() : null;
+        boolean stored = false;
+        try {
+            for (int i = 0; i < messages.size(); i++) {
+                Message m = (Message) messages.get(i);
+                stored |= send(shard, destination, m.headers(), m.body(), y);
+            }
+        } catch (IOException e) {
+            // The sender has been told
+            countdown.failed();
+            return;
+        } finally {
+            if (collector != null) {
+                Batch.stopCollecting();
+                flush(collector);
+            }
+        }
+        if (!stored || !countdown.wanted()) {
+            countdown.done();
+            return;
+        }
+        try {
+            _message_queue.sync(destination, new Queue.SyncListener() {
+                public void synced(IOException failure) {
+                    if (failure == null) {
+                        countdown.done();
+                    } else {
+                        countdown.failed();
+                    }
+                }
+            });
+        } catch (IOException e) {
+            countdown.failed();
+        }
+    }
+
+
+    /**
+     * The producer that message IDs from a client belong to: its client-id,
+     * or without one, its connection.
+     */
+    private String producer(Authenticatable y) {
+        String client_id = y instanceof SocketHandler ? ((SocketHandler) y).clientId() : null;
+        if (client_id != null) return "client:" + client_id;
+        synchronized (_scopes) {
+            String scope = (String) _scopes.get(y);
+            if (scope == null) {
+                scope = "connection:" + _scope_count.incrementAndGet();
+                _scopes.put(y, scope);
+            }
+            return scope;
+        }
+    }
+
+
+    /**
+     * Sends the messages a Batch.Collector held back.
+     */
+    private void flush(Batch.Collector collector) {
+        for (Iterator i = collector.held().entrySet().iterator(); i.hasNext();) {
+            Map.Entry e = (Map.Entry) i.next();
+            ((SocketHandler) e.getKey()).messages((List) e.getValue());
+        }
+    }
+
+
+    /**
+     * Sends a receipt once a number of things are done, unless one of them
+     * failed.
+     */
+    private final class Countdown {
+        private final AtomicInteger _left;
+        private final String _receipt;
+        private final Authenticatable _client;
+        private volatile boolean _failed = false;
+
+        Countdown(int count, String receipt, Authenticatable client) {
+            _left = new AtomicInteger(count);
+            _receipt = receipt;
+            _client = client;
+        }
+
+        boolean wanted() {
+            return _receipt != null;
+        }
+
+        void done() {
+            if (_left.decrementAndGet() == 0 && !_failed) receipt(_receipt, _client);
+        }
+
+        void failed() {
+            _failed = true;
+            done();
+        }
+    }
+
+
+    /**
+     * Stores, if the destination is persisted, and delivers a message from
+     * a client allowed to send it.
+     *
+     * @return true if the message was stored
+     * @throws IOException if the message should have been stored but
+     *                     couldn't be; the sender has been told
+     */
+    private boolean send(Shard shard, String destination, Map h, String b, Authenticatable y)
+            throws IOException {
+        // IDs are per destination, within each producer's window
+        Deduplicator dedupe = _dedupe;
+        String id = dedupe == null ? null : (String) h.get(Deduplicator.HEADER);
+        String producer = null;
+        if (id != null) {
+            producer = producer(y);
+            id = destination + '\u0000' + id;
+            if (!dedupe.firstSeen(producer, id)) {
+                if (_stats != null) _stats.duplicates.increment();
+                // The original was stored before this was routed, so a
+                // receipt waiting for the store is as true of the one as of
+                // the other
+                return persisted(destination);
+            }
+        }
+        DestinationStats ds = _stats == null ? null : _stats.destination(destination);
+        if (ds != null) ds.in(b);
+        RouteEvent event = null;
+        if (Tracing.trace(Tracing.ROUTE)) {
+            event = new RouteEvent();
+            event.begin();
+        }
+        Compression.Shared shared = null;
+        if (b != null && _compression_threshold >= 0 && b.length() >= _compression_threshold) {
+            shared = new Compression.Shared(h, b);
+        }
+        int delivered;
+        boolean stored = false;
+        if (_retained.retains(destination) || persisted(destination)) {
+            // Keeps a new subscriber from getting a retained or
+            // replayed message after a newer one
+            synchronized (shard) {
+                if (persisted(destination)) {
+                    try {
+                        _message_queue.append(destination, h, b);
+                        stored = true;
+                    } catch (IOException e) {
+                        // So that the producer's resend isn't taken for a
+                        // duplicate
+                        if (producer != null) dedupe.forget(producer, id);
+                        y.error(null, "Message to " + destination + " could not be stored: " + e.getMessage());
+                        throw e;
+                    }
+                }
+                if (_retained.retains(destination)) _retained.put(destination, h, b);
+                delivered = distribute(shard, destination, h, b, shared, y);
+            }
+        } else {
+            delivered = distribute(shard, destination, h, b, shared, y);
+        }
+        if (ds != null && delivered > 0) ds.out(b, delivered);
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.destination = destination;
+                event.size = b == null ? 0 : b.length();
+                event.subscribers = delivered;
+                event.commit();
+            }
+        }
+        return stored;
+    }
+
+
+    /**
+     * Tells a client it may not send to a destination.
+     */
+    private void refused(String destination, String b, Authenticatable y) {
+        if (_stats != null) _stats.authorization_failures.increment();
+        Map error_headers = new HashMap();
+        error_headers.put("message:", "authorization refused");
+        error_headers.put("type:", "send");
+        error_headers.put("channel:", destination);
+        y.error(error_headers, "The message:\n-----\n" + b +
+                "\n-----\nAuthentication token refused for this channel");
+    }
+
+
+    /**
+     * Delivers a message: to one subscriber if the destination is a queue,
+     * otherwise to all of them.
+     *
+     * @return the number of subscribers the message was delivered to
+     */
+    private int distribute(Shard shard, String destination, Map h, String b, Compression.Shared shared,
+                           Authenticatable y) {
+        if (!isQueue(destination)) return fanOut(shard, destination, h, b, shared);
+        Backlog backlog = backlog(destination);
+        synchronized (backlog) {
+            if (backlog.isEmpty()) {
+                Listener l = backlog.consumer(shard.subscriptions(destination), h);
+                if (l != null) {
+                    deliver(l, destination, h, b, shared);
+                    return 1;
+                }
+            }
+            try {
+                backlog.add(h, b);
+            } catch (IOException e) {
+                y.error(null, "Message to " + destination + " could not be queued: " + e.getMessage());
+            }
+            return drain(shard, destination);
+        }
+    }
+
+
+    /**
+     * Gives the messages waiting on a queue to its subscribers, until it is
+     * empty or the oldest message is one no subscriber's selector accepts.
+     *
+     * @return the number of messages delivered
+     */
+    private int drain(Shard shard, String destination) {
+        Backlog backlog = (Backlog) _backlogs.get(destination);
+        if (backlog == null) return 0;
+        int delivered = 0;
+        synchronized (backlog) {
+            if (!backlog.startDrain()) return 0;
+            try {
+                Message m;
+                while ((m = backlog.peek()) != null) {
+                    Listener l = backlog.consumer(shard.subscriptions(destination), m.headers());
+                    if (l == null) break;
+                    backlog.poll();
+                    deliver(l, destination, m.headers(), m.body(), null);
+                    delivered++;
                 }
+            } catch (IOException e) {
+                // The paged messages stay on disk until the next attempt
+            } finally {
+                backlog.endDrain();
+            }
+        }
+        return delivered;
+    }
+
+
+    private Backlog backlog(String destination) {
+        Backlog backlog = (Backlog) _backlogs.get(destination);
+        if (backlog == null) {
+            synchronized (_backlogs) {
+                backlog = (Backlog) _backlogs.get(destination);
+                if (backlog == null) {
+                    backlog = new Backlog(destination, _message_queue, _memory, _starvation_guard);
+                    _backlogs.put(destination, backlog);
+                }
+            }
+        }
+        return backlog;
+    }
+
+
+    /**
+     * Reads a credit header.
+     *
+     * @return the credit, or -1 if it isn't a count
+     */
+    private static long credit(String credit) {
+        try {
+            return Math.max(-1, Long.parseLong(credit.trim()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+
+    /**
+     * Lets go of a client's temporary destinations.  Their subscriptions
+     * go with the client's others.
+     */
+    private void dropTemporaries(Authenticatable y) {
+        for (Iterator i = _temporaries.values().iterator(); i.hasNext();) {
+            if (i.next() == y) i.remove();
+        }
+    }
+
+
+    /**
+     * Makes a connection the owner of a temporary destination, unless it
+     * belongs to another that it may not take over from.
+     *
+     * @return false if the destination belongs to another connection
+     */
+    private boolean own(Shard shard, String destination, Authenticatable y) {
+        while (true) {
+            Authenticatable owner = (Authenticatable) _temporaries.putIfAbsent(destination, y);
+            if (owner == null || owner == y) return true;
+            if (!mayTakeOver(owner, y)) return false;
+            if (_temporaries.replace(destination, owner, y)) {
+                // The old connection may be half open, with no one reading
+                shard.unsubscribe(destination, (Listener) owner);
+                return true;
+            }
+        }
+    }
+
+
+    /**
+     * True if a connection may take a temporary destination over from its
+     * owner: the owner is closed, or both gave the same client-id at
+     * CONNECT, or, without one, were given equal tokens by the
+     * Authenticator.  So a client that reconnects before the server has
+     * noticed its old connection go gets its replies back.
+     */
+    private static boolean mayTakeOver(Authenticatable owner, Authenticatable y) {
+        if (owner.isClosed()) return true;
+        String owner_id = owner instanceof SocketHandler ? ((SocketHandler) owner).clientId() : null;
+        if (owner_id != null) {
+            return y instanceof SocketHandler && owner_id.equals(((SocketHandler) y).clientId());
+        }
+        Object token = y.token();
+        return token != null && token.equals(owner.token());
+    }
+
+
+    static boolean isTemporary(String destination) {
+        return destination != null && destination.startsWith(TEMP_PREFIX);
+    }
+
+
+    /**
+     * Takes a client off credit on every queue.
+     */
+    private void forgetCredit(Authenticatable y) {
+        for (Iterator i = _backlogs.values().iterator(); i.hasNext();) {
+            ((Backlog) i.next()).forget((Listener) y);
+        }
+    }
+
+
+    private boolean isQueue(String destination) {
+        return destination != null && _queues.containsKey(destination);
+    }
+
+
+    private boolean persisted(String destination) {
+        return destination != null && _persisted.containsKey(destination);
+    }
+
+
+    /**
+     * Works out the offset a SUBSCRIBE's start header points at.
+     */
+    private long start(String destination, String start) throws IOException {
+        long earliest = _message_queue.earliest(destination);
+        long next = _message_queue.next(destination);
+        if (start.equals(EARLIEST)) return earliest;
+        if (start.startsWith(OFFSET)) {
+            long offset = Long.parseLong(start.substring(OFFSET.length()).trim());
+            return Math.min(Math.max(offset, earliest), next);
+        }
+        if (start.startsWith(TIMESTAMP)) {
+            return _message_queue.offsetAt(destination, Long.parseLong(start.substring(TIMESTAMP.length()).trim()));
+        }
+        throw new NumberFormatException(start);
+    }
+
+
+    /**
+     * Brings a new subscriber to a persisted destination up to date from
+     * the Queue, and then subscribes it.  Runs on a thread of its own, so
+     * that a long replay doesn't hold up the destination's producers.
+     * <p/>
+     * The replay catches up without locking until it is within a few
+     * messages of the end of the log.  It then locks the shard, which
+     * stops new messages being stored and delivered, sends the rest, and
+     * subscribes.  Every message is therefore sent exactly once, in order.
+     */
+    private class Replay extends Thread {
+        private static final int TAIL = 256;
+
+        private final Shard _shard;
+        private final String _destination;
+        private final Authenticatable _client;
+        private final Listener _listener;
+        private final Selector _selector;
+        private final String _receipt;
+        private final Durable _durable;
+        private long _position;
+
+        Replay(Shard shard, String destination, Authenticatable client, Selector selector,
+               long from, String receipt) {
+            this(shard, destination, client, selector, from, receipt, null);
+        }
+
+        /**
+         * @param durable the durable subscription being resumed, whose
+         *                cursor the replay moves along, or null
+         */
+        Replay(Shard shard, String destination, Authenticatable client, Selector selector,
+               long from, String receipt, Durable durable) {
+            super("gozirra-replay-" + destination);
+            setDaemon(true);
+            _shard = shard;
+            _destination = destination;
+            _client = client;
+            _listener = (Listener) client;
+            _selector = selector;
+            _position = from;
+            _receipt = receipt;
+            _durable = durable;
+        }
+
+        private boolean abandoned() {
+            return _client.isClosed() || (_durable != null && _durable.client != _client);
+        }
+
+        public void run() {
+            try {
+                while (_message_queue.next(_destination) - _position > TAIL) {
+                    if (abandoned()) return;
+                    _position = send(_position, _message_queue.next(_destination));
+                    if (_durable != null) {
+                        _durable.position = _position;
+                        _message_queue.cursor(_destination, _durable.name, _position);
+                    }
+                }
+                synchronized (_shard) {
+                    if (abandoned()) return;
+                    _position = send(_position, _message_queue.next(_destination));
+                    _shard.subscribe(_destination, _listener, _selector);
+                    if (_durable != null) {
+                        _durable.position = _position;
+                        _durable.live = true;
+                    }
+                }
+                if (!isPeer(_client)) federate(_destination);
+                receipt(_receipt, _client);
+            } catch (IOException e) {
+                _client.error(null, "Replay of " + _destination + " failed: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Network clients without a selector get the stored frames copied
+         * straight from the log to their socket.
+         */
+        private long send(long from, long to) throws IOException {
+            if (_selector == null && _listener instanceof SocketHandler
+                    && ((SocketHandler) _listener).canTransfer()) {
+                return ((SocketHandler) _listener).transfer(_destination, from, to);
+            }
+            return _message_queue.read(_destination, from, to, new Listener() {
+                public void message(Map headers, String body) {
+                    if (_selector == null || _selector.matches(headers)) {
+                        deliver(_listener, _destination, headers, body, null);
+                    }
+                }
+            });
+        }
+    }
+
+
+    /**
+     * A durable subscription: a cursor into a persisted destination's log,
+     * and the client, if any, consuming from it.
+     */
+    private static final class Durable {
+        final String destination;
+        final String name;
+        volatile Authenticatable client;
+        /**
+         * While live, the client is subscribed and the cursor is the end of
+         * the log; otherwise the cursor is position.
+         */
+        volatile boolean live = false;
+        volatile long position;
+
+        Durable(String destination, String name) {
+            this.destination = destination;
+            this.name = name;
+        }
+    }
+
+
+    /**
+     * Names a durable subscription after the client-id given at CONNECT,
+     * or for intra-VM clients in the frame itself, and the subscription
+     * name.
+     *
+     * @return the name, or null if the frame doesn't name a durable
+     *         subscription
+     */
+    private String durableName(Map h, Authenticatable y) {
+        String subscription = (String) h.get(DURABLE);
+        if (subscription == null) return null;
+        String client_id = y instanceof SocketHandler ? ((SocketHandler) y).clientId() : null;
+        if (client_id == null) client_id = (String) h.get(CLIENT_ID);
+        return client_id == null ? null : client_id + ":" + subscription;
+    }
+
+
+    /**
+     * Starts a durable subscription, or resumes one from its cursor.  A new
+     * one starts where the start header says, by default at the end of the
+     * log.
+     */
+    private void subscribeDurable(Shard shard, String destination, Map h, Authenticatable y,
+                                  Selector selector) throws IOException {
+        String name = durableName(h, y);
+        if (name == null || !persisted(destination)) {
+            y.error(null, "A durable subscription needs a client-id and a persisted destination");
+            return;
+        }
+        Durable d;
+        synchronized (_durables) {
+            String key = destination + '\u0000' + name;
+            d = (Durable) _durables.get(key);
+            if (d == null) {
+                d = new Durable(destination, name);
+                _durables.put(key, d);
+            }
+            if (d.client == y) return;
+            if (d.client != null) {
+                y.error(null, "Durable subscription " + name + " to " + destination + " is already active");
+                return;
+            }
+            d.client = y;
+            if (_cursor_timer == null) {
+                _cursor_timer = new Timer("gozirra-cursors", true);
+                _cursor_timer.schedule(new TimerTask() {
+                    public void run() {
+                        saveCursors();
+                    }
+                }, CURSOR_INTERVAL, CURSOR_INTERVAL);
+            }
+        }
+        long from = _message_queue.cursor(destination, name);
+        if (from < 0) {
+            String start = (String) h.get(START);
+            try {
+                from = start == null || start.equals(LATEST) ? _message_queue.next(destination)
+                        : start(destination, start);
+            } catch (NumberFormatException e) {
+                d.client = null;
+                y.error(null, "Invalid start '" + start + "' for " + destination);
+                return;
+            }
+        }
+        from = Math.max(from, _message_queue.earliest(destination));
+        d.position = from;
+        _message_queue.cursor(destination, name, from);
+        if (_stats != null) _stats.destination(destination);
+        new Replay(shard, destination, y, selector, from, (String) h.get("receipt"), d).start();
+    }
+
+
+    private Durable[] durables() {
+        synchronized (_durables) {
+            return (Durable[]) _durables.values().toArray(new Durable[0]);
+        }
+    }
+
+
+    /**
+     * Detaches a client from its durable subscriptions, to one destination
+     * or, if destination is null, to all, saving their cursors.
+     */
+    private void deactivate(Authenticatable y, String destination) {
+        Durable[] durables = durables();
+        for (int i = 0; i < durables.length; i++) {
+            Durable d = durables[i];
+            if (d.client != y || (destination != null && !destination.equals(d.destination))) continue;
+            Shard shard = shard(d.destination);
+            try {
+                long position;
+                synchronized (shard) {
+                    shard.unsubscribe(d.destination, (Listener) y);
+                    position = d.live ? _message_queue.next(d.destination) : d.position;
+                    d.client = null;
+                    d.live = false;
+                    d.position = position;
+                }
+                _message_queue.cursor(d.destination, d.name, position);
+            } catch (IOException e) {
+                // The cursor on disk is at most a second old
+            }
+        }
+    }
+
+
+    private void deactivateAll() {
+        Durable[] durables = durables();
+        for (int i = 0; i < durables.length; i++) {
+            Authenticatable y = durables[i].client;
+            if (y != null) deactivate(y, null);
+        }
+    }
+
+
+    /**
+     * Called when a network connection closes, however it closed.  Runs
+     * on a thread of its own, since the connection may have been closed
+     * by a failed write while a shard was locked.
+     */
+    private void closed(final SocketHandler sh) {
+        abort(sh);
+        forgetCredit(sh);
+        dropTemporaries(sh);
+        _authorizations.remove(sh);
+        Durable[] durables = durables();
+        for (int i = 0; i < durables.length; i++) {
+            if (durables[i].client == sh) {
+                new Thread("gozirra-deactivate") {
+                    public void run() {
+                        deactivate(sh, null);
+                    }
+                }.start();
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Saves the cursors of active durable subscriptions, so that a crash
+     * doesn't send them far back.  Also lets the Queue discard what they
+     * have consumed.
+     */
+    private void saveCursors() {
+        Durable[] durables = durables();
+        for (int i = 0; i < durables.length; i++) {
+            Durable d = durables[i];
+            if (d.client == null) continue;
+            try {
+                long position = d.position;
+                if (d.live) {
+                    synchronized (shard(d.destination)) {
+                        if (d.live) position = _message_queue.next(d.destination);
+                    }
+                }
+                _message_queue.cursor(d.destination, d.name, position);
+            } catch (IOException e) {
+                // Try again next time
+            }
+        }
+    }
+
+
+    /**
+     * Gives a new subscriber the messages retained for a destination.
+     */
+    private void replay(String destination, Listener sh, Selector selector) {
+        List messages = _retained.get(destination);
+        for (int i = 0; i < messages.size(); i++) {
+            Message m = (Message) messages.get(i);
+            if (selector != null && !selector.matches(m.headers())) continue;
+            deliver(sh, destination, m.headers(), m.body(), null);
+        }
+    }
+
+
+    /**
+     * Removes a client's subscriptions from every shard, and sends the
+     * receipt, if one was asked for, once they are all gone.
+     */
+    private void disconnect(final Authenticatable y, final String receipt) {
+        abort(y);
+        deactivate(y, null);
+        forgetCredit(y);
+        dropTemporaries(y);
+        _authorizations.remove(y);
+        final Shard[] shards = _shards;
+        final AtomicInteger left = new AtomicInteger(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            final Shard shard = shards[i];
+            shard.execute(new Runnable() {
+                public void run() {
+                    shard.unsubscribe((Listener) y);
+                    if (left.decrementAndGet() == 0) {
+                        if (!isPeer(y)) federateAll();
+                        receipt(receipt, y);
+                    }
+                }
+            });
+        }
+    }
+
+
+    private void receipt(String receipt, Authenticatable y) {
+        if (receipt != null) {
+            HashMap headers = new HashMap();
+            headers.put("receipt-id", receipt);
+            if (y instanceof SocketHandler) {
+                ((SocketHandler) y).receipt(headers);
+            } else {
+                y.receive(Command.RECEIPT, headers, null);
+            }
+        }
+    }
+
+
+    /**
+     * Sends a receipt once the messages stored for a destination so far are
+     * as durable as the Queue makes them, or an error if they can't be.
+     */
+    private void receiptWhenStored(final String destination, final String receipt, final Authenticatable y)
+            throws IOException {
+        _message_queue.sync(destination, new Queue.SyncListener() {
+            public void synced(IOException failure) {
+                if (failure == null) {
+                    receipt(receipt, y);
+                } else {
+                    Map error_headers = new HashMap();
+                    error_headers.put("receipt-id", receipt);
+                    y.error(error_headers, "Message to " + destination + " could not be stored: " + failure.getMessage());
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Returns the shard that owns a destination.
+     */
+    private Shard shard(String destination) {
+        Shard[] shards = _shards;
+        if (shards.length == 1 || destination == null) return shards[0];
+        return shards[(destination.hashCode() & 0x7fffffff) % shards.length];
+    }
+
+
+    /**
+     * Hands a message to a single subscriber.
+     */
+    private void deliver(Listener sh, String destination, Map h, String b, Compression.Shared shared) {
+        if (sh instanceof SocketHandler && ((SocketHandler) sh).batches()) {
+            Batch.Collector collector = Batch.collecting();
+            if (collector != null) {
+                collector.add(sh, h, b);
+                return;
+            }
+        }
+        DeliveryEvent event = null;
+        if (Tracing.trace(Tracing.DELIVER)) {
+            event = new DeliveryEvent();
+            event.begin();
+        }
+        // Messages from another node went to every interested node already
+        if (h.get(Federation.ORIGIN) != null && isPeer(sh)) return;
+        try {
+            if (shared != null && sh instanceof SocketHandler) {
+                ((SocketHandler) sh).message(h, b, shared);
+            } else {
+                // Intra-VM listeners are user code, which may keep the headers
+                sh.message(sh instanceof IntraVMClient ? FramePool.detach(h) : h, b);
             }
         } catch (Exception e) {
             // Don't allow listener code to break us
         }
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.destination = destination;
+                event.size = b == null ? 0 : b.length();
+                event.subscriber = sh.toString();
+                event.commit();
+            }
+        }
+    }
+
+
+    /**
+     * Validates a login with the Authenticator.
+     */
+    private Object authenticate(String login, String passcode)
+            throws javax.security.auth.login.LoginException {
+        AuthorizationEvent event = null;
+        if (Tracing.trace(Tracing.AUTHORIZE)) {
+            event = new AuthorizationEvent();
+            event.begin();
+        }
+        boolean granted = false;
+        try {
+            Object token = _authenticator.connect(login, passcode);
+            granted = true;
+            return token;
+        } finally {
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.action = "connect";
+                    event.granted = granted;
+                    event.commit();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Asks the Authenticator whether a client may send to, or subscribe
+     * to, a destination, unless the client's connection remembers the
+     * answer.
+     */
+    private boolean authorize(boolean send, Authenticatable y, String destination) {
+        AuthorizationCache cache = authorizations(y);
+        if (cache == null) return ask(send, y.token(), destination);
+        Boolean decision = cache.get(send, destination);
+        if (decision != null) return decision.booleanValue();
+        long generation = cache.generation();
+        boolean granted = ask(send, y.token(), destination);
+        cache.put(send, destination, granted, generation);
+        return granted;
+    }
+
+
+    /**
+     * Returns a connection's authorization decisions, or null if they
+     * aren't remembered.
+     */
+    private AuthorizationCache authorizations(Authenticatable y) {
+        int size = _authorization_cache_size;
+        if (size <= 0 || y.isClosed()) return null;
+        AuthorizationCache cache = (AuthorizationCache) _authorizations.get(y);
+        if (cache == null) {
+            cache = new AuthorizationCache(size, _authorization_cache_ttl);
+            AuthorizationCache existing = (AuthorizationCache) _authorizations.putIfAbsent(y, cache);
+            if (existing != null) cache = existing;
+        }
+        return cache;
+    }
+
+
+    /**
+     * Asks the Authenticator, tracing the call.
+     */
+    private boolean ask(boolean send, Object token, String destination) {
+        AuthorizationEvent event = null;
+        if (Tracing.trace(Tracing.AUTHORIZE)) {
+            event = new AuthorizationEvent();
+            event.begin();
+        }
+        boolean granted = send ? _authenticator.authorizeSend(token, destination)
+                : _authenticator.authorizeSubscribe(token, destination);
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.action = send ? "send" : "subscribe";
+                event.destination = destination;
+                event.granted = granted;
+                event.commit();
+            }
+        }
+        return granted;
+    }
+
+
+    /**
+     * Takes a transacted SEND off its destination's buffered depth.
+     */
+    private void unbuffered(Message m) {
+        _memory.remove(Backlog.size(m.headers(), m.body()));
+        if (_stats != null && m.command() == Command.send && m.headers() != null) {
+            _stats.destination(m.headers().get("destination")).buffered.decrement();
+        }
+    }
+
+
+    /**
+     * Tells the federation, if there is one, that local subscriptions to a
+     * destination have changed.
+     */
+    private void federate(String destination) {
+        Federation f;
+        synchronized (this) {
+            f = _federation;
+        }
+        if (f != null) f.refresh(destination);
+    }
+
+
+    private void federateAll() {
+        Federation f;
+        synchronized (this) {
+            f = _federation;
+        }
+        if (f == null) return;
+        Set destinations = new HashSet();
+        Shard[] shards = _shards;
+        for (int i = 0; i < shards.length; i++) destinations.addAll(shards[i].destinations());
+        f.refreshAll(destinations);
+    }
+
+
+    private static boolean isPeer(Object o) {
+        return o instanceof SocketHandler && ((SocketHandler) o).isPeer();
+    }
+
+
+    /**
+     * True if a destination has subscribers other than federated nodes.
+     */
+    boolean hasLocalSubscribers(String destination) {
+        List l = shard(destination).subscribers(destination);
+        for (int i = 0; i < l.size(); i++) {
+            if (!isPeer(l.get(i))) return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Links this server to another server, so that messages sent to either
+     * are delivered to subscribers on both.  Every server in a federation
+     * must be linked to every other server.
+     *
+     * @see Federation
+     */
+    public void federate(String host, int port) throws IOException,
+            javax.security.auth.login.LoginException {
+        federate(host, port, "", "");
+    }
+
+
+    /**
+     * Links this server to another server that requires a login.
+     */
+    public void federate(String host, int port, String login, String passcode)
+            throws IOException, javax.security.auth.login.LoginException {
+        Federation f;
+        synchronized (this) {
+            if (_federation == null) _federation = new Federation(this);
+            f = _federation;
+        }
+        f.link(host, port, login, passcode);
+    }
+
+
+    /**
+     * Returns the name this server stamps on messages it forwards to
+     * federated servers.
+     */
+    public String getNodeId() {
+        return _node_id;
+    }
+
+
+    /**
+     * Names this server within a federation.  Must be unique among the
+     * federated servers, and set before federate() is called.
+     */
+    public void setNodeId(String id) {
+        _node_id = id;
+    }
+
+
+    /**
+     * Copies the stored messages and durable cursors, as they are written,
+     * to a standby server listening with standby().  With
+     * <code>semi_sync</code>, the receipt for a SEND to a persisted
+     * destination also waits for the standby to have the message, while it
+     * is connected.  The connection is retried until stop().
+     *
+     * @see Replication
+     */
+    public void replicateTo(String host, int port, boolean semi_sync) {
+        FileQueue queue = fileQueue();
+        synchronized (this) {
+            if (_primary != null) throw new IllegalStateException("Already replicating");
+            _primary = new Replication.Primary(queue, host, port, semi_sync);
+            queue.setReplica(_primary);
+            _primary.start();
+        }
+    }
+
+
+    /**
+     * Receives a primary's stored messages and durable cursors on a port,
+     * to take over from it with takeOver().
+     */
+    public void standby(int port) throws IOException {
+        FileQueue queue = fileQueue();
+        synchronized (this) {
+            if (_standby != null) throw new IllegalStateException("Already a standby");
+            _standby = new Replication.Standby(queue, port);
+            _standby.start();
+        }
+    }
+
+
+    /**
+     * Stops receiving from the primary and persists every destination
+     * received, so that clients connecting to this server carry on from
+     * the primary's messages and durable cursors.
+     */
+    public void takeOver() throws IOException {
+        Replication.Standby standby;
+        synchronized (this) {
+            standby = _standby;
+            _standby = null;
+        }
+        if (standby == null) throw new IllegalStateException("Not a standby");
+        standby.close();
+        List destinations = fileQueue().destinations();
+        for (int i = 0; i < destinations.size(); i++) {
+            String destination = (String) destinations.get(i);
+            if (!Replication.isInternal(destination)) persist(destination);
+        }
+    }
+
+
+    /**
+     * True while a standby is connected to this server.
+     */
+    public boolean isReplicating() {
+        Replication.Primary primary;
+        synchronized (this) {
+            primary = _primary;
+        }
+        return primary != null && primary.isConnected();
+    }
+
+
+    private FileQueue fileQueue() {
+        if (!(_message_queue instanceof FileQueue)) throw new IllegalStateException("Replication needs a FileQueue");
+        return (FileQueue) _message_queue;
+    }
+
+
+    long retainedBytes() {
+        return _retained.size();
+    }
+
+
+    long bufferedBytes() {
+        return _memory.bytes();
+    }
+
+
+    /**
+     * Returns the number of messages waiting on a queue destination, in
+     * memory or paged out.
+     */
+    public long queued(String destination) {
+        Backlog backlog = (Backlog) _backlogs.get(destination);
+        return backlog == null ? 0 : backlog.size();
+    }
+
+
+    /**
+     * Returns the number of subscribers to a destination.
+     */
+    int subscriberCount(String destination) {
+        return shard(destination).subscribers(destination).size();
+    }
+
+
+    /**
+     * Returns the statistics of this server, or null if statistics are
+     * disabled.  The same statistics are registered with the platform
+     * MBean server.
+     */
+    public ServerStatsMXBean getStatistics() {
+        return _stats;
     }
 
 
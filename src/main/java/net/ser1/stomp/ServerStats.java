@@ -0,0 +1,191 @@
+package net.ser1.stomp;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+import javax.management.ObjectName;
+
+/**
+ * Collects the statistics of one Server.  All counters are LongAdders, so
+ * the cost on the messaging threads is an uncontended add.  A Server only
+ * has one of these when statistics are enabled.
+ */
+class ServerStats implements ServerStatsMXBean {
+    /**
+     * The most destinations statistics are kept for; past this, those of
+     * the destination least recently used are dropped, MBean and all.
+     */
+    static final int DEFAULT_DESTINATIONS = Integer.getInteger("gozirra.stats.destinations", 1024).intValue();
+    private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+        public long applyAsLong(long a, long b) {
+            return Math.max(a, b);
+        }
+    };
+
+    private final Server _server;
+    private final String _name;
+    private final ObjectName _object_name;
+    private final ConcurrentHashMap<String, DestinationStats> _destinations = new ConcurrentHashMap<String, DestinationStats>();
+    private final int _max_destinations;
+
+    final Statistics.CommandCounters received = new Statistics.CommandCounters();
+    final Statistics.CommandCounters sent = new Statistics.CommandCounters();
+    final LongAdder opened = new LongAdder();
+    final LongAdder closed = new LongAdder();
+    final LongAdder logins = new LongAdder();
+    final LongAdder login_failures = new LongAdder();
+    final LongAdder authorization_failures = new LongAdder();
+    final LongAdder commits = new LongAdder();
+    final LongAdder aborts = new LongAdder();
+    final LongAdder committed_messages = new LongAdder();
+    final LongAdder duplicates = new LongAdder();
+    final LongAccumulator largest_transaction = new LongAccumulator(MAX, 0);
+
+
+    ServerStats(Server server) {
+        this(server, DEFAULT_DESTINATIONS);
+    }
+
+
+    ServerStats(Server server, int destinations) {
+        if (destinations < 1) throw new IllegalArgumentException("Destinations must be at least 1");
+        _server = server;
+        _max_destinations = destinations;
+        _name = Statistics.nextName("server");
+        _object_name = Statistics.name("Server", _name);
+        Statistics.register(this, _object_name);
+    }
+
+
+    /**
+     * Returns the statistics for a destination, creating and registering
+     * them the first time the destination is seen, or the first time since
+     * they were dropped.  Temporary destinations come and go with their
+     * connections, so they share one entry.
+     */
+    DestinationStats destination(String destination) {
+        if (destination == null) destination = "";
+        if (Server.isTemporary(destination)) destination = Server.TEMP_PREFIX + "*";
+        DestinationStats d = _destinations.get(destination);
+        if (d == null) d = create(destination);
+        d.used(System.currentTimeMillis());
+        return d;
+    }
+
+
+    /**
+     * Registers the statistics of a new destination, dropping those least
+     * recently used if there are too many.  Creating and dropping are
+     * serialized, so that a destination dropped and seen again at once
+     * doesn't lose its new MBean.
+     */
+    private synchronized DestinationStats create(String destination) {
+        DestinationStats d = _destinations.get(destination);
+        if (d != null) return d;
+        d = new DestinationStats(_server, destination);
+        d.used(System.currentTimeMillis());
+        _destinations.put(destination, d);
+        Statistics.register(d, Statistics.name("Destination", _name, destination));
+        while (_destinations.size() > _max_destinations) {
+            String eldest = null;
+            long oldest = Long.MAX_VALUE;
+            for (Iterator<Map.Entry<String, DestinationStats>> i = _destinations.entrySet().iterator(); i.hasNext();) {
+                Map.Entry<String, DestinationStats> e = i.next();
+                if (e.getValue() != d && e.getValue().lastUsed() < oldest) {
+                    eldest = e.getKey();
+                    oldest = e.getValue().lastUsed();
+                }
+            }
+            _destinations.remove(eldest);
+            Statistics.unregister(Statistics.name("Destination", _name, eldest));
+        }
+        return d;
+    }
+
+
+    void committed(int size) {
+        commits.increment();
+        committed_messages.add(size);
+        largest_transaction.accumulate(size);
+    }
+
+
+    /**
+     * Removes this server's MBeans from the platform MBean server.
+     */
+    synchronized void unregister() {
+        for (Iterator<String> i = _destinations.keySet().iterator(); i.hasNext();) {
+            Statistics.unregister(Statistics.name("Destination", _name, i.next()));
+        }
+        Statistics.unregister(_object_name);
+    }
+
+
+    public long getConnectionsOpened() {
+        return opened.sum();
+    }
+
+    public long getConnectionsClosed() {
+        return closed.sum();
+    }
+
+    public long getCurrentConnections() {
+        return opened.sum() - closed.sum();
+    }
+
+    public long getLogins() {
+        return logins.sum();
+    }
+
+    public long getLoginFailures() {
+        return login_failures.sum();
+    }
+
+    public long getAuthorizationFailures() {
+        return authorization_failures.sum();
+    }
+
+    public Map<String, Long> getFramesReceived() {
+        return received.snapshot();
+    }
+
+    public Map<String, Long> getFramesSent() {
+        return sent.snapshot();
+    }
+
+    public long getCommittedTransactions() {
+        return commits.sum();
+    }
+
+    public long getAbortedTransactions() {
+        return aborts.sum();
+    }
+
+    public long getCommittedMessages() {
+        return committed_messages.sum();
+    }
+
+    public long getLargestTransaction() {
+        return largest_transaction.get();
+    }
+
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    public long getRetainedBytes() {
+        return _server.retainedBytes();
+    }
+
+    public long getBufferedBytes() {
+        return _server.bufferedBytes();
+    }
+
+    public String[] getDestinations() {
+        return _destinations.keySet().toArray(new String[0]);
+    }
+}
@@ -0,0 +1,86 @@
+package net.ser1.stomp;
+
+import java.util.Map;
+
+/**
+ * Runtime statistics of a Server, registered with the platform MBean
+ * server as <code>net.ser1.stomp:type=Server,name="server-N"</code>.
+ * Per-destination statistics are registered separately; see
+ * DestinationStatsMXBean.
+ */
+public interface ServerStatsMXBean {
+    /**
+     * Network connections accepted since the server started.
+     */
+    long getConnectionsOpened();
+
+    /**
+     * Network connections closed since the server started.
+     */
+    long getConnectionsClosed();
+
+    /**
+     * Network connections currently open.
+     */
+    long getCurrentConnections();
+
+    /**
+     * Successful CONNECTs.
+     */
+    long getLogins();
+
+    /**
+     * CONNECTs refused by the Authenticator.
+     */
+    long getLoginFailures();
+
+    /**
+     * SENDs and SUBSCRIBEs refused by the Authenticator.
+     */
+    long getAuthorizationFailures();
+
+    /**
+     * Frames received from clients, by command.
+     */
+    Map<String, Long> getFramesReceived();
+
+    /**
+     * Frames sent to network clients, by command.
+     */
+    Map<String, Long> getFramesSent();
+
+    long getCommittedTransactions();
+
+    long getAbortedTransactions();
+
+    /**
+     * Total number of messages delivered by committed transactions.
+     */
+    long getCommittedMessages();
+
+    /**
+     * Number of messages in the largest transaction committed so far.
+     */
+    long getLargestTransaction();
+
+    /**
+     * Number of SENDs dropped as duplicates of recent messages.
+     */
+    long getDuplicates();
+
+    /**
+     * Approximate memory held by retained messages.
+     */
+    long getRetainedBytes();
+
+    /**
+     * Approximate memory held by queued messages and open transactions,
+     * not counting those paged out to disk.
+     */
+    long getBufferedBytes();
+
+    /**
+     * Destinations that have seen traffic or subscriptions.
+     */
+    String[] getDestinations();
+}
@@ -0,0 +1,276 @@
+package net.ser1.stomp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One partition of the Server's destinations.  Every destination hashes to
+ * exactly one shard, which holds its subscribers and does all routing for
+ * it.
+ * <p/>
+ * A shard is either inline, routing on whatever thread hands it a frame,
+ * or threaded, routing on a thread of its own.  Connections hand frames to
+ * a threaded shard through a lock-free queue, and because one thread
+ * drains it in order, frames to a destination are routed in the order
+ * they arrived.  The queue is bounded: a connection that gets too far
+ * ahead of its shard sleeps until it catches up, rather than spinning on
+ * a core the shard could use.
+ * <p/>
+ * Subscriber lists are replaced, not changed, when someone subscribes or
+ * unsubscribes, so routing a SEND never copies or locks one.  Subscribers
+ * that share a message selector are grouped, and the selector evaluated
+ * once per message for the group.
+ */
+final class Shard implements Runnable {
+    private static final int CAPACITY = 8192;
+    /**
+     * The shortest and longest a connection sleeps, in nanoseconds, before
+     * looking again at a full queue.  The sleeps double in between.
+     */
+    private static final long MIN_PAUSE = 1000;
+    private static final long MAX_PAUSE = 1000 * 1000;
+
+    private final Map _subscriptions = new ConcurrentHashMap();
+    private final ConcurrentLinkedQueue _queue = new ConcurrentLinkedQueue();
+    private final AtomicInteger _size = new AtomicInteger();
+    private final Thread _thread;
+    private volatile boolean _waiting = false;
+    private volatile boolean _stopped = false;
+
+
+    /**
+     * @param name the name of the routing thread, or null for an inline
+     *             shard
+     */
+    Shard(String name) {
+        if (name == null) {
+            _thread = null;
+        } else {
+            _thread = new ShardThread(this, name);
+            _thread.setDaemon(true);
+            _thread.start();
+        }
+    }
+
+
+    /**
+     * Runs a task on this shard: at once if the shard is inline, otherwise
+     * after the tasks already queued.
+     */
+    void execute(Runnable task) {
+        if (_thread == null || _stopped) {
+            task.run();
+            return;
+        }
+        // Shards never wait for each other, or two full shards handing
+        // each other frames would wait forever
+        if (!(Thread.currentThread() instanceof ShardThread)) {
+            long pause = MIN_PAUSE;
+            while (_size.get() >= CAPACITY && !_stopped) {
+                LockSupport.parkNanos(this, pause);
+                pause = Math.min(pause * 2, MAX_PAUSE);
+            }
+        }
+        _size.incrementAndGet();
+        _queue.offer(task);
+        if (_waiting) LockSupport.unpark(_thread);
+    }
+
+
+    public void run() {
+        while (!_stopped || !_queue.isEmpty()) {
+            Runnable task = (Runnable) _queue.poll();
+            if (task == null) {
+                _waiting = true;
+                if (_queue.isEmpty() && !_stopped) LockSupport.park(this);
+                _waiting = false;
+                continue;
+            }
+            _size.decrementAndGet();
+            try {
+                task.run();
+            } catch (Exception e) {
+                // Don't allow listener code to break us
+            }
+        }
+    }
+
+
+    /**
+     * True if tasks run on the shard's own thread, after execute() has
+     * returned.
+     */
+    boolean threaded() {
+        return _thread != null && !_stopped;
+    }
+
+
+    /**
+     * Stops the routing thread once the queued tasks have run.
+     */
+    void stop() {
+        if (_thread == null) return;
+        _stopped = true;
+        LockSupport.unpark(_thread);
+        if (_thread != Thread.currentThread()) {
+            try {
+                _thread.join(1000);
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+
+    /**
+     * The number of frames waiting to be routed.
+     */
+    int backlog() {
+        return _size.get();
+    }
+
+
+    /**
+     * Returns the subscriptions to a destination.
+     */
+    Subscribers subscriptions(String destination) {
+        Subscribers s = (Subscribers) _subscriptions.get(destination);
+        return s == null ? Subscribers.NONE : s;
+    }
+
+
+    /**
+     * Returns the subscribers to a destination.  The list must not be
+     * modified.
+     */
+    List subscribers(String destination) {
+        return subscriptions(destination).all;
+    }
+
+
+    /**
+     * Subscribes a listener to a destination, replacing its selector if it
+     * is already subscribed.
+     *
+     * @param selector the messages the listener wants, or null for all
+     */
+    synchronized void subscribe(String destination, Listener l, Selector selector) {
+        _subscriptions.put(destination, subscriptions(destination).with(l, selector));
+    }
+
+
+    synchronized void unsubscribe(String destination, Listener l) {
+        Subscribers old = subscriptions(destination);
+        if (!old.all.contains(l)) return;
+        Subscribers s = old.without(l);
+        if (s.all.isEmpty()) {
+            _subscriptions.remove(destination);
+        } else {
+            _subscriptions.put(destination, s);
+        }
+    }
+
+
+    /**
+     * Removes a subscriber from every destination in this shard.
+     */
+    synchronized void unsubscribe(Listener l) {
+        for (Iterator i = new ArrayList(_subscriptions.keySet()).iterator(); i.hasNext();) {
+            unsubscribe((String) i.next(), l);
+        }
+    }
+
+
+    Set destinations() {
+        return new HashSet(_subscriptions.keySet());
+    }
+
+
+    /**
+     * The subscribers to one destination, grouped by selector so that each
+     * distinct selector is evaluated once per message.  Never changed once
+     * built.
+     */
+    static final class Subscribers {
+        static final Subscribers NONE = new Subscribers(new LinkedHashMap());
+
+        /**
+         * Every subscriber, in the order they subscribed.
+         */
+        final List all;
+        /**
+         * The distinct selectors; null stands for no selector.
+         */
+        final Selector[] selectors;
+        /**
+         * The subscribers with each selector.
+         */
+        final List[] groups;
+        private final Map _selectors;
+
+        private Subscribers(Map selectors) {
+            _selectors = selectors;
+            all = new ArrayList(selectors.keySet());
+            Map groups = new LinkedHashMap();
+            Map first = new HashMap();
+            for (Iterator i = selectors.entrySet().iterator(); i.hasNext();) {
+                Map.Entry e = (Map.Entry) i.next();
+                Selector s = (Selector) e.getValue();
+                String key = s == null ? null : s.toString();
+                List g = (List) groups.get(key);
+                if (g == null) {
+                    g = new ArrayList();
+                    groups.put(key, g);
+                    first.put(key, s);
+                }
+                g.add(e.getKey());
+            }
+            this.selectors = new Selector[groups.size()];
+            this.groups = new List[groups.size()];
+            int n = 0;
+            for (Iterator i = groups.entrySet().iterator(); i.hasNext(); n++) {
+                Map.Entry e = (Map.Entry) i.next();
+                this.selectors[n] = (Selector) first.get(e.getKey());
+                this.groups[n] = (List) e.getValue();
+            }
+        }
+
+        /**
+         * Returns a subscriber's selector, or null if it has none.
+         */
+        Selector selector(Listener l) {
+            return (Selector) _selectors.get(l);
+        }
+
+        Subscribers with(Listener l, Selector s) {
+            Map m = new LinkedHashMap(_selectors);
+            m.put(l, s);
+            return new Subscribers(m);
+        }
+
+        Subscribers without(Listener l) {
+            Map m = new LinkedHashMap(_selectors);
+            m.remove(l);
+            return new Subscribers(m);
+        }
+    }
+
+
+    /**
+     * The routing thread of a threaded shard.
+     */
+    private static final class ShardThread extends Thread {
+        ShardThread(Runnable r, String name) {
+            super(r, name);
+        }
+    }
+}
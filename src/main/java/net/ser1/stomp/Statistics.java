@@ -0,0 +1,121 @@
+package net.ser1.stomp;
+
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Helpers shared by the JMX statistics of servers and clients.
+ * <p/>
+ * Statistics are on by default.  Starting the VM with
+ * <code>-Dgozirra.statistics=false</code> turns them off entirely: no
+ * MBeans are registered and the hot paths skip all counting.
+ */
+final class Statistics {
+    static final String DOMAIN = "net.ser1.stomp";
+    static final boolean ENABLED = !"false".equals(System.getProperty("gozirra.statistics"));
+
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+    private Statistics() {
+    }
+
+
+    /**
+     * Returns a name unique within this VM, such as "server-3".
+     */
+    static String nextName(String prefix) {
+        return prefix + "-" + SEQUENCE.incrementAndGet();
+    }
+
+
+    static ObjectName name(String type, String name) {
+        try {
+            return new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+        } catch (Exception e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+
+    static ObjectName name(String type, String parent, String name) {
+        try {
+            return new ObjectName(DOMAIN + ":type=" + type + ",server=" + ObjectName.quote(parent)
+                    + ",name=" + ObjectName.quote(name));
+        } catch (Exception e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+
+    /**
+     * Registers an MBean with the platform MBean server.  Failures are
+     * ignored; statistics must never stop messaging from working.
+     */
+    static void register(Object bean, ObjectName name) {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            if (mbs.isRegistered(name)) mbs.unregisterMBean(name);
+            mbs.registerMBean(bean, name);
+        } catch (Exception e) {
+            // Not worth breaking the server over
+        }
+    }
+
+
+    static void unregister(ObjectName name) {
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            if (mbs.isRegistered(name)) mbs.unregisterMBean(name);
+        } catch (Exception e) {
+            // Not worth breaking the server over
+        }
+    }
+
+
+    /**
+     * A counter per Stomp command.  All commands are known up front, so
+     * counting never allocates.
+     */
+    static final class CommandCounters {
+        private static final Command[] COMMANDS = {
+                Command.send, Command.subscribe, Command.unsubscribe, Command.begin,
+                Command.commit, Command.abort, Command.disconnect, Command.connect, Command.ack,
+                Command.message, Command.receipt, Command.connected, Command.error
+        };
+
+        private final Map<Command, LongAdder> _counters = new ConcurrentHashMap<Command, LongAdder>();
+
+        CommandCounters() {
+            for (int i = 0; i < COMMANDS.length; i++) {
+                _counters.put(COMMANDS[i], new LongAdder());
+            }
+        }
+
+        void increment(Command c) {
+            LongAdder a = _counters.get(c);
+            if (a != null) a.increment();
+        }
+
+        void add(Command c, long n) {
+            LongAdder a = _counters.get(c);
+            if (a != null) a.add(n);
+        }
+
+        Map<String, Long> snapshot() {
+            Map<String, Long> m = new TreeMap<String, Long>();
+            for (Iterator<Map.Entry<Command, LongAdder>> i = _counters.entrySet().iterator(); i.hasNext();) {
+                Map.Entry<Command, LongAdder> e = i.next();
+                m.put(e.getKey().toString(), Long.valueOf(e.getValue().sum()));
+            }
+            return m;
+        }
+    }
+}
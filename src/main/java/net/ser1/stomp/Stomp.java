@@ -6,6 +6,13 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 /**
  * A Stomp messaging implementation.
@@ -40,20 +47,45 @@ public abstract class Stomp {
 	 * Incoming receipts (as String IDs)
 	 */
 	private List<String> receipts = new ArrayList<String>();
+	/**
+	 * Receipts that will never come, with the reason, by ID. Guarded by
+	 * receipts.
+	 */
+	private final Map<String, String> failedReceipts = new HashMap<String, String>();
 	/**
 	 * True if connected to a server; false otherwise
 	 */
 	protected boolean connected = false;
+	/**
+	 * True if the server takes batch frames
+	 */
+	protected volatile boolean batching = false;
 	/**
 	 * Incoming errors (as String messages)
 	 */
 	private List<String> errors = new ArrayList<String>();
+	/**
+	 * Keeps receipt IDs made in the same millisecond apart
+	 */
+	private final AtomicLong receiptCount = new AtomicLong();
+	/**
+	 * The temporary destination replies to this client's requests go to,
+	 * once it has made one
+	 */
+	private String replyTo = null;
+	/**
+	 * Requests awaiting replies, by correlation ID
+	 */
+	private final Map<String, CompletableFuture<Message>> pending = new ConcurrentHashMap<String, CompletableFuture<Message>>();
+	private final AtomicLong correlationCount = new AtomicLong();
 
 	private static final String ID = "id";
 	private static final String THE_ID = "theid";
 	private static final String DESTINATION = "destination";
 	private static final String RECEIPT = "receipt";
 	private static final String RECEIPT_ID = "receipt-id";
+	private static final String REPLY_TO = "reply-to";
+	private static final String CORRELATION_ID = "correlation-id";
 
 	
 	
@@ -162,6 +194,8 @@ public abstract class Stomp {
 	 * confirmed that the commit was successful.
 	 */
 	public void commitW(Map<String, String> header) throws InterruptedException {
+		if (header == null)
+			header = new HashMap<String, String>();
 		String receipt = addReceipt(header);
 		transmit(Command.commit, header);
 		waitOnReceipt(receipt);
@@ -251,10 +285,41 @@ public abstract class Stomp {
 		transmit(Command.subscribe, headers);
 	}
 
+	/**
+	 * Returns a publisher of the messages sent to a channel, for reactive
+	 * pipelines. Nothing is subscribed until a Flow.Subscriber subscribes to
+	 * it, and messages are then taken from the server as the subscriber
+	 * requests them, up to 64 ahead.
+	 * 
+	 * @param name
+	 *            The name of the channel to listen on
+	 */
+	public Flow.Publisher<Message> publisher(String name) {
+		return publisher(name, null, StompPublisher.DEFAULT_PREFETCH);
+	}
+
+	/**
+	 * Returns a publisher of the messages sent to a channel, for reactive
+	 * pipelines. Subscribing to the publisher subscribes to the channel;
+	 * cancelling unsubscribes. On a queue, the server holds back messages
+	 * the subscriber hasn't requested. On a topic, once more than the
+	 * prefetch is held, the subscriber is sent an error and the subscription
+	 * cancelled; the thread delivering messages never waits for it.
+	 * 
+	 * @param name
+	 *            The name of the channel to listen on
+	 * @param headers
+	 *            Additional headers to send with the SUBSCRIBE; may be null
+	 * @param prefetch
+	 *            The most messages to take ahead of requests
+	 */
+	public Flow.Publisher<Message> publisher(String name, Map<String, String> headers, int prefetch) {
+		return new StompPublisher(this, name, headers, prefetch);
+	}
+
 	private String addReceipt(Map<String, String> header) {
-		if (header == null)
-			header = new HashMap<String, String>();
-		String receipt = String.valueOf(hashCode()) + "&" + System.currentTimeMillis();
+		String receipt = String.valueOf(hashCode()) + "&" + System.currentTimeMillis() + "&"
+				+ receiptCount.incrementAndGet();
 		header.put(RECEIPT, receipt);
 		return receipt;
 	}
@@ -271,6 +336,8 @@ public abstract class Stomp {
 	 *            A listener to receive messages sent to the channel
 	 */
 	public void subscribeW(String name, Listener alistener, Map<String, String> header) throws InterruptedException {
+		if (header == null)
+			header = new HashMap<String, String>();
 		String receipt = addReceipt(header);
 		subscribe(name, alistener, header);
 		waitOnReceipt(receipt);
@@ -366,8 +433,10 @@ public abstract class Stomp {
 	 *            The name of the channel to unsubscribe from.
 	 */
 	public void unsubscribeW(String name, Map<String, String> header) throws InterruptedException {
+		if (header == null)
+			header = new HashMap<String, String>();
 		String receipt = addReceipt(header);
-		unsubscribe(name, (HashMap<String, String>) null);
+		unsubscribe(name, header);
 		waitOnReceipt(receipt);
 	}
 
@@ -394,6 +463,8 @@ public abstract class Stomp {
 	 *            The message to send.
 	 */
 	public void sendW(String dest, String mesg, Map<String, String> header) throws InterruptedException {
+		if (header == null)
+			header = new HashMap<String, String>();
 		String receipt = addReceipt(header);
 		send(dest, mesg, header);
 		waitOnReceipt(receipt);
@@ -425,9 +496,144 @@ public abstract class Stomp {
 		if (header == null)
 			header = new HashMap<String, String>();
 		header.put(DESTINATION, dest);
+		if (batching && Batch.batched(header)) {
+			// Alone, the message's own batch header would read as framing
+			HashMap<String, String> frame = new HashMap<String, String>();
+			frame.put(DESTINATION, dest);
+			HashMap<String, String> own = new HashMap<String, String>(header);
+			if (own.containsKey(RECEIPT))
+				frame.put(RECEIPT, own.remove(RECEIPT));
+			List<Message> messages = new ArrayList<Message>(1);
+			messages.add(new Message(own, mesg));
+			sendBatch(frame, messages);
+			return;
+		}
 		transmit(Command.send, header, mesg);
 	}
 
+	/**
+	 * Sends a request and returns the reply, when it comes.
+	 * 
+	 * @see #request(String, String, Map, long)
+	 */
+	public CompletableFuture<Message> request(String dest, String mesg, long timeout) {
+		return request(dest, mesg, null, timeout);
+	}
+
+	/**
+	 * Sends a request and returns the reply, when it comes. The request
+	 * carries a reply-to header naming a temporary destination of this
+	 * client's, and a correlation-id header that the responder copies into
+	 * its reply (see reply). The first request subscribes to the reply
+	 * destination; later ones reuse it, so a request costs one message each
+	 * way.
+	 * 
+	 * @param timeout
+	 *            Milliseconds to wait for the reply, after which the future
+	 *            completes with a TimeoutException
+	 */
+	public CompletableFuture<Message> request(String dest, String mesg, Map<String, String> header, long timeout) {
+		String reply = replyDestination();
+		final String id = String.valueOf(correlationCount.incrementAndGet());
+		CompletableFuture<Message> future = new CompletableFuture<Message>();
+		pending.put(id, future);
+		future.orTimeout(timeout, TimeUnit.MILLISECONDS).whenComplete(new BiConsumer<Message, Throwable>() {
+			public void accept(Message m, Throwable e) {
+				pending.remove(id);
+			}
+		});
+		header = header == null ? new HashMap<String, String>() : new HashMap<String, String>(header);
+		header.put(REPLY_TO, reply);
+		header.put(CORRELATION_ID, id);
+		send(dest, mesg, header);
+		return future;
+	}
+
+	/**
+	 * Answers a request made with request.
+	 * 
+	 * @param request
+	 *            The headers of the request
+	 * @param mesg
+	 *            The reply
+	 * @throws IllegalArgumentException
+	 *             if the message isn't a request
+	 */
+	public void reply(Map<String, String> request, String mesg) {
+		String dest = request.get(REPLY_TO);
+		if (dest == null)
+			throw new IllegalArgumentException("Not a request: no " + REPLY_TO + " header");
+		Map<String, String> header = new HashMap<String, String>();
+		String id = request.get(CORRELATION_ID);
+		if (id != null)
+			header.put(CORRELATION_ID, id);
+		send(dest, mesg, header);
+	}
+
+	/**
+	 * Returns this client's reply destination, subscribing to it the first
+	 * time.
+	 */
+	private synchronized String replyDestination() {
+		if (replyTo == null) {
+			replyTo = Server.TEMP_PREFIX + UUID.randomUUID();
+			subscribe(replyTo, new Listener() {
+				public void message(Map headers, String body) {
+					CompletableFuture<Message> future = pending.remove(headers.get(CORRELATION_ID));
+					// Replies that come too late are dropped
+					if (future != null)
+						future.complete(new Message(Command.message, headers, body));
+				}
+			});
+		}
+		return replyTo;
+	}
+
+	/**
+	 * Send many messages in one frame, if the server agreed to batches when
+	 * connecting (pass batch:true in the CONNECT headers). Otherwise they are
+	 * sent one at a time.
+	 * 
+	 * @param messages
+	 *            The messages; each one's headers must give its destination.
+	 */
+	public void sendBatch(List<Message> messages) {
+		sendBatch(new HashMap<String, String>(), messages);
+	}
+
+	/**
+	 * Send many messages to a channel in one frame, if the server agreed to
+	 * batches when connecting. Otherwise they are sent one at a time.
+	 * 
+	 * @param dest
+	 *            The name of the channel to send the messages to
+	 * @param mesgs
+	 *            The messages to send.
+	 */
+	public void sendBatch(String dest, List<String> mesgs) {
+		List<Message> messages = new ArrayList<Message>(mesgs.size());
+		for (Iterator<String> i = mesgs.iterator(); i.hasNext();)
+			messages.add(new Message(null, i.next()));
+		HashMap<String, String> header = new HashMap<String, String>();
+		header.put(DESTINATION, dest);
+		sendBatch(header, messages);
+	}
+
+	private void sendBatch(Map<String, String> header, List<Message> messages) {
+		if (!batching) {
+			for (Iterator<Message> i = messages.iterator(); i.hasNext();) {
+				Message m = i.next();
+				HashMap<String, String> h = new HashMap<String, String>(header);
+				if (m.headers() != null)
+					h.putAll(m.headers());
+				transmit(Command.send, h, m.body());
+			}
+			return;
+		}
+		header.put(Batch.HEADER, String.valueOf(messages.size()));
+		transmit(Command.send, header, Batch.encode(messages));
+	}
+
 	/**
 	 * Get the next unconsumed message in the queue. This is non-blocking.
 	 * 
@@ -516,17 +722,39 @@ public abstract class Stomp {
 		}
 	}
 
+	/**
+	 * Gives up on a receipt, waking whoever waits on it.
+	 */
+	protected void failReceipt(String receipt_id, String reason) {
+		synchronized (receipts) {
+			failedReceipts.put(receipt_id, reason);
+			receipts.notifyAll();
+		}
+	}
+
+	/**
+	 * @throws IllegalStateException
+	 *             if the receipt will never come
+	 */
 	public void waitOnReceipt(String receipt_id) throws java.lang.InterruptedException {
 		synchronized (receipts) {
-			while (!hasReceipt(receipt_id))
+			while (!hasReceipt(receipt_id)) {
+				checkFailed(receipt_id);
 				receipts.wait();
+			}
 		}
 	}
 
+	/**
+	 * @throws IllegalStateException
+	 *             if the receipt will never come
+	 */
 	public boolean waitOnReceipt(String receipt_id, long timeout) throws java.lang.InterruptedException {
 		synchronized (receipts) {
-			while (!hasReceipt(receipt_id))
+			while (!hasReceipt(receipt_id)) {
+				checkFailed(receipt_id);
 				receipts.wait(timeout);
+			}
 			if (receipts.contains(receipt_id)) {
 				return true;
 			} else {
@@ -535,6 +763,12 @@ public abstract class Stomp {
 		}
 	}
 
+	private void checkFailed(String receipt_id) {
+		String reason = failedReceipts.remove(receipt_id);
+		if (reason != null)
+			throw new IllegalStateException(reason);
+	}
+
 	public boolean isConnected() {
 		return connected;
 	}
@@ -548,27 +782,61 @@ public abstract class Stomp {
 		}
 	}
 
-	public void receive(Command command, Map<String, String> headers, String body) {
+	/**
+	 * True if MESSAGEs with a batch header are batches, as they are once
+	 * batches were agreed at CONNECT; otherwise the header is the sender's
+	 * own.
+	 */
+	protected boolean receivesBatches() {
+		return batching;
+	}
 
-		if (command == Command.message) {
-			String destination = headers.get(DESTINATION);
-			synchronized (listeners) {
-				List listenersList = listeners.get(destination);
-				if (listenersList != null) {
-					listenersList = new ArrayList(listenersList);
-					for (Iterator i = listenersList.iterator(); i.hasNext();) {
-						Listener l = (Listener) i.next();
-						try {
-							l.message(headers, body);
-						} catch (Exception e) {
-							// Don't let listeners screw us over by throwing
-							// exceptions
-						}
+	/**
+	 * Hands a message to the listeners of its destination, or queues it
+	 * if there are none.
+	 */
+	private void dispatch(Map<String, String> headers, String body) {
+		String destination = headers.get(DESTINATION);
+		synchronized (listeners) {
+			List listenersList = listeners.get(destination);
+			if (listenersList != null) {
+				listenersList = new ArrayList(listenersList);
+				for (Iterator i = listenersList.iterator(); i.hasNext();) {
+					Listener l = (Listener) i.next();
+					try {
+						l.message(headers, body);
+					} catch (Exception e) {
+						// Don't let listeners screw us over by throwing
+						// exceptions
 					}
-				} else {
-					queue.push(new Message(command, headers, body));
 				}
+			} else {
+				queue.push(new Message(Command.message, headers, body));
 			}
+		}
+	}
+
+	public void receive(Command command, Map<String, String> headers, String body) {
+
+		if (command == Command.message && receivesBatches() && Batch.batched(headers)) {
+			List messages;
+			try {
+				messages = Batch.decode(command, headers, body);
+			} catch (IllegalArgumentException e) {
+				receive(Command.error, null, e.getMessage());
+				return;
+			}
+			for (Iterator i = messages.iterator(); i.hasNext();) {
+				Message m = (Message) i.next();
+				// A message's own batch header is not framing
+				if (Batch.batched(m.headers()))
+					dispatch(m.headers(), m.body());
+				else
+					receive(command, m.headers(), m.body());
+			}
+
+		} else if (command == Command.message) {
+			dispatch(headers, body);
 
 		} else if (command == Command.connected) {
 			connected = true;
@@ -0,0 +1,237 @@
+package net.ser1.stomp;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Flow;
+
+/**
+ * Publishes the messages sent to a channel to one Flow.Subscriber, no
+ * faster than it requests them.
+ * <p/>
+ * Demand becomes credit on the server: the SUBSCRIBE carries a
+ * <code>credit</code> header, and further requests are granted with ACK
+ * frames carrying more.  A queue gives a subscriber no more messages than
+ * its credit, so the rest wait on the server, under its memory budget.
+ * At most <code>prefetch</code> messages are granted ahead of being passed
+ * on, and grants are saved up until they are worth a frame.
+ * <p/>
+ * Topics keep no messages, so their messages come regardless of credit.
+ * Those the subscriber hasn't asked for are held, up to
+ * <code>prefetch</code>; past that, the subscription is cancelled and the
+ * subscriber sent an IllegalStateException.  The thread delivering
+ * messages is never made to wait: it serves every channel of the
+ * connection, and for an intra-VM client it is one of the server's
+ * routing threads.  A subscriber that can fall behind should use a queue
+ * (see Server.queue()), where credit keeps the messages on the server.
+ */
+final class StompPublisher implements Flow.Publisher<Message> {
+    static final int DEFAULT_PREFETCH = 64;
+    private static final String CREDIT = "credit";
+    private static final String DESTINATION = "destination";
+
+    private final Stomp _stomp;
+    private final String _destination;
+    private final Map<String, String> _headers;
+    private final int _prefetch;
+    private boolean _subscribed = false;
+
+
+    StompPublisher(Stomp stomp, String destination, Map<String, String> headers, int prefetch) {
+        if (prefetch < 1) throw new IllegalArgumentException("Prefetch must be at least 1");
+        _stomp = stomp;
+        _destination = destination;
+        _headers = headers == null ? new HashMap<String, String>() : new HashMap<String, String>(headers);
+        _prefetch = prefetch;
+    }
+
+
+    /**
+     * Starts publishing to a subscriber.  A channel's messages can only go
+     * to one subscriber; others are sent an error.
+     */
+    public void subscribe(Flow.Subscriber<? super Message> subscriber) {
+        if (subscriber == null) throw new NullPointerException("subscriber");
+        synchronized (this) {
+            if (_subscribed) {
+                subscriber.onSubscribe(new Flow.Subscription() {
+                    public void request(long n) {
+                    }
+
+                    public void cancel() {
+                    }
+                });
+                subscriber.onError(new IllegalStateException("Already publishing " + _destination));
+                return;
+            }
+            _subscribed = true;
+        }
+        Delivery delivery = new Delivery(subscriber);
+        subscriber.onSubscribe(delivery);
+        delivery.start();
+    }
+
+
+    /**
+     * The subscription of the one subscriber.  Messages are passed on by
+     * whichever thread finds them wanted: the connection's, or one calling
+     * request.  Only one passes messages on at a time.
+     */
+    private final class Delivery implements Flow.Subscription, Listener {
+        private final Flow.Subscriber<? super Message> _subscriber;
+        private final ArrayDeque<Message> _held = new ArrayDeque<Message>();
+        private long _demand = 0;
+        /**
+         * Credit granted to the server, and messages received, in total.
+         */
+        private long _granted = 0;
+        private long _received = 0;
+        private boolean _started = false;
+        private boolean _cancelled = false;
+        private boolean _emitting = false;
+        /**
+         * The reason the subscription failed, until the subscriber is
+         * told.
+         */
+        private Throwable _error = null;
+
+
+        Delivery(Flow.Subscriber<? super Message> subscriber) {
+            _subscriber = subscriber;
+        }
+
+
+        /**
+         * Subscribes, with credit for whatever was requested so far.
+         */
+        void start() {
+            Map<String, String> headers = new HashMap<String, String>(_headers);
+            synchronized (this) {
+                if (_cancelled) return;
+                _started = true;
+                long credit = wanted();
+                _granted = credit;
+                headers.put(CREDIT, String.valueOf(credit));
+            }
+            _stomp.subscribe(_destination, this, headers);
+        }
+
+
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                _subscriber.onError(new IllegalArgumentException("Requested " + n + " messages"));
+                return;
+            }
+            synchronized (this) {
+                _demand = _demand + n < 0 ? Long.MAX_VALUE : _demand + n;
+            }
+            emit();
+        }
+
+
+        public void cancel() {
+            boolean started;
+            synchronized (this) {
+                if (_cancelled) return;
+                _cancelled = true;
+                started = _started;
+                _held.clear();
+            }
+            if (started) _stomp.unsubscribe(_destination, this);
+        }
+
+
+        /**
+         * Called by the connection with each message of the channel.  Fails
+         * the subscription if too many are held.
+         */
+        public void message(Map headers, String body) {
+            boolean overflowed;
+            synchronized (this) {
+                if (_cancelled) return;
+                _received++;
+                _held.add(new Message(Command.message, headers, body));
+                overflowed = _held.size() > _prefetch;
+                if (overflowed) {
+                    _cancelled = true;
+                    _held.clear();
+                    _error = new IllegalStateException("More than " + _prefetch + " messages from "
+                            + _destination + " were not requested");
+                }
+            }
+            if (overflowed) _stomp.unsubscribe(_destination, this);
+            emit();
+        }
+
+
+        /**
+         * Passes on held messages while there is demand, then grants the
+         * server credit for what is still wanted.
+         */
+        private void emit() {
+            synchronized (this) {
+                if (_emitting) return;
+                _emitting = true;
+            }
+            while (true) {
+                Message m;
+                Throwable error;
+                synchronized (this) {
+                    error = _error;
+                    _error = null;
+                    if (error != null || _cancelled || _demand == 0 || _held.isEmpty()) {
+                        _emitting = false;
+                        if (error == null) break;
+                        m = null;
+                    } else {
+                        m = _held.poll();
+                        if (_demand != Long.MAX_VALUE) _demand--;
+                    }
+                }
+                if (error != null) {
+                    // The last signal; whoever emits next finds it cancelled
+                    _subscriber.onError(error);
+                    return;
+                }
+                try {
+                    _subscriber.onNext(m);
+                } catch (Throwable t) {
+                    cancel();
+                    return;
+                }
+            }
+            replenish();
+        }
+
+
+        /**
+         * Grants the server more credit, once enough is wanted to be worth
+         * an ACK, or none is outstanding.
+         */
+        private void replenish() {
+            long credit;
+            synchronized (this) {
+                if (!_started || _cancelled) return;
+                long outstanding = Math.max(0, _granted - _received);
+                credit = wanted() - outstanding;
+                if (credit <= 0) return;
+                if (outstanding > 0 && credit < Math.max(1, _prefetch / 2)) return;
+                _granted += credit;
+            }
+            Map<String, String> headers = new HashMap<String, String>();
+            headers.put(DESTINATION, _destination);
+            headers.put(CREDIT, String.valueOf(credit));
+            _stomp.transmit(Command.ack, headers);
+        }
+
+
+        /**
+         * The messages wanted from the server: the demand not met by those
+         * held, up to the prefetch.
+         */
+        private long wanted() {
+            return Math.max(0, Math.min(_demand - _held.size(), _prefetch));
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package net.ser1.stomp;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import jdk.jfr.EventType;
+
+/**
+ * Java Flight Recorder support.  The per-frame events are only created
+ * when a recording has them enabled and the frame is picked by sampling,
+ * so with no recording running the cost is a flag check per frame.
+ * <p/>
+ * Two knobs keep the events cheap enough to leave on in production:
+ * <ul>
+ * <li>Thresholds: every event has a default threshold of 1 ms, which can be
+ * changed per event in the recording settings, e.g.
+ * <code>-XX:StartFlightRecording:settings=my.jfc</code> with
+ * <code>net.ser1.stomp.FrameDecode#threshold=100 us</code>.</li>
+ * <li>Sampling: <code>-Dgozirra.jfr.sample=N</code> traces roughly one frame
+ * in N.  The default of 1 traces every frame.</li>
+ * </ul>
+ */
+final class Tracing {
+    static final int SAMPLE = Math.max(1, Integer.getInteger("gozirra.jfr.sample", 1).intValue());
+
+    static final EventType DECODE = EventType.getEventType(FrameDecodeEvent.class);
+    static final EventType AUTHORIZE = EventType.getEventType(AuthorizationEvent.class);
+    static final EventType ROUTE = EventType.getEventType(RouteEvent.class);
+    static final EventType DELIVER = EventType.getEventType(DeliveryEvent.class);
+    static final EventType ENCODE = EventType.getEventType(FrameEncodeEvent.class);
+
+    private Tracing() {
+    }
+
+
+    /**
+     * True if an event of the given type should be created for the current
+     * frame.
+     */
+    static boolean trace(EventType type) {
+        return type.isEnabled() && (SAMPLE == 1 || ThreadLocalRandom.current().nextInt(SAMPLE) == 0);
+    }
+}
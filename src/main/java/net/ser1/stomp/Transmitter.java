@@ -13,26 +13,104 @@ class Transmitter {
 	
 	public static void transmit(Command c, Map<String, String> h, String b,
                                 java.io.OutputStream out) throws IOException {
-        StringBuffer message = new StringBuffer(c.toString());
-        message.append("\n");
+        FrameEncodeEvent event = null;
+        if (Tracing.trace(Tracing.ENCODE)) {
+            event = new FrameEncodeEvent();
+            event.begin();
+        }
+        int size;
+        if (FramePool.ENABLED) {
+            size = encode(c, h, b, out);
+        } else {
+            StringBuffer message = new StringBuffer(c.toString());
+            message.append("\n");
 
-        if (h != null) {
-            for (Iterator<String> keys = h.keySet().iterator(); keys.hasNext();) {
-                String key = (String) keys.next();
-                String value = (String) h.get(key);
-                message.append(key);
-                message.append(":");
-                message.append(value);
-                message.append("\n");
+            if (h != null) {
+                for (Iterator<String> keys = h.keySet().iterator(); keys.hasNext();) {
+                    String key = (String) keys.next();
+                    String value = (String) h.get(key);
+                    message.append(key);
+                    message.append(":");
+                    message.append(value);
+                    message.append("\n");
+                }
             }
+            message.append("\n");
+
+            if (b != null) message.append(b);
+
+            message.append(NULL_CHARACTER);
+
+            // System.out.println("OUT: " + message.toString());
+            byte[] bytes = message.toString().getBytes(Command.ENCODING);
+            out.write(bytes);
+            size = bytes.length;
         }
-        message.append("\n");
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.command = c.toString();
+                event.destination = h == null ? null : h.get("destination");
+                event.size = size;
+                event.commit();
+            }
+        }
+    }
+
 
-        if (b != null) message.append(b);
+    /**
+     * Encodes a frame straight into this thread's FramePool buffer and
+     * writes it, producing the same bytes as the StringBuffer path without
+     * allocating per frame.
+     *
+     * @return the number of bytes written
+     */
+    private static int encode(Command c, Map<String, String> h, String b,
+                              java.io.OutputStream out) throws IOException {
+        String command = c.toString();
+        int length = command.length() + 3 + (b == null ? 0 : b.length());
+        if (h != null) {
+            for (Iterator<Map.Entry<String, String>> i = h.entrySet().iterator(); i.hasNext();) {
+                Map.Entry<String, String> e = i.next();
+                length += String.valueOf(e.getKey()).length() + String.valueOf(e.getValue()).length() + 2;
+            }
+        }
+        byte[] buf = FramePool.buffer(length);
+        int pos = put(command, buf, 0);
+        buf[pos++] = '\n';
+        if (h != null) {
+            for (Iterator<Map.Entry<String, String>> i = h.entrySet().iterator(); i.hasNext();) {
+                Map.Entry<String, String> e = i.next();
+                pos = put(String.valueOf(e.getKey()), buf, pos);
+                buf[pos++] = ':';
+                pos = put(String.valueOf(e.getValue()), buf, pos);
+                buf[pos++] = '\n';
+            }
+        }
+        buf[pos++] = '\n';
+        if (b != null) pos = put(b, buf, pos);
+        buf[pos++] = 0;
+        out.write(buf, 0, pos);
+        return pos;
+    }
 
-        message.append(NULL_CHARACTER);
 
-       // System.out.println("OUT: " + message.toString());
-        out.write(message.toString().getBytes(Command.ENCODING));
+    /**
+     * Copies a string into the buffer as US-ASCII.  As with
+     * String.getBytes(), characters outside US-ASCII become '?', and a
+     * surrogate pair becomes a single '?'.
+     */
+    private static int put(String s, byte[] buf, int pos) {
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char ch = s.charAt(i);
+            if (ch < 0x80) {
+                buf[pos++] = (byte) ch;
+            } else {
+                buf[pos++] = '?';
+                if (Character.isHighSurrogate(ch) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) i++;
+            }
+        }
+        return pos;
     }
 }
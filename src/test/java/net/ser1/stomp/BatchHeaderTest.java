@@ -0,0 +1,86 @@
+package net.ser1.stomp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class BatchHeaderTest {
+    private static final int PORT = 61838;
+    private static final String DESTINATION = "/test/batch-header";
+
+
+    @Test
+    public void batchHeaderIsOnlyFramingWhenAgreed() throws Exception {
+        Server server = new Server(PORT);
+        Thread.sleep(300);
+        Map<String, String> batches = new HashMap<String, String>();
+        batches.put(Batch.HEADER, "true");
+        List plain = subscribe(new Client("localhost", PORT, "", ""));
+        List batching = subscribe(new Client("localhost", PORT, "", "", batches));
+        List intra_vm = subscribe(server.getClient());
+
+        Client producer = new Client("localhost", PORT, "", "");
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put(Batch.HEADER, "nightly");
+        producer.send(DESTINATION, "report", headers);
+
+        await(plain, 1);
+        await(batching, 1);
+        await(intra_vm, 1);
+        assertEquals("nightly report", plain.get(0));
+        assertEquals("nightly report", batching.get(0));
+        assertEquals("nightly report", intra_vm.get(0));
+
+        producer.disconnect();
+        server.stop();
+    }
+
+
+    @Test
+    public void batchingSendersKeepTheirOwnBatchHeader() throws Exception {
+        Server server = new Server(PORT + 1);
+        Thread.sleep(300);
+        Map<String, String> batches = new HashMap<String, String>();
+        batches.put(Batch.HEADER, "true");
+        List plain = subscribe(new Client("localhost", PORT + 1, "", ""));
+
+        Client producer = new Client("localhost", PORT + 1, "", "", batches);
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put(Batch.HEADER, "nightly");
+        producer.sendW(DESTINATION, "report", headers);
+        headers = new HashMap<String, String>();
+        headers.put(Batch.HEADER, "weekly");
+        server.getClient().send(DESTINATION, "summary", headers);
+
+        await(plain, 2);
+        assertEquals("nightly report", plain.get(0));
+        assertEquals("weekly summary", plain.get(1));
+
+        producer.disconnect();
+        server.stop();
+    }
+
+
+    private static List subscribe(Stomp client) throws InterruptedException {
+        final List received = Collections.synchronizedList(new ArrayList());
+        client.subscribeW(DESTINATION, new Listener() {
+            public void message(Map<String, String> headers, String body) {
+                received.add(headers.get(Batch.HEADER) + " " + body);
+            }
+        });
+        return received;
+    }
+
+
+    private static void await(List received, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (received.size() < size && System.currentTimeMillis() < deadline) Thread.sleep(50);
+        assertEquals(size, received.size());
+    }
+}
@@ -0,0 +1,105 @@
+package net.ser1.stomp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CheckpointTest {
+    private File _directory;
+    private File _checkpoint;
+
+
+    @Before
+    public void setUp() throws IOException {
+        _directory = Files.createTempDirectory("gozirra-checkpoint").toFile();
+        _checkpoint = new File(_directory, "checkpoint");
+    }
+
+
+    @After
+    public void tearDown() {
+        File[] children = _directory.listFiles();
+        for (int i = 0; i < children.length; i++) children[i].delete();
+        _directory.delete();
+    }
+
+
+    @Test
+    public void restoresRetainedMessages() throws IOException {
+        Checkpoint.write(_checkpoint, retained(), null);
+        LastValueCache restored = new LastValueCache();
+        assertTrue(Checkpoint.read(_checkpoint, restored, null));
+        assertTrue(restored.retains("/config"));
+        assertEquals(1, restored.get("/config").size());
+    }
+
+
+    @Test
+    public void emptyCheckpointIsRefused() throws IOException {
+        _checkpoint.createNewFile();
+        assertRefused();
+    }
+
+
+    @Test
+    public void damagedCheckpointRestoresNothing() throws IOException {
+        Checkpoint.write(_checkpoint, retained(), null);
+        RandomAccessFile file = new RandomAccessFile(_checkpoint, "rw");
+        try {
+            file.seek(file.length() - 12);
+            file.write(0x55);
+        } finally {
+            file.close();
+        }
+        assertRefused();
+    }
+
+
+    @Test
+    public void serverStartsFromDamagedCheckpoint() throws IOException {
+        Files.write(_checkpoint.toPath(), new byte[]{1, 2, 3});
+        Server server = new Server();
+        try {
+            server.setCheckpoint(_checkpoint, 60000);
+            server.checkpoint();
+        } finally {
+            server.stop();
+        }
+        assertTrue(Checkpoint.read(_checkpoint, new LastValueCache(), null));
+    }
+
+
+    private void assertRefused() {
+        LastValueCache restored = new LastValueCache();
+        try {
+            Checkpoint.read(_checkpoint, restored, null);
+            fail("Read a damaged checkpoint");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertFalse(restored.retains("/config"));
+        assertEquals(0, restored.size());
+    }
+
+
+    private static LastValueCache retained() {
+        LastValueCache retained = new LastValueCache();
+        retained.retain("/config", null);
+        Map headers = new HashMap();
+        headers.put("destination", "/config");
+        retained.put("/config", headers, "setting=1");
+        return retained;
+    }
+}
@@ -0,0 +1,46 @@
+package net.ser1.stomp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ClientPoolTest {
+    private static final int PORT = 61832;
+
+
+    @Test
+    public void replacesConnectionsAfterServerRestart() throws Exception {
+        Server server = new Server(PORT);
+        Thread.sleep(300);
+        ClientPool pool = new ClientPool("localhost", PORT, "", "", 2);
+        final AtomicInteger received = new AtomicInteger();
+        pool.subscribe("/test/topic", new Listener() {
+            public void message(Map<String, String> headers, String body) {
+                received.incrementAndGet();
+            }
+        });
+        assertEquals(2, pool.alive());
+
+        server.stop();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.alive() > 0 && System.currentTimeMillis() < deadline) Thread.sleep(50);
+        assertEquals(0, pool.alive());
+
+        server = new Server(PORT);
+        deadline = System.currentTimeMillis() + 10000;
+        while (pool.alive() < 2 && System.currentTimeMillis() < deadline) Thread.sleep(50);
+        assertEquals(2, pool.alive());
+        assertEquals(2, pool.getReplacements());
+
+        pool.sendW("/test/topic", "after restart");
+        deadline = System.currentTimeMillis() + 5000;
+        while (received.get() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(50);
+        assertEquals(1, received.get());
+
+        pool.disconnect();
+        server.stop();
+    }
+}
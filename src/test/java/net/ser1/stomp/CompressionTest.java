@@ -0,0 +1,50 @@
+package net.ser1.stomp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class CompressionTest {
+    private static final int PORT = 61833;
+
+
+    @Test
+    public void reusedHeadersAreLeftAlone() throws Exception {
+        Server server = new Server(PORT);
+        Thread.sleep(300);
+        Client consumer = new Client("localhost", PORT, "", "");
+        final List bodies = Collections.synchronizedList(new ArrayList());
+        consumer.subscribeW("/test/topic", new Listener() {
+            public void message(Map<String, String> headers, String body) {
+                bodies.add(body);
+            }
+        });
+        Map<String, String> negotiate = new HashMap<String, String>();
+        negotiate.put(Compression.NEGOTIATE, Compression.DEFLATE);
+        Client producer = new Client("localhost", PORT, "", "", negotiate);
+
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 4096; i++) large.append('x');
+        Map<String, String> headers = new HashMap<String, String>();
+        producer.send("/test/topic", large.toString(), headers);
+        assertFalse(headers.containsKey(Compression.ENCODING));
+        producer.send("/test/topic", "small", headers);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bodies.size() < 2 && System.currentTimeMillis() < deadline) Thread.sleep(50);
+        assertEquals(2, bodies.size());
+        assertEquals(large.toString(), bodies.get(0));
+        assertEquals("small", bodies.get(1));
+
+        producer.disconnect();
+        consumer.disconnect();
+        server.stop();
+    }
+}
@@ -0,0 +1,119 @@
+package net.ser1.stomp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DeduplicationTest {
+    private Server _server;
+    private AtomicInteger _received;
+
+
+    @Before
+    public void setUp() {
+        _server = new Server();
+        _received = new AtomicInteger();
+        Listener counter = new Listener() {
+            public void message(Map<String, String> headers, String body) {
+                _received.incrementAndGet();
+            }
+        };
+        _server.getClient().subscribe("/a", counter);
+        _server.getClient().subscribe("/b", counter);
+    }
+
+
+    @After
+    public void tearDown() {
+        _server.stop();
+    }
+
+
+    @Test
+    public void offByDefault() {
+        Stomp producer = _server.getClient();
+        producer.send("/a", "first", id("1"));
+        producer.send("/a", "again", id("1"));
+        assertEquals(2, _received.get());
+    }
+
+
+    @Test
+    public void dropsRepeatsFromOneConnection() {
+        _server.setDeduplication(100, 60000);
+        Stomp producer = _server.getClient();
+        producer.send("/a", "first", id("1"));
+        producer.send("/a", "again", id("1"));
+        assertEquals(1, _received.get());
+    }
+
+
+    @Test
+    public void keepsIdsOfOtherConnectionsApart() {
+        _server.setDeduplication(100, 60000);
+        _server.getClient().send("/a", "one producer", id("1"));
+        _server.getClient().send("/a", "another producer", id("1"));
+        assertEquals(2, _received.get());
+    }
+
+
+    @Test
+    public void keepsIdsOfOtherDestinationsApart() {
+        _server.setDeduplication(100, 60000);
+        Stomp producer = _server.getClient();
+        producer.send("/a", "first", id("1"));
+        producer.send("/b", "elsewhere", id("1"));
+        assertEquals(2, _received.get());
+    }
+
+
+    @Test
+    public void busyProducerKeepsToItsOwnWindow() {
+        _server.setDeduplication(2, 60000);
+        Stomp quiet = _server.getClient();
+        Stomp busy = _server.getClient();
+        quiet.send("/a", "first", id("q"));
+        for (int i = 0; i < 10; i++) busy.send("/b", "busy", id("b" + i));
+        quiet.send("/a", "again", id("q"));
+        assertEquals(11, _received.get());
+    }
+
+
+    @Test
+    public void forgottenIdIsTakenAgain() {
+        Deduplicator dedupe = new Deduplicator(10, 60000);
+        assertTrue(dedupe.firstSeen("p", "1"));
+        assertTrue(dedupe.firstSeen("p", "2"));
+        dedupe.forget("p", "1");
+        assertTrue(dedupe.firstSeen("p", "1"));
+        assertFalse(dedupe.firstSeen("p", "1"));
+        assertFalse(dedupe.firstSeen("p", "2"));
+        assertTrue(dedupe.firstSeen("q", "2"));
+    }
+
+
+    @Test
+    public void forgetsLeastRecentProducer() {
+        Deduplicator dedupe = new Deduplicator(10, 60000, 2);
+        dedupe.firstSeen("p", "1");
+        dedupe.firstSeen("q", "1");
+        dedupe.firstSeen("r", "1");
+        assertEquals(2, dedupe.size());
+        assertTrue(dedupe.firstSeen("p", "1"));
+    }
+
+
+    private static Map<String, String> id(String id) {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("message-id", id);
+        return headers;
+    }
+}
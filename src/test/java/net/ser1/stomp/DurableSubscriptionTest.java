@@ -0,0 +1,107 @@
+package net.ser1.stomp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DurableSubscriptionTest {
+    private static final String DESTINATION = "/test/durable";
+
+    private File _directory;
+
+
+    @Before
+    public void setUp() throws IOException {
+        _directory = Files.createTempDirectory("gozirra-durable").toFile();
+    }
+
+
+    @After
+    public void tearDown() {
+        delete(_directory);
+    }
+
+
+    @Test
+    public void resumesAfterRestart() throws InterruptedException {
+        Server server = server();
+        List received = new ArrayList();
+        Stomp consumer = server.getClient();
+        consumer.subscribe(DESTINATION, listener(received), durable());
+        Stomp producer = server.getClient();
+        for (int i = 0; i < 3; i++) producer.send(DESTINATION, "message " + i);
+        await(received, 3);
+        consumer.disconnect();
+        for (int i = 3; i < 5; i++) producer.send(DESTINATION, "message " + i);
+        producer.disconnect();
+        server.stop();
+
+        server = server();
+        received.clear();
+        consumer = server.getClient();
+        consumer.subscribe(DESTINATION, listener(received), durable());
+        await(received, 2);
+        Thread.sleep(200);
+        server.stop();
+
+        assertEquals(2, received.size());
+        assertEquals("message 3", received.get(0));
+        assertEquals("message 4", received.get(1));
+    }
+
+
+    private Server server() {
+        Server server = new Server();
+        server.setQueue(new FileQueue(_directory));
+        server.persist(DESTINATION);
+        return server;
+    }
+
+
+    private static Map<String, String> durable() {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("client-id", "test");
+        headers.put("durable-subscription-name", "subscription");
+        headers.put("start", "earliest");
+        return headers;
+    }
+
+
+    private static Listener listener(final List received) {
+        return new Listener() {
+            public void message(Map<String, String> headers, String body) {
+                synchronized (received) {
+                    received.add(body);
+                    received.notifyAll();
+                }
+            }
+        };
+    }
+
+
+    private static void await(List received, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        synchronized (received) {
+            while (received.size() < size && System.currentTimeMillis() < deadline) received.wait(100);
+        }
+    }
+
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) delete(children[i]);
+        }
+        file.delete();
+    }
+}
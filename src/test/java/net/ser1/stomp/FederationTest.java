@@ -0,0 +1,64 @@
+package net.ser1.stomp;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class FederationTest {
+    private static final int PORT_A = 61840;
+    private static final int PORT_B = 61841;
+    private static final String DESTINATION = "/test/federated";
+
+
+    @Test
+    public void droppedLinkIsReestablished() throws Exception {
+        Server a = new Server(PORT_A);
+        a.setNodeId("a");
+        Server b = server("b");
+        a.federate("localhost", PORT_B);
+        final List received = Collections.synchronizedList(new ArrayList());
+        a.getClient().subscribe(DESTINATION, new Listener() {
+            public void message(Map<String, String> headers, String body) {
+                received.add(body);
+            }
+        });
+        assertTrue(arrives(b, "before", received));
+
+        b.stop();
+        Thread.sleep(300);
+        b = server("b");
+        assertTrue(arrives(b, "after", received));
+
+        b.stop();
+        a.stop();
+    }
+
+
+    private static Server server(String node) throws Exception {
+        Server server = new Server(PORT_B);
+        server.setNodeId(node);
+        Thread.sleep(300);
+        return server;
+    }
+
+
+    /**
+     * Sends from a peer until the link has subscribed there and the
+     * message arrives.
+     */
+    private static boolean arrives(Server peer, String body, List received) throws InterruptedException {
+        Stomp producer = peer.getClient();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            producer.send(DESTINATION, body);
+            Thread.sleep(100);
+            if (received.contains(body)) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,123 @@
+package net.ser1.stomp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileQueueTest {
+    private static final String DESTINATION = "/test/queue";
+
+    private File _directory;
+
+
+    @Before
+    public void setUp() throws IOException {
+        _directory = Files.createTempDirectory("gozirra-filequeue").toFile();
+    }
+
+
+    @After
+    public void tearDown() {
+        delete(_directory);
+    }
+
+
+    @Test
+    public void reopenKeepsStoredMessages() throws IOException {
+        FileQueue queue = new FileQueue(_directory);
+        for (int i = 0; i < 3; i++) queue.append(DESTINATION, headers(), "message " + i);
+        queue.close();
+
+        queue = new FileQueue(_directory);
+        assertEquals(0, queue.earliest(DESTINATION));
+        assertEquals(3, queue.next(DESTINATION));
+        assertEquals(3, queue.append(DESTINATION, headers(), "message 3"));
+        List bodies = read(queue);
+        queue.close();
+
+        assertEquals(4, bodies.size());
+        for (int i = 0; i < 4; i++) assertEquals("message " + i, bodies.get(i));
+    }
+
+
+    @Test
+    public void reopenKeepsCursors() throws IOException {
+        FileQueue queue = new FileQueue(_directory);
+        for (int i = 0; i < 5; i++) queue.append(DESTINATION, headers(), "message " + i);
+        queue.cursor(DESTINATION, "client:subscription", 2);
+        queue.close();
+
+        queue = new FileQueue(_directory);
+        assertEquals(2, queue.cursor(DESTINATION, "client:subscription"));
+        assertEquals(5, queue.next(DESTINATION));
+        queue.close();
+    }
+
+
+    @Test
+    public void consumedSegmentsAreKeptUnlessAsked() throws IOException {
+        FileQueue queue = new FileQueue(_directory, 1);
+        for (int i = 0; i < 5; i++) queue.append(DESTINATION, headers(), "message " + i);
+        queue.cursor(DESTINATION, "client:subscription", 5);
+        assertEquals(0, queue.earliest(DESTINATION));
+        assertEquals(5, read(queue).size());
+
+        queue.setDeleteConsumed(true);
+        queue.cursor(DESTINATION, "client:subscription", 4);
+        assertEquals(4, queue.earliest(DESTINATION));
+        queue.close();
+    }
+
+
+    @Test
+    public void reopenFromCheckpointKeepsStoredMessages() throws IOException {
+        File checkpoint = new File(_directory, "checkpoint");
+        FileQueue queue = new FileQueue(new File(_directory, "data"));
+        for (int i = 0; i < 3; i++) queue.append(DESTINATION, headers(), "message " + i);
+        Checkpoint.write(checkpoint, new LastValueCache(), queue);
+        queue.close();
+
+        queue = new FileQueue(new File(_directory, "data"));
+        Checkpoint.read(checkpoint, new LastValueCache(), queue);
+        assertEquals(3, queue.next(DESTINATION));
+        assertEquals(3, read(queue).size());
+        queue.close();
+    }
+
+
+    private static Map<String, String> headers() {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("destination", DESTINATION);
+        return headers;
+    }
+
+
+    private static List read(FileQueue queue) throws IOException {
+        final List bodies = new ArrayList();
+        queue.read(DESTINATION, queue.earliest(DESTINATION), queue.next(DESTINATION), new Listener() {
+            public void message(Map<String, String> headers, String body) {
+                bodies.add(body);
+            }
+        });
+        return bodies;
+    }
+
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) delete(children[i]);
+        }
+        file.delete();
+    }
+}
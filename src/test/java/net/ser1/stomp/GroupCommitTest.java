@@ -0,0 +1,45 @@
+package net.ser1.stomp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class GroupCommitTest {
+    private static final int WRITERS = 8;
+    private static final int REQUESTS = 2000;
+
+
+    @Test
+    public void everyRequestIsAnsweredAcrossClose() throws Exception {
+        final GroupCommit commit = new GroupCommit("test-commit", 10);
+        commit.start();
+        final GroupCommit.Target target = new GroupCommit.Target() {
+            public void force() {
+            }
+        };
+        final AtomicInteger answered = new AtomicInteger();
+        final Queue.SyncListener listener = new Queue.SyncListener() {
+            public void synced(IOException failure) {
+                answered.incrementAndGet();
+            }
+        };
+        Thread[] writers = new Thread[WRITERS];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new Thread() {
+                public void run() {
+                    for (int n = 0; n < REQUESTS; n++) commit.sync(target, listener);
+                }
+            };
+            writers[i].start();
+        }
+        Thread.sleep(5);
+        commit.close();
+        for (int i = 0; i < writers.length; i++) writers[i].join();
+        commit.join(5000);
+
+        assertEquals(WRITERS * REQUESTS, answered.get());
+    }
+}
@@ -0,0 +1,116 @@
+package net.ser1.stomp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PublisherTest {
+    private Server _server;
+
+
+    @Before
+    public void setUp() {
+        _server = new Server();
+        _server.setRoutingThreads(1);
+    }
+
+
+    @After
+    public void tearDown() {
+        _server.stop();
+    }
+
+
+    /**
+     * Requests a number of messages, then nothing more.
+     */
+    private static final class Slow implements Flow.Subscriber<Message> {
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final long wanted;
+        Flow.Subscription subscription;
+
+        Slow(long wanted) {
+            this.wanted = wanted;
+        }
+
+        public void onSubscribe(Flow.Subscription s) {
+            subscription = s;
+            s.request(wanted);
+        }
+
+        public void onNext(Message m) {
+            received.incrementAndGet();
+        }
+
+        public void onError(Throwable t) {
+            error.set(t);
+        }
+
+        public void onComplete() {
+        }
+    }
+
+
+    @Test
+    public void topicSubscriberFallingBehindFails() throws Exception {
+        Slow slow = new Slow(1);
+        _server.getClient().publisher("/topic", null, 4).subscribe(slow);
+        final AtomicInteger other = new AtomicInteger();
+        _server.getClient().subscribe("/other", new Listener() {
+            public void message(Map<String, String> headers, String body) {
+                other.incrementAndGet();
+            }
+        });
+
+        Stomp producer = _server.getClient();
+        for (int i = 0; i < 10; i++) producer.send("/topic", "message " + i);
+        // The routing thread isn't held up by the slow subscriber
+        producer.send("/other", "message");
+        waitFor(other, 1);
+        assertEquals(1, other.get());
+        waitFor(slow.error);
+        assertTrue(slow.error.get() instanceof IllegalStateException);
+        assertEquals(1, slow.received.get());
+    }
+
+
+    @Test
+    public void queueHoldsBackUnrequested() throws Exception {
+        _server.queue("/queue");
+        Slow slow = new Slow(2);
+        _server.getClient().publisher("/queue", null, 4).subscribe(slow);
+
+        Stomp producer = _server.getClient();
+        for (int i = 0; i < 10; i++) producer.send("/queue", "message " + i);
+        waitFor(slow.received, 2);
+        Thread.sleep(200);
+        assertEquals(2, slow.received.get());
+        assertEquals(8, _server.queued("/queue"));
+
+        slow.subscription.request(8);
+        waitFor(slow.received, 10);
+        assertEquals(10, slow.received.get());
+        assertEquals(null, slow.error.get());
+    }
+
+
+    private static void waitFor(AtomicInteger count, int n) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (count.get() < n && System.currentTimeMillis() < deadline) Thread.sleep(10);
+    }
+
+
+    private static void waitFor(AtomicReference reference) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (reference.get() == null && System.currentTimeMillis() < deadline) Thread.sleep(10);
+    }
+}
@@ -0,0 +1,72 @@
+package net.ser1.stomp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QueueTest {
+    private Server _server;
+
+
+    @Before
+    public void setUp() {
+        _server = new Server();
+    }
+
+
+    @After
+    public void tearDown() {
+        _server.stop();
+    }
+
+
+    @Test
+    public void destinationsFanOutByDefault() {
+        AtomicInteger first = subscribe("/queue/orders");
+        AtomicInteger second = subscribe("/queue/orders");
+        for (int i = 0; i < 4; i++) _server.getClient().send("/queue/orders", "order " + i);
+        assertEquals(4, first.get());
+        assertEquals(4, second.get());
+        assertEquals(0, _server.queued("/queue/orders"));
+    }
+
+
+    @Test
+    public void queueTakesTurns() {
+        _server.queue("/orders");
+        AtomicInteger first = subscribe("/orders");
+        AtomicInteger second = subscribe("/orders");
+        for (int i = 0; i < 4; i++) _server.getClient().send("/orders", "order " + i);
+        assertEquals(4, first.get() + second.get());
+        assertEquals(2, first.get());
+    }
+
+
+    @Test
+    public void queueHoldsMessagesUntilSubscribed() {
+        _server.queue("/orders");
+        for (int i = 0; i < 3; i++) _server.getClient().send("/orders", "order " + i);
+        assertEquals(3, _server.queued("/orders"));
+
+        _server.unqueue("/orders");
+        AtomicInteger received = subscribe("/orders");
+        assertEquals(3, received.get());
+        assertEquals(0, _server.queued("/orders"));
+    }
+
+
+    private AtomicInteger subscribe(String destination) {
+        final AtomicInteger received = new AtomicInteger();
+        _server.getClient().subscribe(destination, new Listener() {
+            public void message(Map<String, String> headers, String body) {
+                received.incrementAndGet();
+            }
+        });
+        return received;
+    }
+}
@@ -0,0 +1,91 @@
+package net.ser1.stomp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ReconnectingClientTest {
+    private static final int PORT = 61831;
+    private static final int TRANSACTION_PORT = 61834;
+
+
+    @Test
+    public void subscriberReconnectsAfterServerRestart() throws Exception {
+        Server server = new Server(PORT);
+        Thread.sleep(300);
+        ReconnectingClient client = new ReconnectingClient("localhost", PORT, "", "");
+        client.setBackoff(50, 500);
+        final AtomicInteger received = new AtomicInteger();
+        client.subscribe("/test/topic", new Listener() {
+            public void message(Map<String, String> headers, String body) {
+                received.incrementAndGet();
+            }
+        });
+
+        server.stop();
+        server = new Server(PORT);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (client.getReconnects() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(50);
+        assertEquals(1, client.getReconnects());
+
+        Client producer = new Client("localhost", PORT, "", "");
+        producer.sendW("/test/topic", "after restart");
+        deadline = System.currentTimeMillis() + 5000;
+        while (received.get() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(50);
+        assertEquals(1, received.get());
+
+        producer.disconnect();
+        client.disconnect();
+        server.stop();
+    }
+
+
+    @Test
+    public void transactionFailsAfterServerRestart() throws Exception {
+        Server server = new Server(TRANSACTION_PORT);
+        Thread.sleep(300);
+        ReconnectingClient client = new ReconnectingClient("localhost", TRANSACTION_PORT, "", "");
+        client.setBackoff(50, 500);
+        client.begin();
+        client.sendW("/test/topic", "before restart");
+
+        server.stop();
+        server = new Server(TRANSACTION_PORT);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (client.getReconnects() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(50);
+        assertEquals(1, client.getReconnects());
+
+        Client consumer = new Client("localhost", TRANSACTION_PORT, "", "");
+        final AtomicInteger received = new AtomicInteger();
+        consumer.subscribeW("/test/topic", new Listener() {
+            public void message(Map<String, String> headers, String body) {
+                received.incrementAndGet();
+            }
+        });
+        client.send("/test/topic", "after restart");
+        try {
+            client.commitW();
+            fail("Committed a lost transaction");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        assertEquals(0, client.getResent());
+
+        // The next transaction is a fresh one
+        client.begin();
+        client.send("/test/topic", "new transaction");
+        client.commitW();
+        deadline = System.currentTimeMillis() + 5000;
+        while (received.get() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(50);
+        Thread.sleep(200);
+        assertEquals(1, received.get());
+
+        consumer.disconnect();
+        client.disconnect();
+        server.stop();
+    }
+}
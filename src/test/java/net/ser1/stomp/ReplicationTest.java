@@ -0,0 +1,150 @@
+package net.ser1.stomp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReplicationTest {
+    private static final String DESTINATION = "/test/replicated";
+    private static final int PORT = 61836;
+
+    private File _primary_directory;
+    private File _standby_directory;
+    private Server _primary;
+    private Server _standby;
+
+
+    @Before
+    public void setUp() throws IOException {
+        _primary_directory = Files.createTempDirectory("gozirra-primary").toFile();
+        _standby_directory = Files.createTempDirectory("gozirra-standby").toFile();
+    }
+
+
+    @After
+    public void tearDown() {
+        if (_primary != null) _primary.stop();
+        if (_standby != null) _standby.stop();
+        delete(_primary_directory);
+        delete(_standby_directory);
+    }
+
+
+    @Test
+    public void standbyCatchesUpAndTakesOver() throws Exception {
+        _primary = server(_primary_directory);
+        List received = new ArrayList();
+        Stomp consumer = _primary.getClient();
+        consumer.subscribe(DESTINATION, listener(received), durable());
+        Stomp producer = _primary.getClient();
+        for (int i = 0; i < 3; i++) producer.send(DESTINATION, "message " + i);
+        await(received, 3);
+        consumer.disconnect();
+        for (int i = 3; i < 5; i++) producer.send(DESTINATION, "message " + i);
+        producer.disconnect();
+
+        // The standby joins late, so the cursor has to come with the catch-up
+        FileQueue standby_queue = new FileQueue(_standby_directory);
+        _standby = new Server();
+        _standby.setQueue(standby_queue);
+        _standby.standby(PORT);
+        _primary.replicateTo("localhost", PORT, false);
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((standby_queue.next(DESTINATION) < 5 || standby_queue.cursor(DESTINATION, "test:subscription") < 3)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(5, standby_queue.next(DESTINATION));
+        assertEquals(3, standby_queue.cursor(DESTINATION, "test:subscription"));
+
+        _primary.stop();
+        _primary = null;
+        _standby.takeOver();
+        received.clear();
+        consumer = _standby.getClient();
+        consumer.subscribe(DESTINATION, listener(received), durable());
+        await(received, 2);
+        Thread.sleep(200);
+
+        assertEquals(2, received.size());
+        assertEquals("message 3", received.get(0));
+        assertEquals("message 4", received.get(1));
+    }
+
+
+    @Test
+    public void semiSyncReceiptWaitsForStandby() throws Exception {
+        FileQueue standby_queue = new FileQueue(_standby_directory);
+        _standby = new Server();
+        _standby.setQueue(standby_queue);
+        _standby.standby(PORT + 1);
+        _primary = server(_primary_directory);
+        _primary.replicateTo("localhost", PORT + 1, true);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!_primary.isReplicating() && System.currentTimeMillis() < deadline) Thread.sleep(20);
+        assertTrue(_primary.isReplicating());
+
+        Stomp producer = _primary.getClient();
+        for (int i = 0; i < 3; i++) {
+            producer.sendW(DESTINATION, "message " + i);
+            assertEquals(i + 1, standby_queue.next(DESTINATION));
+        }
+    }
+
+
+    private Server server(File directory) {
+        Server server = new Server();
+        server.setQueue(new FileQueue(directory));
+        server.persist(DESTINATION);
+        return server;
+    }
+
+
+    private static Map<String, String> durable() {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("client-id", "test");
+        headers.put("durable-subscription-name", "subscription");
+        headers.put("start", "earliest");
+        return headers;
+    }
+
+
+    private static Listener listener(final List received) {
+        return new Listener() {
+            public void message(Map<String, String> headers, String body) {
+                synchronized (received) {
+                    received.add(body);
+                    received.notifyAll();
+                }
+            }
+        };
+    }
+
+
+    private static void await(List received, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        synchronized (received) {
+            while (received.size() < size && System.currentTimeMillis() < deadline) received.wait(100);
+        }
+    }
+
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) delete(children[i]);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,116 @@
+package net.ser1.stomp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RequestReplyTest {
+    private static final int PORT = 61835;
+
+    private Server _server;
+
+
+    @Before
+    public void setUp() throws Exception {
+        _server = new Server(PORT);
+        Thread.sleep(300);
+    }
+
+
+    @After
+    public void tearDown() {
+        _server.stop();
+    }
+
+
+    @Test
+    public void requestGetsReply() throws Exception {
+        final Stomp responder = _server.getClient();
+        responder.subscribe("/svc/echo", new Listener() {
+            public void message(Map<String, String> headers, String body) {
+                responder.reply(headers, "echo " + body);
+            }
+        });
+        Client requester = new Client("localhost", PORT, "", "");
+        Message reply = requester.request("/svc/echo", "hello", 5000).get(5, TimeUnit.SECONDS);
+        assertEquals("echo hello", reply.body());
+        requester.disconnect();
+    }
+
+
+    @Test
+    public void otherClientIsRefused() throws Exception {
+        Client owner = new Client("localhost", PORT, "", "", clientId("owner"));
+        AtomicInteger owner_received = subscribe(owner, "/temp/replies");
+        Client other = new Client("localhost", PORT, "", "", clientId("other"));
+        AtomicInteger other_received = subscribe(other, "/temp/replies");
+        assertNotNull(waitForError(other));
+
+        _server.getClient().send("/temp/replies", "reply");
+        waitFor(owner_received);
+        Thread.sleep(200);
+        assertEquals(1, owner_received.get());
+        assertEquals(0, other_received.get());
+        owner.disconnect();
+        other.disconnect();
+    }
+
+
+    @Test
+    public void sameClientTakesOverFromOpenConnection() throws Exception {
+        // The old connection stands for one the server hasn't seen drop
+        Client old = new Client("localhost", PORT, "", "", clientId("client"));
+        AtomicInteger old_received = subscribe(old, "/temp/replies");
+        Client fresh = new Client("localhost", PORT, "", "", clientId("client"));
+        AtomicInteger fresh_received = subscribe(fresh, "/temp/replies");
+        Thread.sleep(200);
+
+        _server.getClient().send("/temp/replies", "reply");
+        waitFor(fresh_received);
+        Thread.sleep(200);
+        assertEquals(1, fresh_received.get());
+        assertEquals(0, old_received.get());
+        old.disconnect();
+        fresh.disconnect();
+    }
+
+
+    private static Map<String, String> clientId(String id) {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("client-id", id);
+        return headers;
+    }
+
+
+    private static AtomicInteger subscribe(Client client, String destination) {
+        final AtomicInteger received = new AtomicInteger();
+        client.subscribe(destination, new Listener() {
+            public void message(Map<String, String> headers, String body) {
+                received.incrementAndGet();
+            }
+        });
+        return received;
+    }
+
+
+    private static String waitForError(Client client) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        String error;
+        while ((error = client.nextError()) == null && System.currentTimeMillis() < deadline) Thread.sleep(50);
+        return error;
+    }
+
+
+    private static void waitFor(AtomicInteger received) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (received.get() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(50);
+    }
+}
@@ -0,0 +1,96 @@
+package net.ser1.stomp;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class SelectorTest {
+    @Test
+    public void andBindsTighterThanOr() {
+        assertTrue(matches("a = '1' OR b = '1' AND c = '1'", "a", "1", "b", "0", "c", "0"));
+        assertFalse(matches("(a = '1' OR b = '1') AND c = '1'", "a", "1", "b", "0", "c", "0"));
+        assertTrue(matches("NOT a = '1' AND b = '1'", "a", "0", "b", "1"));
+        assertTrue(matches("x + 2 * 3 = 7", "x", "1"));
+        assertTrue(matches("-x - 1 < 0", "x", "1"));
+    }
+
+
+    @Test
+    public void likeWithEscape() {
+        String selector = "name LIKE 'a!_%' ESCAPE '!'";
+        assertTrue(matches(selector, "name", "a_b"));
+        assertFalse(matches(selector, "name", "ab"));
+        assertTrue(matches("name LIKE 'a_c%'", "name", "abcd"));
+        assertTrue(matches("name NOT LIKE 'x%'", "name", "abc"));
+    }
+
+
+    @Test
+    public void in() {
+        String selector = "type IN ('order', 'refund')";
+        assertTrue(matches(selector, "type", "refund"));
+        assertFalse(matches(selector, "type", "other"));
+        assertTrue(matches("type NOT IN ('order', 'refund')", "type", "other"));
+    }
+
+
+    @Test
+    public void between() {
+        String selector = "size BETWEEN 5 AND 9";
+        assertTrue(matches(selector, "size", "5"));
+        assertTrue(matches(selector, "size", "9"));
+        assertFalse(matches(selector, "size", "10"));
+        assertFalse(matches(selector, "size", "big"));
+        assertTrue(matches("size NOT BETWEEN 5 AND 9", "size", "10"));
+    }
+
+
+    @Test
+    public void missingHeadersAreUnknown() {
+        assertTrue(matches("x IS NULL"));
+        assertFalse(matches("x IS NOT NULL"));
+        assertFalse(matches("x = 'a'"));
+        assertFalse(matches("NOT x = 'a'"));
+        assertFalse(matches("x IN ('a')"));
+        assertFalse(matches("x NOT IN ('a')"));
+        assertFalse(matches("x BETWEEN 1 AND 2"));
+        assertTrue(matches("x = 'a' OR y = 'b'", "y", "b"));
+        assertFalse(matches("x = 'a' OR y = 'c'", "y", "b"));
+    }
+
+
+    @Test
+    public void quotedIdentifiersAreNeverKeywords() {
+        assertTrue(matches("\"true\" = 'yes'", "true", "yes"));
+        assertTrue(matches("\"NOT\" = '1' AND \"and\" = '2'", "NOT", "1", "and", "2"));
+        assertTrue(matches("\"NULL\" IS NOT NULL", "NULL", "x"));
+        assertTrue(matches("\"content-type\" LIKE 'text/%'", "content-type", "text/plain"));
+        assertTrue(matches("flag = TRUE", "flag", "true"));
+    }
+
+
+    @Test
+    public void rejectsBadSelectors() {
+        String[] bad = {"", "a =", "a = 'b", "NOT", "AND = '1'", "a LIKE 'x' ESCAPE 'xy'", "a IN ()", "a ! b"};
+        for (int i = 0; i < bad.length; i++) {
+            try {
+                Selector.compile(bad[i]);
+                fail("Accepted " + bad[i]);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+
+    private static boolean matches(String selector, String... headers) {
+        Map<String, String> h = new HashMap<String, String>();
+        for (int i = 0; i < headers.length; i += 2) h.put(headers[i], headers[i + 1]);
+        return Selector.compile(selector).matches(h);
+    }
+}
@@ -0,0 +1,71 @@
+package net.ser1.stomp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ServerStatsTest {
+    private static final String A = "/stats/a";
+    private static final String B = "/stats/b";
+    private static final String C = "/stats/c";
+
+    private Server _server;
+    private ServerStats _stats;
+
+
+    @Before
+    public void setUp() {
+        _server = new Server();
+        _stats = new ServerStats(_server, 2);
+    }
+
+
+    @After
+    public void tearDown() {
+        _stats.unregister();
+        _server.stop();
+    }
+
+
+    @Test
+    public void dropsLeastRecentlyUsedDestination() throws Exception {
+        _stats.destination(A);
+        Thread.sleep(5);
+        _stats.destination(B);
+        Thread.sleep(5);
+        _stats.destination(A);
+        Thread.sleep(5);
+        _stats.destination(C);
+
+        assertEquals(new HashSet(Arrays.asList(new String[]{A, C})),
+                new HashSet(Arrays.asList(_stats.getDestinations())));
+        assertTrue(registered(A));
+        assertFalse(registered(B));
+        assertTrue(registered(C));
+    }
+
+
+    @Test
+    public void unregisterRemovesDestinations() throws Exception {
+        _stats.destination(A);
+        assertTrue(registered(A));
+        _stats.unregister();
+        assertFalse(registered(A));
+    }
+
+
+    private static boolean registered(String destination) throws Exception {
+        return !ManagementFactory.getPlatformMBeanServer().queryNames(new ObjectName(
+                Statistics.DOMAIN + ":type=Destination,name=" + ObjectName.quote(destination) + ",*"), null).isEmpty();
+    }
+}
@@ -0,0 +1,73 @@
+package net.ser1.stomp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShardTest {
+    private Server _server;
+
+
+    @Before
+    public void setUp() {
+        _server = new Server();
+        _server.setRoutingThreads(2);
+    }
+
+
+    @After
+    public void tearDown() {
+        _server.stop();
+    }
+
+
+    @Test
+    public void callerMayReuseItsHeaders() throws Exception {
+        final List seen = Collections.synchronizedList(new ArrayList());
+        _server.getClient().subscribe("/a", new Listener() {
+            public void message(Map<String, String> headers, String body) {
+                seen.add(headers.get("n"));
+            }
+        });
+        Stomp producer = _server.getClient();
+        Map<String, String> headers = new HashMap<String, String>();
+        for (int i = 0; i < 1000; i++) {
+            headers.put("n", String.valueOf(i));
+            producer.send("/a", "message", headers);
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (seen.size() < 1000 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertEquals(1000, seen.size());
+        for (int i = 0; i < 1000; i++) assertEquals(String.valueOf(i), seen.get(i));
+    }
+
+
+    @Test
+    public void commitReceiptFollowsRouting() throws Exception {
+        final AtomicInteger received = new AtomicInteger();
+        _server.getClient().subscribe("/a", new Listener() {
+            public void message(Map<String, String> headers, String body) {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                }
+                received.incrementAndGet();
+            }
+        });
+        Stomp producer = _server.getClient();
+        producer.begin();
+        for (int i = 0; i < 5; i++) producer.send("/a", "message " + i);
+        producer.commitW();
+        assertEquals(5, received.get());
+    }
+}